@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -9,6 +10,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -37,6 +39,10 @@ public class Catalog {
 
     private HashMap<String, Integer> tableNameToTableId;
 
+    private HashMap<Integer, List<SecondaryIndex>> tableIdToIndexes;
+
+    private ConcurrentHashMap<Integer, SecondaryIndex> indexIdToIndex;
+
     /**
      * Constructor.
      * Creates a new, empty catalog.
@@ -45,6 +51,8 @@ public class Catalog {
         // some code goes here
         tableIdToTable = new HashMap<>();
         tableNameToTableId = new HashMap<>();
+        tableIdToIndexes = new HashMap<>();
+        indexIdToIndex = new ConcurrentHashMap<>();
     }
 
     /**
@@ -98,6 +106,51 @@ public class Catalog {
         throw new NoSuchElementException();
     }
 
+    /**
+     * Add a secondary index on a table to the catalog.  The file of the index
+     * can be looked up by its id like that of a table (so that the buffer pool
+     * and recovery find its pages), but is not listed by tableIdIterator.
+     * @param index the index to add; its table must be in the catalog
+     */
+    public synchronized void addIndex(SecondaryIndex index) {
+        getTableById(index.getTableId());
+        tableIdToIndexes.computeIfAbsent(index.getTableId(), id -> new ArrayList<>()).add(index);
+        indexIdToIndex.put(index.getId(), index);
+    }
+
+    /**
+     * Remove a secondary index from the catalog.  The buffer pool no longer
+     * maintains it, and its file is left as it is.
+     */
+    public synchronized void dropIndex(SecondaryIndex index) {
+        List<SecondaryIndex> indexes = tableIdToIndexes.get(index.getTableId());
+        if (indexes != null && indexes.remove(index) && indexes.isEmpty()) {
+            tableIdToIndexes.remove(index.getTableId());
+        }
+        indexIdToIndex.remove(index.getId());
+    }
+
+    /**
+     * @return the secondary indexes on the specified table, empty if there are none
+     */
+    public synchronized List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = tableIdToIndexes.get(tableid);
+        return indexes == null ? Collections.emptyList() : new ArrayList<>(indexes);
+    }
+
+    /**
+     * @return a secondary index on the specified field of the specified
+     *     table, or null if there is none
+     */
+    public synchronized SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getField() == field) {
+                return index;
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns the tuple descriptor (schema) of the specified table
      * @param tableid The id of the table, as specified by the DbFile.getId()
@@ -117,6 +170,10 @@ public class Catalog {
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
+        SecondaryIndex index = indexIdToIndex.get(tableid);
+        if (index != null) {
+            return index.getFile();
+        }
         return getTableById(tableid).dbFile;
     }
 
@@ -140,6 +197,8 @@ public class Catalog {
         // some code goes here
         tableIdToTable.clear();
         tableNameToTableId.clear();
+        tableIdToIndexes.clear();
+        indexIdToIndex.clear();
     }
     
     /**
@@ -6,6 +6,7 @@ import simpledb.storage.IntField;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -28,6 +29,16 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
+        @Override
+        public void write(Field f, ByteBuffer buf, int offset) {
+            buf.putInt(offset, ((IntField) f).getValue());
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -47,6 +58,27 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = Math.max(0, Math.min(buf.getInt(offset), STRING_LEN));
+            byte[] bs = new byte[strLen];
+            for (int i = 0; i < strLen; i++) {
+                bs[i] = buf.get(offset + 4 + i);
+            }
+            return new StringField(new String(bs), STRING_LEN);
+        }
+
+        @Override
+        public void write(Field f, ByteBuffer buf, int offset) {
+            // same bytes as StringField.serialize: length, low byte of each char, zero padding
+            String s = ((StringField) f).getValue();
+            int strLen = Math.min(s.length(), STRING_LEN);
+            buf.putInt(offset, strLen);
+            for (int i = 0; i < STRING_LEN; i++) {
+                buf.put(offset + 4 + i, i < strLen ? (byte) s.charAt(i) : 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -65,4 +97,22 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer at an absolute offset. The position of
+   *   the buffer is not changed, so one buffer may be shared by readers.
+   * @param buf The buffer to read from
+   * @param offset The offset of the first byte of the field in buf
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
+  /**
+   * Write a field of this type into buf at an absolute offset, in the same
+   * format as Field.serialize. Always writes getLen() bytes.
+   * @param f The field to write; must be of this type
+   * @param buf The buffer to write to
+   * @param offset The offset of the first byte of the field in buf
+   */
+    public abstract void write(Field f, ByteBuffer buf, int offset);
+
 }
@@ -0,0 +1,437 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a BTreeFile from an unsorted stream of tuples, bottom-up, instead of
+ * inserting the tuples one at a time.
+ * <p>
+ * The tuples are first sorted on the key field with an external merge sort:
+ * runs of at most runPages leaves worth of tuples are sorted in memory and
+ * written to temporary files, and the runs are then merged.  If the whole
+ * input fits in one run, nothing is written out.
+ * <p>
+ * Once the input is sorted its size is known, and with it the shape of the
+ * whole tree: how many leaves, how many internal pages on each level, and so
+ * the page number of every page and of its parent and siblings.  The leaves
+ * are numbered from 1 in key order, each level of internal pages follows the
+ * one below it, and the root comes last.  Every page is therefore written
+ * once, complete, and in file order.
+ * <p>
+ * Pages are filled to fillFactor of their capacity, spread evenly over the
+ * pages of a level so that none is less than half full.  The tree must be
+ * empty to start with.  The load is not logged: the pages go straight to
+ * disk and are forced before the root pointer page is written, so a crash in
+ * the middle leaves the tree empty.
+ */
+public class BTreeBulkLoader {
+
+	/** Default size of a sorted run, in leaf pages worth of tuples */
+	public static final int DEFAULT_RUN_PAGES = 1024;
+
+	// pages written with one gathering write
+	private static final int WRITE_BATCH = 64;
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final int keyField;
+	private final double fillFactor;
+	private final int runPages;
+
+	private final int maxTuples;
+	private final int maxEntries;
+
+	/**
+	 * @param bf - the B+ tree to load
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param runPages - the size of a sorted run, in leaf pages worth of tuples
+	 */
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor, int runPages) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		if(runPages < 1) {
+			throw new IllegalArgumentException("runs must hold at least one page");
+		}
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.keyField = bf.keyField();
+		this.fillFactor = fillFactor;
+		this.runPages = runPages;
+		try {
+			this.maxTuples = new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+					BTreeLeafPage.createEmptyPageData(), keyField).getMaxTuples();
+			this.maxEntries = new BTreeInternalPage(new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL),
+					BTreeInternalPage.createEmptyPageData(), keyField).getMaxEntries();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Load the tree with the tuples of an iterator, which is opened and
+	 * closed here.  The caller must keep others from reading or changing the
+	 * tree meanwhile, see {@link BTreeFile#bulkLoad}.
+	 *
+	 * @return the number of tuples loaded
+	 * @throws DbException if the tree is not empty
+	 */
+	public long load(DbFileIterator tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		checkEmpty();
+		List<File> runs = new ArrayList<>();
+		try {
+			List<Tuple> inMemory = sortRuns(tuples, runs);
+			long n = inMemory != null ? inMemory.size() : 0;
+			for(File run : runs) {
+				n += run.length() / td.getSize();
+			}
+			if(n == 0) {
+				return 0;
+			}
+			if(n > Integer.MAX_VALUE) {
+				throw new DbException("too many tuples to bulk load: " + n);
+			}
+			TupleSource sorted = inMemory != null ? new ListSource(inMemory) : new MergeSource(runs);
+			try {
+				write(sorted, (int) n);
+			} finally {
+				sorted.close();
+			}
+			return n;
+		} finally {
+			for(File run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	private void checkEmpty() throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = bf.getRootPtrPage(null, new HashMap<>());
+		BTreePageId rootId = rootPtr.getRootId();
+		boolean empty = bf.numPages() <= 1 && rootPtr.getHeaderId() == null && (rootId == null ||
+				(rootId.pgcateg() == BTreePageId.LEAF &&
+				((BTreeLeafPage) Database.getBufferPool().getPage(null, rootId, Permissions.READ_ONLY)).getNumTuples() == 0));
+		if(!empty) {
+			throw new DbException("bulk load needs an empty tree");
+		}
+	}
+
+	/**
+	 * Split the input into sorted runs.
+	 *
+	 * @param runs - gets the files of the runs written out
+	 * @return the sorted input if it fit into a single run, in which case no
+	 *   run was written, and null otherwise
+	 */
+	private List<Tuple> sortRuns(DbFileIterator tuples, List<File> runs)
+			throws DbException, IOException, TransactionAbortedException {
+		long runTuples = (long) runPages * maxTuples;
+		BTreeFileEncoder.TupleComparator cmp = new BTreeFileEncoder.TupleComparator(keyField);
+		List<Tuple> run = new ArrayList<>();
+		tuples.open();
+		try {
+			while(tuples.hasNext()) {
+				run.add(tuples.next());
+				if(run.size() >= runTuples) {
+					run.sort(cmp);
+					runs.add(writeRun(run));
+					run.clear();
+				}
+			}
+		} finally {
+			tuples.close();
+		}
+		run.sort(cmp);
+		if(runs.isEmpty()) {
+			return run;
+		}
+		if(!run.isEmpty()) {
+			runs.add(writeRun(run));
+		}
+		return null;
+	}
+
+	private File writeRun(List<Tuple> run) throws IOException {
+		File f = File.createTempFile("btree-run", ".tmp");
+		f.deleteOnExit();
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+			for(Tuple t : run) {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.getField(i).serialize(out);
+				}
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * How many pages to spread n items over, so that each page holds close
+	 * to target items and between min and max of them.  A single page may
+	 * hold fewer than min.
+	 */
+	static int pageCount(int n, int target, int min, int max) {
+		int pages = (n + target - 1) / target;
+		pages = Math.min(pages, Math.max(1, n / Math.max(1, min)));
+		return Math.max(pages, (n + max - 1) / max);
+	}
+
+	/**
+	 * The items of a level spread evenly over its pages: the first
+	 * n % pages pages hold one more than the others.
+	 */
+	static final class Spread {
+		final int n;
+		final int pages;
+		private final int q;
+		private final int r;
+
+		Spread(int n, int pages) {
+			this.n = n;
+			this.pages = pages;
+			this.q = n / pages;
+			this.r = n % pages;
+		}
+
+		/** @return the number of items on a page */
+		int size(int page) {
+			return q + (page < r ? 1 : 0);
+		}
+
+		/** @return the page an item is on */
+		int pageOf(int item) {
+			int big = r * (q + 1);
+			return item < big ? item / (q + 1) : r + (item - big) / q;
+		}
+	}
+
+	/**
+	 * Write the tree for n sorted tuples.
+	 */
+	private void write(TupleSource sorted, int n)
+			throws DbException, IOException {
+		int tableid = bf.getId();
+		// the levels of the tree, from the leaves up, and where each starts
+		List<Spread> levels = new ArrayList<>();
+		levels.add(new Spread(n, pageCount(n, target(maxTuples), maxTuples / 2, maxTuples)));
+		while(levels.get(levels.size() - 1).pages > 1) {
+			int children = levels.get(levels.size() - 1).pages;
+			levels.add(new Spread(children, pageCount(children, target(maxEntries) + 1,
+					maxEntries / 2 + 1, maxEntries + 1)));
+		}
+		int[] base = new int[levels.size() + 1];
+		base[0] = 1;
+		for(int l = 0; l < levels.size(); l++) {
+			base[l + 1] = base[l] + levels.get(l).pages;
+		}
+		int rootNo = base[levels.size()] - 1;
+		// stamped on every page, so recovery replays nothing older onto it
+		long lsn = Database.getLogFile().getNextLsn() - 1;
+		Writer out = new Writer();
+
+		// the leaves, keeping the first key of each for the level above
+		Spread leaves = levels.get(0);
+		Field[] firstKeys = new Field[leaves.pages];
+		int npagebytes = BufferPool.getPageSize();
+		Type[] types = new Type[td.numFields()];
+		for(int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+		for(int p = 0; p < leaves.pages; p++) {
+			List<Tuple> page = new ArrayList<>(leaves.size(p));
+			for(int i = 0; i < leaves.size(p); i++) {
+				page.add(sorted.next());
+			}
+			firstKeys[p] = page.get(0).getField(keyField);
+			BTreePageId pid = new BTreePageId(tableid, base[0] + p, BTreePageId.LEAF);
+			BTreeLeafPage leaf = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(page, npagebytes,
+					types.length, types, keyField), keyField);
+			leaf.setParentId(parentId(levels, base, 0, p));
+			leaf.setLeftSiblingId(p > 0 ? new BTreePageId(tableid, pid.getPageNumber() - 1, BTreePageId.LEAF) : null);
+			leaf.setRightSiblingId(p < leaves.pages - 1 ? new BTreePageId(tableid, pid.getPageNumber() + 1, BTreePageId.LEAF) : null);
+			leaf.setLsn(lsn);
+			out.add(leaf);
+		}
+
+		// the internal levels; a separator key is the first key of the
+		// subtree to its right
+		for(int l = 1; l < levels.size(); l++) {
+			Spread level = levels.get(l);
+			int childCategory = l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			Field[] keys = new Field[level.pages];
+			int child = 0;
+			for(int p = 0; p < level.pages; p++) {
+				keys[p] = firstKeys[child];
+				List<BTreeEntry> entries = new ArrayList<>(level.size(p) - 1);
+				BTreePageId left = new BTreePageId(tableid, base[l - 1] + child, childCategory);
+				for(int i = 1; i < level.size(p); i++) {
+					BTreePageId right = new BTreePageId(tableid, base[l - 1] + child + i, childCategory);
+					entries.add(new BTreeEntry(firstKeys[child + i], left, right));
+					left = right;
+				}
+				child += level.size(p);
+				BTreePageId pid = new BTreePageId(tableid, base[l] + p, BTreePageId.INTERNAL);
+				BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(entries,
+						npagebytes, td.getFieldType(keyField), childCategory), keyField);
+				page.setParentId(parentId(levels, base, l, p));
+				page.setLsn(lsn);
+				out.add(page);
+			}
+			firstKeys = keys;
+		}
+		out.flush();
+		bf.force();
+
+		BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+				BTreeFileEncoder.convertToRootPtrPage(rootNo,
+						levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL, 0));
+		rootPtr.setLsn(lsn);
+		bf.writePage(rootPtr);
+		bf.force();
+	}
+
+	private int target(int capacity) {
+		return Math.max(1, (int) (fillFactor * capacity));
+	}
+
+	/**
+	 * @return the parent of page p of level l: a page of the level above, or
+	 *   the root pointer page for the root
+	 */
+	private BTreePageId parentId(List<Spread> levels, int[] base, int l, int p) {
+		if(l == levels.size() - 1) {
+			return BTreeRootPtrPage.getId(bf.getId());
+		}
+		return new BTreePageId(bf.getId(), base[l + 1] + levels.get(l + 1).pageOf(p), BTreePageId.INTERNAL);
+	}
+
+	/** Collects pages written in file order and writes them in batches. */
+	private class Writer {
+		private final List<Page> batch = new ArrayList<>(WRITE_BATCH);
+
+		void add(Page page) throws IOException {
+			batch.add(page);
+			if(batch.size() == WRITE_BATCH) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			if(!batch.isEmpty()) {
+				bf.writePages(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	/** The sorted input. */
+	private interface TupleSource extends Closeable {
+		Tuple next() throws IOException;
+	}
+
+	private static final class ListSource implements TupleSource {
+		private final List<Tuple> tuples;
+		private int next;
+
+		ListSource(List<Tuple> tuples) {
+			this.tuples = tuples;
+		}
+
+		public Tuple next() {
+			return tuples.get(next++);
+		}
+
+		public void close() {
+		}
+	}
+
+	/** A run being read back, with its current tuple. */
+	private final class Run implements Closeable {
+		private final DataInputStream in;
+		private long remaining;
+		Tuple current;
+
+		Run(File f) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			this.remaining = f.length() / td.getSize();
+			advance();
+		}
+
+		void advance() throws IOException {
+			if(remaining == 0) {
+				current = null;
+				return;
+			}
+			remaining--;
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(in));
+				}
+			} catch (ParseException e) {
+				throw new IOException("corrupt sort run", e);
+			}
+			current = t;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/** Merges the runs, taking the smallest current tuple each time. */
+	private final class MergeSource implements TupleSource {
+		private final List<Run> runs = new ArrayList<>();
+		private final PriorityQueue<Run> heap;
+
+		MergeSource(List<File> files) throws IOException {
+			BTreeFileEncoder.TupleComparator cmp = new BTreeFileEncoder.TupleComparator(keyField);
+			heap = new PriorityQueue<>(Math.max(1, files.size()), (a, b) -> cmp.compare(a.current, b.current));
+			try {
+				for(File f : files) {
+					Run run = new Run(f);
+					runs.add(run);
+					if(run.current != null) {
+						heap.add(run);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public Tuple next() throws IOException {
+			Run run = heap.poll();
+			Tuple t = run.current;
+			run.advance();
+			if(run.current != null) {
+				heap.add(run);
+			}
+			return t;
+		}
+
+		public void close() throws IOException {
+			for(Run run : runs) {
+				run.close();
+			}
+		}
+	}
+}
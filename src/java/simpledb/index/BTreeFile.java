@@ -1,7 +1,11 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -33,6 +37,27 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private final int keyField;
 
+	// opened on first use and kept open for positional reads and writes
+	private volatile FileChannel channel;
+
+	// read leaf and internal pages straight out of a mapping of the file
+	private final boolean memoryMapped;
+
+	// read-only mapping of the file, remapped when the file has grown past it
+	private volatile MappedByteBuffer mapped;
+
+	// LSN of the last log record applied to each page
+	private final PageLsnMap pageLsns;
+
+	// short-lived latches that keep the structure still during a descent or a split
+	private final BTreeLatches latches = new BTreeLatches();
+
+	// optimistic descents that found the tree changing under them
+	private final AtomicLong optimisticFallbacks = new AtomicLong();
+
+	// give up on an optimistic descent this deep: it followed a stale pointer
+	private static final int MAX_DEPTH = 64;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -42,10 +67,41 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally
+	 * reading pages through a memory mapping of it. In memory-mapped mode
+	 * leaf and internal pages are decoded directly from the mapped region
+	 * instead of being copied into a byte array first; writes still go
+	 * through the file channel.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param memoryMapped - true to read pages through a memory mapping
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean memoryMapped) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.memoryMapped = memoryMapped;
+		// the root pointer page is page 0; side files of an earlier file of
+		// the same name go
+		long length = f.length();
+		int numPages = length == 0 ? 0
+				: 1 + (int) (Math.max(0, length - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+		this.pageLsns = new PageLsnMap(f, numPages);
+	}
+
+	/**
+	 * @return true if pages of this file are read through a memory mapping
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
 	}
 
 	/**
@@ -86,51 +142,160 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
+		ByteBuffer mappedBuf;
+		Page page;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
+                readFully(pageBuf, 0);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
+                page = new BTreeRootPtrPage(id, pageBuf);
+            } else if (memoryMapped && id.pgcateg() != BTreePageId.HEADER
+                    && (mappedBuf = mappedRegion(pageOffset(id.getPageNumber()), BufferPool.getPageSize())) != null) {
+                Debug.log(1, "BTreeFile.readPage: mapped page %d", id.getPageNumber());
+                if (id.pgcateg() == BTreePageId.INTERNAL) {
+                    page = new BTreeInternalPage(id, mappedBuf, keyField);
+                } else {
+                    page = new BTreeLeafPage(id, mappedBuf, keyField);
+                }
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
+                readFully(pageBuf, pageOffset(id.getPageNumber()));
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    page = new BTreeInternalPage(id, pageBuf, keyField);
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
+                    page = new BTreeLeafPage(id, pageBuf, keyField);
                 } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
+                    page = new BTreeHeaderPage(id, pageBuf);
                 }
             }
+            page.setLsn(pageLsns.get(id.getPageNumber()));
+            return page;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
     }
 
+	/**
+	 * Returns the channel of the backing file, opening it on first use, and
+	 * again if a thread interrupted during I/O on it closed it.
+	 */
+	private FileChannel channel() throws IOException {
+		FileChannel ch = channel;
+		if(ch == null || !ch.isOpen()) {
+			synchronized(this) {
+				ch = channel;
+				if(ch == null || !ch.isOpen()) {
+					ch = new RandomAccessFile(f, "rw").getChannel();
+					channel = ch;
+				}
+			}
+		}
+		return ch;
+	}
+
+	/**
+	 * @return the file offset of the given (non root pointer) page
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Fill buf from the file starting at offset with positional reads.
+	 * @throws IllegalArgumentException if the file ends before buf is full
+	 */
+	private void readFully(byte[] buf, long offset) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		FileChannel ch = channel();
+		while(bb.hasRemaining()) {
+			if(ch.read(bb, offset + bb.position()) < 0) {
+				throw new IllegalArgumentException("Unable to read "
+						+ buf.length + " bytes from BTreeFile at offset " + offset);
+			}
+		}
+	}
+
+	/**
+	 * Returns a buffer over len bytes of the mapping starting at offset,
+	 * mapping the file again if it has grown past the current mapping.
+	 * @return the region, or null if it lies beyond the end of the file or
+	 *         the file is too large to map as a whole
+	 */
+	private ByteBuffer mappedRegion(long offset, int len) throws IOException {
+		MappedByteBuffer m = mapped;
+		if(m == null || offset + len > m.capacity()) {
+			synchronized(this) {
+				m = mapped;
+				if(m == null || offset + len > m.capacity()) {
+					long size = channel().size();
+					if(offset + len > size || size > Integer.MAX_VALUE) {
+						return null;
+					}
+					m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+					mapped = m;
+				}
+			}
+		}
+		// duplicate() so that concurrent readers do not share a position
+		ByteBuffer region = m.duplicate();
+		region.position((int) offset);
+		region.limit((int) offset + len);
+		return region.slice();
+	}
+
+	/**
+	 * Write data to the file at offset with positional writes.
+	 */
+	private void writeFully(byte[] data, long offset) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		FileChannel ch = channel();
+		while(bb.hasRemaining()) {
+			ch.write(bb, offset + bb.position());
+		}
+	}
+
+	/**
+	 * Write buffers back to back from offset on with gathering writes.  These
+	 * go through the channel's position, so they are serialized on the
+	 * channel; the positional reads and writes used elsewhere are unaffected.
+	 */
+	private void writeFully(ByteBuffer[] bufs, long offset) throws IOException {
+		long left = 0;
+		for(ByteBuffer b : bufs) {
+			left += b.remaining();
+		}
+		FileChannel ch = channel();
+		synchronized(ch) {
+			ch.position(offset);
+			while(left > 0) {
+				left -= ch.write(bufs);
+			}
+		}
+	}
+
+	/**
+	 * Create a page of this file from its serialized bytes
+	 * 
+	 * @param pid - the id of the page
+	 * @param data - the bytes of the page, as returned by getPageData()
+	 */
+	public Page makePage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		switch (id.pgcateg()) {
+		case BTreePageId.ROOT_PTR:
+			return new BTreeRootPtrPage(id, data);
+		case BTreePageId.INTERNAL:
+			return new BTreeInternalPage(id, data, keyField);
+		case BTreePageId.LEAF:
+			return new BTreeLeafPage(id, data, keyField);
+		default:
+			return new BTreeHeaderPage(id, data);
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -141,15 +306,32 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			writeFully(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			writeFully(data, pageOffset(page.getId().getPageNumber()));
+		}
+		// after the page, so the recorded LSN never runs ahead of it
+		pageLsns.set(id.getPageNumber(), page.getLsn());
+	}
+
+	/**
+	 * Write pages that are adjacent in the file with a single gathering
+	 * write.  The root pointer page is at the start of the file, right
+	 * before page 1, so it can lead a run.
+	 * 
+	 * @param pages - the pages to write, with consecutive page numbers
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		ByteBuffer[] bufs = new ByteBuffer[pages.size()];
+		for(int i = 0; i < bufs.length; i++) {
+			bufs[i] = ByteBuffer.wrap(pages.get(i).getPageData());
+		}
+		BTreePageId first = (BTreePageId) pages.get(0).getId();
+		writeFully(bufs, first.pgcateg() == BTreePageId.ROOT_PTR ? 0 : pageOffset(first.getPageNumber()));
+		for(Page page : pages) {
+			pageLsns.set(page.getId().getPageNumber(), page.getLsn());
 		}
 	}
 	
@@ -158,7 +340,41 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((channel().size() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Force everything written to this file out to the disk.
+	 */
+	void force() throws IOException {
+		channel().force(false);
+	}
+
+	/**
+	 * Force the pages written so far to disk, including the root pointer and
+	 * header pages, and then their LSNs.
+	 */
+	public void sync() throws IOException {
+		pageLsns.sync(channel());
+	}
+
+	/**
+	 * @return the length of the file in bytes
+	 */
+	private long fileLength() throws IOException {
+		return channel().size();
+	}
+
+	/**
+	 * Successor function for read-ahead over the leaf level: the right
+	 * sibling of a leaf page, or null for the right-most leaf
+	 */
+	static PageId rightSiblingOf(Page page) {
+		return ((BTreeLeafPage) page).getRightSiblingId();
 	}
 
 	/**
@@ -169,16 +385,25 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. The internal nodes
+	 * along the path are not locked, so descents run concurrently with each other
+	 * and with splits of other nodes. Only the leaf node is locked, with
+	 * permission perm.
+	 * 
+	 * The descent is tried optimistically first, without any latches; see
+	 * findLeafPageOptimistic(). If the tree changed under it, the internal nodes
+	 * are latched in shared mode instead, each one until its child is latched
+	 * (latch crabbing). The leaf is locked while it is latched if its lock is
+	 * free. Otherwise the latches are let go of before waiting for the lock, and
+	 * the descent starts over once it is granted, since the tree may have changed
+	 * meanwhile.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
+	 * @param pid - the page to start from: the root pointer page or the root page
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
@@ -187,8 +412,189 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		BTreeLeafPage optimistic = findLeafPageOptimistic(tid, dirtypages, pid, perm, f);
+		if(optimistic != null) {
+			return optimistic;
+		}
+		optimisticFallbacks.incrementAndGet();
+		while(true) {
+			BTreePageId leafId;
+			try(BTreeLatches.Path path = latches.path(tid)) {
+				path.shared(pid);
+				Page page = getLatchedPage(dirtypages, pid);
+				while(!(page instanceof BTreeLeafPage)) {
+					BTreePageId child = childFor(page, f);
+					path.shared(child);
+					path.releaseAncestors();
+					page = getLatchedPage(dirtypages, child);
+				}
+				leafId = (BTreePageId) page.getId();
+				Page leaf = tryGetPage(tid, dirtypages, leafId, perm);
+				if(leaf != null) {
+					return (BTreeLeafPage) leaf;
+				}
+			}
+			// if the next descent ends elsewhere, this lock is kept; that
+			// is safe under two-phase locking, just less concurrent
+			Database.getBufferPool().getPage(tid, leafId, perm);
+		}
+	}
+
+	/**
+	 * Find and lock the leaf page like findLeafPage(), without latching or locking
+	 * the pages above it. The version of each page is read before the page is,
+	 * and checked again once the child to go to is known, and the versions of all
+	 * pages on the way down, and of the tree, are checked once more after the leaf
+	 * is locked. Each page must also still be the one cached: an aborted split is
+	 * undone by dropping the changed pages from the buffer pool, which does not
+	 * move the versions on. Any change, and any lock that is not free at once,
+	 * makes the descent give up.
+	 * 
+	 * @return the leaf page, locked with perm, or null if the caller should
+	 * descend again with latches
+	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid,
+			Permissions perm, Field f) throws DbException, TransactionAbortedException {
+		long treeVersion = latches.treeVersion();
+		List<Page> pages = new ArrayList<>();
+		List<Long> versions = new ArrayList<>();
+		try {
+			BTreePageId id = pid;
+			long version = latches.version(id);
+			Page page = getLatchedPage(dirtypages, id);
+			while(!(page instanceof BTreeLeafPage)) {
+				BTreePageId child = childFor(page, f);
+				if(!latches.validate(id, version) || pages.size() == MAX_DEPTH) {
+					return null;
+				}
+				pages.add(page);
+				versions.add(version);
+				id = child;
+				version = latches.version(id);
+				page = getLatchedPage(dirtypages, id);
+			}
+			if(!latches.validate(id, version)) {
+				return null;
+			}
+			Page leaf = tryGetPage(tid, dirtypages, id, perm);
+			if(leaf == null) {
+				return null;
+			}
+			// locked now: if anything changed, the latched descent starts over
+			// with the lock held, which is safe, just less concurrent
+			pages.add(leaf);
+			versions.add(version);
+			for(int i = 0; i < pages.size(); i++) {
+				BTreePageId p = (BTreePageId) pages.get(i).getId();
+				if(!latches.validate(p, versions.get(i)) || getLatchedPage(dirtypages, p) != pages.get(i)) {
+					return null;
+				}
+			}
+			return latches.validateTree(treeVersion) ? (BTreeLeafPage) leaf : null;
+		} catch (RuntimeException e) {
+			// read a page while it was changing, e.g. followed a pointer to a page
+			// that has been reused as another kind of page
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of descents that tried to find a leaf page without
+	 * latches and had to latch after all, because the tree changed or the leaf
+	 * was locked by another transaction
+	 */
+	public long getOptimisticFallbacks() {
+		return optimisticFallbacks.get();
+	}
+
+	/**
+	 * @return the child of an internal or root pointer page to descend to for
+	 * the left-most leaf page possibly containing f, or the left-most leaf if f
+	 * is null
+	 */
+	private BTreePageId childFor(Page page, Field f) {
+		if(page instanceof BTreeRootPtrPage) {
+			BTreePageId root = ((BTreeRootPtrPage) page).getRootId();
+			// a new tree: the empty leaf written with the root pointer page
+			return root != null ? root : new BTreePageId(tableid, 1, BTreePageId.LEAF);
+		}
+		BTreeEntry e = null;
+		Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Fetch a page that the caller holds a latch on, without locking it. The
+	 * latch keeps it from changing while it is looked at.
+	 */
+	private Page getLatchedPage(Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().getPage(null, pid, Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Like getPage(), but without waiting for the lock.
+	 * @return the page, or null if another transaction holds a conflicting lock
+	 * @see #getPage(TransactionId, Map, BTreePageId, Permissions)
+	 */
+	private Page tryGetPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+		if(p != null && perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Find and lock the leaf page for a new tuple with key field f when the leaf
+	 * page found first was full, and split it. The path from the root pointer
+	 * page down is latched exclusively, and the latches above an internal node
+	 * with an empty slot are let go of again, since the split stops there; so
+	 * only the nodes that are split stay latched while it runs.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the key field of the tuple to be inserted
+	 * @return the leaf page into which the new tuple should be inserted
+	 * @see #splitLeafPage(TransactionId, Map, BTreeLeafPage, Field)
+	 */
+	private BTreeLeafPage splitForInsert(TransactionId tid, Map<PageId, Page> dirtypages, Field f)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		while(true) {
+			BTreePageId leafId;
+			try(BTreeLatches.Path path = latches.path(tid)) {
+				path.exclusive(rootPtrId);
+				Page page = getLatchedPage(dirtypages, rootPtrId);
+				while(!(page instanceof BTreeLeafPage)) {
+					BTreePageId child = childFor(page, f);
+					path.exclusive(child);
+					page = getLatchedPage(dirtypages, child);
+					if(page instanceof BTreeInternalPage && ((BTreeInternalPage) page).getNumEmptySlots() > 0) {
+						path.releaseAncestors();
+					}
+				}
+				leafId = (BTreePageId) page.getId();
+				BTreeLeafPage leaf = (BTreeLeafPage) tryGetPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+				if(leaf != null) {
+					// another transaction may have split it meanwhile
+					return leaf.getNumEmptySlots() > 0 ? leaf : splitLeafPage(tid, dirtypages, leaf, f);
+				}
+			}
+			Database.getBufferPool().getPage(tid, leafId, Permissions.READ_WRITE);
+		}
 	}
 	
 	/**
@@ -231,16 +637,37 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		List<Tuple> moved = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = page.getNumTuples() / 2; i > 0 && it.hasNext(); i--) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+		Field key = newPage.iterator().next().getField(keyField);
+
+		// link the new page in on the right of the page
+		BTreePageId rightId = page.getRightSiblingId();
+		newPage.setLeftSiblingId(page.getId());
+		newPage.setRightSiblingId(rightId);
+		page.setRightSiblingId(newPage.getId());
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+
+		// copy the first key of the new page up into the parent
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, key) ? newPage : page;
 	}
 	
 	/**
@@ -268,16 +695,32 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, largest first, so
+		// that each one shares its right child with the one inserted before
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = page.getNumEntries() / 2; i > 0 && it.hasNext(); i--) {
+			moved.add(it.next());
+		}
+		BTreeEntry middle = it.next();
+		for(BTreeEntry e : moved) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		// the right child of the middle entry is the left-most child of the new page
+		page.deleteKeyAndRightChild(middle);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		// push the middle key up into the parent
+		Field key = middle.getKey();
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, key) ? newPage : page;
 	}
 	
 	/**
@@ -427,21 +870,26 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
+		// read the root pointer page and use it to locate the root page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		BTreePageId rootPtrId = rootPtr.getId();
+
+		if(rootPtr.getRootId() == null) {
+			try(BTreeLatches.Path path = latches.path(tid)) {
+				path.exclusive(rootPtrId);
+				// the root has just been created, so set the root pointer to point to it
+				if(((BTreeRootPtrPage) getLatchedPage(dirtypages, rootPtrId)).getRootId() == null) {
+					rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+					rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+				}
+			}
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitForInsert(tid, dirtypages, t.getField(keyField));
 		}
 
 		// insert the tuple into the leaf page
@@ -449,7 +897,42 @@ public class BTreeFile implements DbFile {
 
         return new ArrayList<>(dirtypages.values());
 	}
-	
+
+	/**
+	 * Load an empty B+ tree with tuples in any order, e.g. those of an
+	 * existing table, building it bottom-up from the sorted tuples rather
+	 * than inserting them one at a time.  The whole file is locked
+	 * exclusively for tid, so others wait until tid completes.  The pages are
+	 * written straight to disk and not logged, so they stay if tid aborts.
+	 *
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to load, with the TupleDesc of this file
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @return the number of tuples loaded
+	 * @see BTreeBulkLoader
+	 *
+	 * @throws DbException if the tree is not empty
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public long bulkLoad(TransactionId tid, DbFileIterator tuples, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().lockTable(tid, tableid, Permissions.READ_WRITE);
+		long n = new BTreeBulkLoader(this, fillFactor, BTreeBulkLoader.DEFAULT_RUN_PAGES).load(tuples);
+		// drop what descents cached of the empty tree, and send optimistic
+		// descents in progress back to the start
+		BTreeLatches.Exclusive tree = latches.exclusive(tid);
+		try {
+			for(int pgNo = 0; pgNo <= numPages(); pgNo++) {
+				Database.getBufferPool().discardPage(new BTreePageId(tableid, pgNo,
+						pgNo == 0 ? BTreePageId.ROOT_PTR : BTreePageId.LEAF));
+			}
+		} finally {
+			tree.close();
+		}
+		return n;
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -564,11 +1047,21 @@ public class BTreeFile implements DbFile {
 	 */
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// take the tuples nearest to the page, until both hold half
+		int toMove = sibling.getNumTuples() - (page.getNumTuples() + sibling.getNumTuples()) / 2;
+		List<Tuple> moved = new ArrayList<>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while(moved.size() < toMove && it.hasNext()) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(right.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -643,11 +1136,26 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int toMove = leftSibling.getNumEntries() - (page.getNumEntries() + leftSibling.getNumEntries()) / 2;
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		while(moved.size() < toMove && it.hasNext()) {
+			moved.add(it.next());
+		}
+
+		// rotate the keys through the parent: its key comes down in front of the
+		// page's entries, and the last key of the left sibling goes up
+		BTreePageId child = page.iterator().next().getLeftChild();
+		Field key = parentEntry.getKey();
+		for(BTreeEntry e : moved) {
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(key, e.getRightChild(), child));
+			child = e.getRightChild();
+			key = e.getKey();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -670,11 +1178,26 @@ public class BTreeFile implements DbFile {
 	public void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int toMove = rightSibling.getNumEntries() - (page.getNumEntries() + rightSibling.getNumEntries()) / 2;
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		while(moved.size() < toMove && it.hasNext()) {
+			moved.add(it.next());
+		}
+
+		// rotate the keys through the parent: its key comes down after the
+		// page's entries, and the first key of the right sibling goes up
+		BTreePageId child = page.reverseIterator().next().getRightChild();
+		Field key = parentEntry.getKey();
+		for(BTreeEntry e : moved) {
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(key, child, e.getLeftChild()));
+			child = e.getLeftChild();
+			key = e.getKey();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -699,12 +1222,26 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		List<Tuple> moved = new ArrayList<>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightId);
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -731,13 +1268,23 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moved.add(it.next());
+		}
+
+		// pull the parent key down between the entries of the two pages
+		BTreePageId leftChild = leftPage.reverseIterator().next().getRightChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), leftChild, moved.get(0).getLeftChild()));
+		for(BTreeEntry e : moved) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -767,7 +1314,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -808,18 +1355,25 @@ public class BTreeFile implements DbFile {
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
+		// or merge with one of the siblings. This walks up the parent pointers, so
+		// it cannot latch top-down like a split: it holds the whole tree instead
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			BTreeLatches.Exclusive tree = latches.exclusive(tid);
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				tree.close();
+			}
 		}
 
         return new ArrayList<>(dirtypages.values());
 	}
 
 	/**
-	 * Get a read lock on the root pointer page. Create the root pointer page and root page
-	 * if necessary.
+	 * Get the root pointer page, without locking it: descents latch it instead, and
+	 * the transactions that change it lock it for writing. Create the root pointer
+	 * page and root page if necessary.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages 
@@ -830,20 +1384,14 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(fileLength() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				writeFully(BTreeRootPtrPage.createEmptyPageData(), 0);
+				writeFully(BTreeLeafPage.createEmptyPageData(), pageOffset(1));
 			}
 		}
 
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		return (BTreeRootPtrPage) getLatchedPage(dirtypages, BTreeRootPtrPage.getId(tableid));
 	}
 
 	/**
@@ -894,12 +1442,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				emptyPageNo = numPages() + 1;
+				writeFully(BTreeInternalPage.createEmptyPageData(), pageOffset(emptyPageNo));
 			}
 		}
 
@@ -929,10 +1473,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		writeFully(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1062,6 +1603,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// follows the right sibling pointers ahead of the scan; null if read-ahead is off
+	ReadAhead.Stream readAhead = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1080,10 +1623,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curp = f.findLeafPage(tid, BTreeRootPtrPage.getId(f.getId()), null);
+		readAhead = Database.getBufferPool().readAheadStream(BTreeFile::rightSiblingOf);
+		if (readAhead != null)
+			readAhead.accessed(curp);
 		it = curp.iterator();
 	}
 
@@ -1106,6 +1649,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if (readAhead != null)
+					readAhead.accessed(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1132,6 +1677,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		readAhead = null;
 	}
 }
 
@@ -1143,6 +1689,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// follows the right sibling pointers ahead of the scan; null if read-ahead is off
+	ReadAhead.Stream readAhead = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1165,16 +1713,17 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, rootPtrId, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, rootPtrId, null);
 		}
+		readAhead = Database.getBufferPool().readAheadStream(BTreeFile::rightSiblingOf);
+		if (readAhead != null)
+			readAhead.accessed(curp);
 		it = curp.iterator();
 	}
 
@@ -1215,6 +1764,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if (readAhead != null)
+					readAhead.accessed(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1236,5 +1787,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		readAhead = null;
 	}
 }
@@ -1,6 +1,7 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.common.Database;
@@ -621,6 +622,9 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if (BTreeInternalPage.isCompact(keyType)) {
+			return convertToCompactInternalPage(entries, npagebytes, childPageCategory);
+		}
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -694,6 +698,35 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the compact format of a
+	 * BTreeInternalPage, for string keys
+	 * 
+	 * @see BTreeInternalPage#writeCompact
+	 */
+	private static byte[] convertToCompactInternalPage(List<BTreeEntry> entries, int npagebytes,
+			int childPageCategory) {
+		int nslots = BTreeInternalPage.compactSlots();
+		byte[] header = new byte[(nslots + 7) / 8];
+		Field[] keys = new Field[nslots];
+		int[] children = new int[nslots];
+
+		entries.sort(new EntryComparator());
+		int entrycount = Math.min(entries.size(), nslots - 1);
+		for (int e = 0; e <= entrycount; e++) {
+			header[e / 8] |= (byte) (1 << (e % 8));
+		}
+		children[0] = entries.get(0).getLeftChild().getPageNumber();
+		for (int e = 0; e < entrycount; e++) {
+			keys[e + 1] = entries.get(e).getKey();
+			children[e + 1] = entries.get(e).getRightChild().getPageNumber();
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(npagebytes);
+		BTreeInternalPage.writeCompact(buf, 0, childPageCategory, header, keys, children);
+		return buf.array();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -7,6 +7,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Page;
+import simpledb.storage.PageLayout;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
@@ -23,6 +24,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn; // of the last log record applied to this page
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -129,6 +131,13 @@ public class BTreeHeaderPage implements Page {
 		return pid;
 	}
 
+	/**
+	 * The next and previous pointers, then one bit per page of the file.
+	 */
+	public PageLayout getLayout() {
+		return new PageLayout(BufferPool.getPageSize(), 2 * INDEX_SIZE, 2 * INDEX_SIZE, numSlots);
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -263,6 +272,14 @@ public class BTreeHeaderPage implements Page {
 		if (dirty) this.dirtier = tid;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
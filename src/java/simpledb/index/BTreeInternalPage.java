@@ -2,6 +2,7 @@ package simpledb.index;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
@@ -12,11 +13,20 @@ import simpledb.common.Debug;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.PageLayout;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages of a tree keyed on a string field are stored in a compact format (see
+ * {@link #writeCompact}): each key takes only as many bytes as it is long,
+ * less the prefix it shares with the key before it.  How many entries such a
+ * page holds depends on its keys, so it has many more slots than a full page
+ * of the longest keys would need, and its number of empty slots is the number
+ * of entries of any length that still fit into the bytes left.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -27,9 +37,16 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+	// keys take their length less the prefix shared with the key before
+	private final boolean compact;
 	
 	private int childCategory; // either leaf or internal
 
+	// bytes a compact entry takes at least and at most: lengths of the shared
+	// prefix and of the rest of the key, the rest of the key, child pointer
+	private static final int MIN_COMPACT_ENTRY = 2 + INDEX_SIZE;
+	private static final int MAX_COMPACT_ENTRY = 2 + Type.STRING_LEN + INDEX_SIZE;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -43,7 +60,7 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
 	}
 	
 	/**
@@ -71,55 +88,180 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+		setBeforeImage();
+	}
+
+	/**
+	 * Create a BTreeInternalPage directly over a buffer holding the page, such
+	 * as a region of a memory-mapped BTreeFile, without copying it. The buffer
+	 * must keep the on-disk contents of the page until the page is first
+	 * dirtied or its before image is requested.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page, starting at byte 0 of the buffer
+	 * @param key - the field which the index is keyed on
+	 */
+	public BTreeInternalPage(BTreePageId id, ByteBuffer data, int key) {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		this.compact = isCompact(td.getFieldType(keyField));
+		this.numSlots = compact ? compactSlots() : getMaxEntries() + 1;
 
 		// Read the parent pointer
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = data.getInt(0);
 
 		// read the child page category
-		childCategory = dis.readByte();
+		childCategory = data.get(INDEX_SIZE);
 
 		// allocate and read the header slots of this page
+		int offset = INDEX_SIZE + 1;
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+			header[i] = data.get(offset++);
 
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		if (compact) {
+			readCompact(data, offset);
+			this.source = data;
+			return;
 		}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		// allocate and read the keys of this page
+		// start from 1 because the first key slot is not used
+		// since a node with m keys has m+1 pointers
+		Type keyType = td.getFieldType(keyField);
+		keys[0] = null;
+		for (int i=1; i<keys.length; i++) {
+			if (isSlotUsed(i))
+				keys[i] = keyType.parse(data, offset);
+			offset += keyType.getLen();
 		}
-		dis.close();
 
-		setBeforeImage();
+		// allocate and read the child pointers of this page
+		for (int i=0; i<children.length; i++) {
+			children[i] = isSlotUsed(i) ? data.getInt(offset) : -1;
+			offset += INDEX_SIZE;
+		}
+
+		this.source = data;
+	}
+
+	/**
+	 * Read the entries of a page in the compact format, from the given offset
+	 * past the header.
+	 * @see #writeCompact
+	 */
+	private void readCompact(ByteBuffer data, int offset) {
+		Arrays.fill(children, -1);
+		if (isSlotUsed(0)) {
+			children[0] = data.getInt(offset);
+			offset += INDEX_SIZE;
+		}
+		String prev = "";
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			int shared = data.get(offset) & 0xFF;
+			byte[] rest = new byte[data.get(offset + 1) & 0xFF];
+			offset += 2;
+			for (int j=0; j<rest.length; j++)
+				rest[j] = data.get(offset++);
+			prev = prev.substring(0, shared) + new String(rest);
+			keys[i] = new StringField(prev, Type.STRING_LEN);
+			children[i] = data.getInt(offset);
+			offset += INDEX_SIZE;
+		}
+	}
+
+	/**
+	 * @return true if internal pages of a tree keyed on this type are stored
+	 * in the compact format
+	 */
+	static boolean isCompact(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return the number of slots of a page in the compact format: enough for
+	 * a page full of the shortest entries
+	 */
+	static int compactSlots() {
+		// as for fixed size entries below, with entries of the smallest size
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		return (BufferPool.getPageSize()*8 - extraBits) / (MIN_COMPACT_ENTRY * 8 + 1) + 1;
+	}
+
+	/**
+	 * Write a page in the compact format: the parent pointer, the child page
+	 * category and the header as usual, then the child pointer of slot 0, then
+	 * for every other slot in use, in order, the length of the prefix its key
+	 * shares with the key before it (one byte), the length of the rest of the
+	 * key (one byte), the rest of the key, and the child pointer.
+	 * <p>
+	 * As keys are in order, a key inserted between two others shares at least
+	 * as long a prefix with the next key as the key before it did, so an
+	 * insert takes at most MAX_COMPACT_ENTRY bytes, and a delete never makes
+	 * the page longer.
+	 *
+	 * @param buf - where to write the page, or null to count its bytes only
+	 * @return the number of bytes the page takes up
+	 */
+	static int writeCompact(ByteBuffer buf, int parent, int childCategory,
+			byte[] header, Field[] keys, int[] children) {
+		int size = INDEX_SIZE + 1 + header.length;
+		if (buf != null) {
+			buf.putInt(parent);
+			buf.put((byte) childCategory);
+			buf.put(header);
+		}
+		if ((header[0] & 1) != 0) {
+			if (buf != null)
+				buf.putInt(children[0]);
+			size += INDEX_SIZE;
+		}
+		String prev = "";
+		for (int i=1; i<keys.length; i++) {
+			if ((header[i / 8] & (1 << (i % 8))) == 0)
+				continue;
+			String s = ((StringField) keys[i]).getValue();
+			if (s.length() > Type.STRING_LEN)
+				s = s.substring(0, Type.STRING_LEN);
+			int shared = 0;
+			int max = Math.min(prev.length(), s.length());
+			while (shared < max && prev.charAt(shared) == s.charAt(shared))
+				shared++;
+			if (buf != null) {
+				buf.put((byte) shared);
+				buf.put((byte) (s.length() - shared));
+				// the low byte of each char, like StringField.serialize
+				for (int j=shared; j<s.length(); j++)
+					buf.put((byte) s.charAt(j));
+				buf.putInt(children[i]);
+			}
+			size += 2 + s.length() - shared + INDEX_SIZE;
+			prev = s;
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes this page takes up in the compact format
+	 */
+	private int compactSize() {
+		return writeCompact(null, parent, childCategory, header, keys, children);
 	}
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
+		if (isCompact(td.getFieldType(keyField))) {
+			// entries of the longest keys; it holds more if they are shorter
+			int fixedSize = 2 * INDEX_SIZE + 1 + (compactSlots() + 7) / 8;
+			return (BufferPool.getPageSize() - fixedSize) / MAX_COMPACT_ENTRY;
+		}
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -133,7 +275,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -145,10 +287,7 @@ public class BTreeInternalPage extends BTreePage {
 	public BTreeInternalPage getBeforeImage(){
 		try {
 			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
+			oldDataRef = beforeImageData();
 			return new BTreeInternalPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -162,66 +301,27 @@ public class BTreeInternalPage extends BTreePage {
 		synchronized(oldDataLock)
 		{
 			oldData = getPageData().clone();
+			source = null;
 		}
 	}
 
 	/**
-	 * Read keys from the source file.
-	 */
-	private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next key, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty key");
-				}
-			}
-			return null;
-		}
-
-		// read the key field
-		Field f = null;
-		try {
-			f = td.getFieldType(keyField).parse(dis);
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
-
-		return f;
-	}
-
-	/**
-	 * Read child pointers from the source file.
+	 * The parent pointer and child category, then the header bitmap, the keys
+	 * (which start at slot 1) and the child pointers.
 	 */
-	private int readNextChild(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next child pointer, and
-		// return -1.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<INDEX_SIZE; i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty child pointer");
-				}
-			}
-			return -1;
+	public PageLayout getLayout() {
+		if (compact) {
+			// entries move as keys before them change: changes are logged as
+			// the range of bytes that differs
+			return PageLayout.unslotted(BufferPool.getPageSize());
 		}
-
-		// read child pointer
-		int child = -1;
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			child = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
-
-		return child;
+		int headerOffset = INDEX_SIZE + 1;
+		int keySize = td.getFieldType(keyField).getLen();
+		int keysOffset = headerOffset + header.length;
+		int childrenOffset = keysOffset + keySize * (numSlots - 1);
+		return new PageLayout(BufferPool.getPageSize(), headerOffset, headerOffset, numSlots)
+				.addRegion(keysOffset - keySize, keySize, 1)
+				.addRegion(childrenOffset, INDEX_SIZE, 0);
 	}
 
 	/**
@@ -237,6 +337,11 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public byte[] getPageData() {
 		int len = BufferPool.getPageSize();
+		if (compact) {
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			writeCompact(buf, parent, childCategory, header, keys, children);
+			return buf.array();
+		}
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
@@ -414,6 +519,7 @@ public class BTreeInternalPage extends BTreePage {
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
 		
+		int leftSlot = -1;
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
 				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
@@ -429,12 +535,28 @@ public class BTreeInternalPage extends BTreePage {
 					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
 							" HINT: updated key must be greater than or equal to keys on the left");
 				}
-				children[i] = e.getLeftChild().getPageNumber();
+				leftSlot = i;
 				break;
 			}	
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
+		int slot = rid.getTupleNumber();
+		Field oldKey = keys[slot];
+		int oldLeft = leftSlot >= 0 ? children[leftSlot] : -1;
+		int oldRight = children[slot];
+		if(leftSlot >= 0) {
+			children[leftSlot] = e.getLeftChild().getPageNumber();
+		}
+		children[slot] = e.getRightChild().getPageNumber();
+		keys[slot] = e.getKey();
+		if(compact && compactSize() > BufferPool.getPageSize()) {
+			// a longer key, or one that shares less with its neighbours
+			keys[slot] = oldKey;
+			children[slot] = oldRight;
+			if(leftSlot >= 0) {
+				children[leftSlot] = oldLeft;
+			}
+			throw new DbException("updated key " + e.getKey() + " does not fit on the page");
+		}
 	}
 
 	/**
@@ -461,7 +583,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -480,7 +602,7 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
-		if (emptySlot == -1)
+		if (emptySlot == -1 || getNumEmptySlots() == 0)
 			throw new DbException("called insertEntry on page with no empty slots.");        
 
 		// find the child pointer matching the left or right child in this entry
@@ -566,13 +688,23 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - getNumUnusedSlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page.  On a page in the
+	 * compact format, this is no more than the number of the longest entries
+	 * that fit into the bytes left.
 	 */
 	public int getNumEmptySlots() {
+		int cnt = getNumUnusedSlots();
+		if (compact) {
+			cnt = Math.min(cnt, (BufferPool.getPageSize() - compactSize()) / MAX_COMPACT_ENTRY);
+		}
+		return cnt;
+	}
+
+	private int getNumUnusedSlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -582,6 +714,14 @@ public class BTreeInternalPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * @return the number of slots on this page, including slot 0, which has
+	 * a child pointer but no key
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -745,7 +885,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -0,0 +1,260 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Short-lived latches on the pages of one BTreeFile, separate from the
+ * transaction locks of the lock manager.  A latch keeps the structure of the
+ * tree still while a thread looks at or changes a page; it is held for one
+ * step of a descent or for one split, never until the transaction commits.
+ * <p>
+ * Latches are taken top-down, from the root pointer page to a leaf, with
+ * latch crabbing: a thread latches a child before it lets go of the parent
+ * (see {@link Path}).  Readers latch in shared mode.  A writer latches the
+ * nodes on its path exclusively, and lets go of all of them above a node that
+ * cannot split, so only the nodes that are actually split stay latched.
+ * <p>
+ * Besides the page latches there is one latch for the whole tree.  Every
+ * descent holds it in shared mode; merges and redistributions, which walk up
+ * the parent pointers and so cannot latch top-down, hold it exclusively.
+ * <p>
+ * Each page latch, and the tree latch, has a version that goes up by one
+ * when it is taken exclusively and again when it is let go of, so it is odd
+ * while a writer holds it.  A reader can descend without latching at all and
+ * check afterwards that the versions of the pages it went through have not
+ * changed (see {@link #version} and {@link #validate}).
+ * <p>
+ * A thread that holds latches may still wait for a transaction lock, e.g.
+ * while a split locks the pages it changes.  So a thread that waits for a
+ * latch adds edges to the transactions holding it to the waits-for graph of
+ * the lock manager, and a deadlock between latches and locks aborts it like
+ * any other (see {@link simpledb.transaction.LockManager#waitOutside}).
+ * Latches alone cannot deadlock, since they are taken top-down; a latch that
+ * is not granted within a timeout while its holders are not waiting for a
+ * lock means it was not let go of, and throws DbException.  The timeout
+ * can be set with the system property
+ * simpledb.index.BTreeLatches.timeoutMillis (default 10000).
+ */
+class BTreeLatches {
+
+	static final String TIMEOUT_PROPERTY = "simpledb.index.BTreeLatches.timeoutMillis";
+
+	private static final long timeoutMillis = Long.getLong(TIMEOUT_PROPERTY, 10000);
+
+	// how often a waiter looks at who holds the latch it waits for
+	private static final long POLL_MILLIS = 50;
+
+	/** A page or tree latch with its version and the transactions holding it. */
+	private static final class Latch extends ReentrantReadWriteLock {
+		private static final long serialVersionUID = 1L;
+
+		final AtomicLong version = new AtomicLong();
+		// how many times each transaction holds it
+		final ConcurrentHashMap<TransactionId, Integer> holders = new ConcurrentHashMap<>();
+	}
+
+	// by page number: a page that is reused as a different page category
+	// keeps its latch; pages are never dropped, there are few enough
+	private final ConcurrentHashMap<Integer, Latch> latches = new ConcurrentHashMap<>();
+
+	private final Latch tree = new Latch();
+
+	private Latch latch(BTreePageId pid) {
+		return latches.computeIfAbsent(pid.getPageNumber(), n -> new Latch());
+	}
+
+	/**
+	 * @return the version of the latch of a page; odd while it is held
+	 * exclusively
+	 */
+	long version(BTreePageId pid) {
+		return latch(pid).version.get();
+	}
+
+	/**
+	 * @return the version of the tree latch; odd while it is held exclusively
+	 */
+	long treeVersion() {
+		return tree.version.get();
+	}
+
+	/**
+	 * @return true if no writer has latched the page since its version was
+	 * read, and none holds it now
+	 */
+	boolean validate(BTreePageId pid, long version) {
+		return (version & 1) == 0 && latch(pid).version.get() == version;
+	}
+
+	/**
+	 * @return true if the whole tree has not been held exclusively since its
+	 * version was read, and is not held now
+	 */
+	boolean validateTree(long version) {
+		return (version & 1) == 0 && tree.version.get() == version;
+	}
+
+	/**
+	 * Take one side of a latch for tid, waiting as long as its holders are
+	 * busy.
+	 *
+	 * @throws TransactionAbortedException if tid was chosen as the victim of
+	 *   a deadlock while it waited, or the waiting thread was interrupted
+	 * @throws DbException if the latch was not let go of in time
+	 */
+	private static void acquire(Latch latch, Lock l, TransactionId tid)
+			throws TransactionAbortedException, DbException {
+		if(!l.tryLock()) {
+			await(latch, l, tid);
+		}
+		if(tid != null) {
+			latch.holders.merge(tid, 1, Integer::sum);
+		}
+	}
+
+	private static void release(Latch latch, Lock l, TransactionId tid) {
+		if(tid != null) {
+			latch.holders.computeIfPresent(tid, (t, n) -> n == 1 ? null : n - 1);
+		}
+		l.unlock();
+	}
+
+	/**
+	 * Wait for a latch that another thread holds, with waits-for edges to
+	 * the transactions holding it.  The timeout only runs while some holder
+	 * is not waiting for a lock, directly or through another latch.
+	 */
+	private static void await(Latch latch, Lock l, TransactionId tid)
+			throws TransactionAbortedException, DbException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			while(true) {
+				Set<TransactionId> holders = new HashSet<>(latch.holders.keySet());
+				holders.remove(tid);
+				if(tid != null && Database.getBufferPool().waitOutside(tid, holders)) {
+					deadline = System.currentTimeMillis() + timeoutMillis;
+				}
+				try {
+					if(l.tryLock(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+						return;
+					}
+				} catch (InterruptedException e) {
+					if(tid != null) {
+						// throws if the interrupt came from the deadlock detector
+						Database.getBufferPool().waitOutside(tid, holders);
+					}
+					Thread.currentThread().interrupt();
+					throw new TransactionAbortedException();
+				}
+				if(System.currentTimeMillis() > deadline) {
+					throw new DbException("latch held by " + holders + " not let go of within "
+							+ timeoutMillis + " ms");
+				}
+			}
+		} finally {
+			if(tid != null) {
+				Database.getBufferPool().stopWaiting(tid);
+			}
+		}
+	}
+
+	/**
+	 * Start a descent for tid: the tree latch is held in shared mode until
+	 * the path is released.
+	 */
+	Path path(TransactionId tid) throws TransactionAbortedException, DbException {
+		return new Path(tid);
+	}
+
+	/**
+	 * Hold the whole tree exclusively for tid, waiting for the descents in
+	 * progress to finish.
+	 *
+	 * @return the latch to close when done
+	 */
+	Exclusive exclusive(TransactionId tid) throws TransactionAbortedException, DbException {
+		return new Exclusive(tree, tid);
+	}
+
+	/** A latch held exclusively; its version moves on when it is taken and let go of. */
+	static final class Exclusive implements AutoCloseable {
+		private final Latch latch;
+		private final TransactionId tid;
+
+		private Exclusive(Latch latch, TransactionId tid) throws TransactionAbortedException, DbException {
+			acquire(latch, latch.writeLock(), tid);
+			latch.version.incrementAndGet();
+			this.latch = latch;
+			this.tid = tid;
+		}
+
+		@Override
+		public void close() {
+			latch.version.incrementAndGet();
+			release(latch, latch.writeLock(), tid);
+		}
+	}
+
+	/**
+	 * The latches one thread holds on its way down the tree, from the top.
+	 */
+	class Path implements AutoCloseable {
+		// what lets go of each latch held, from the top
+		private final Deque<Runnable> held = new ArrayDeque<>();
+		private final TransactionId tid;
+
+		private Path(TransactionId tid) throws TransactionAbortedException, DbException {
+			acquire(tree, tree.readLock(), tid);
+			this.tid = tid;
+		}
+
+		/**
+		 * Latch a page in shared mode, below the pages latched so far.
+		 */
+		void shared(BTreePageId pid) throws TransactionAbortedException, DbException {
+			Latch latch = latch(pid);
+			acquire(latch, latch.readLock(), tid);
+			held.addLast(() -> release(latch, latch.readLock(), tid));
+		}
+
+		/**
+		 * Latch a page in exclusive mode, below the pages latched so far.
+		 */
+		void exclusive(BTreePageId pid) throws TransactionAbortedException, DbException {
+			held.addLast(new Exclusive(latch(pid), tid)::close);
+		}
+
+		/**
+		 * Let go of every page latched but the last one.
+		 */
+		void releaseAncestors() {
+			while(held.size() > 1) {
+				held.removeFirst().run();
+			}
+		}
+
+		/**
+		 * Let go of all latches, including the tree latch.
+		 */
+		@Override
+		public void close() {
+			while(!held.isEmpty()) {
+				held.removeLast().run();
+			}
+			release(tree, tree.readLock(), tid);
+		}
+	}
+}
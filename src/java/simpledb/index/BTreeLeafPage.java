@@ -10,6 +10,7 @@ import simpledb.storage.*;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -66,48 +67,44 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+		setBeforeImage();
+	}
+
+	/**
+	 * Create a BTreeLeafPage directly over a buffer holding the page, such as
+	 * a region of a memory-mapped BTreeFile, without copying it. The buffer
+	 * must keep the on-disk contents of the page until the page is first
+	 * dirtied or its before image is requested.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page, starting at byte 0 of the buffer
+	 * @param key - the field which the index is keyed on
+	 */
+	public BTreeLeafPage(BTreePageId id, ByteBuffer data, int key) {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.leftSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.rightSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = data.getInt(0);
+		this.leftSibling = data.getInt(INDEX_SIZE);
+		this.rightSibling = data.getInt(2 * INDEX_SIZE);
 
 		// allocate and read the header slots of this page
+		int offset = 3 * INDEX_SIZE;
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+			header[i] = data.get(offset++);
 
+		// allocate and read the actual records of this page
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		for (int i=0; i<tuples.length; i++) {
+			tuples[i] = readTuple(data, offset, i);
+			offset += td.getSize();
 		}
-		dis.close();
 
-		setBeforeImage();
+		this.source = data;
 	}
 
 	/** 
@@ -136,10 +133,7 @@ public class BTreeLeafPage extends BTreePage {
 	public BTreeLeafPage getBeforeImage(){
 		try {
 			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
+			oldDataRef = beforeImageData();
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -153,23 +147,16 @@ public class BTreeLeafPage extends BTreePage {
 		synchronized(oldDataLock)
 		{
 			oldData = getPageData().clone();
+			source = null;
 		}
 	}
 
 	/**
 	 * Read tuples from the source file.
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
+	private Tuple readTuple(ByteBuffer data, int offset, int slotId) {
+		// if associated bit is not set, return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
 			return null;
 		}
 
@@ -177,19 +164,24 @@ public class BTreeLeafPage extends BTreePage {
 		Tuple t = new Tuple(td);
 		RecordId rid = new RecordId(pid, slotId);
 		t.setRecordId(rid);
-		try {
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+		for (int j=0; j<td.numFields(); j++) {
+			Type type = td.getFieldType(j);
+			t.setField(j, type.parse(data, offset));
+			offset += type.getLen();
 		}
 
 		return t;
 	}
 
+	/**
+	 * The parent and sibling pointers, then the header bitmap and the tuple slots.
+	 */
+	public PageLayout getLayout() {
+		int headerOffset = 3 * INDEX_SIZE;
+		return new PageLayout(BufferPool.getPageSize(), headerOffset, headerOffset, numSlots)
+				.addRegion(headerOffset + header.length, td.getSize(), 0);
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
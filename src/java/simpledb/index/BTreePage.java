@@ -9,6 +9,8 @@ import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -20,6 +22,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn; // of the last log record applied to this page
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -30,6 +33,9 @@ public abstract class BTreePage implements Page {
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
+	// buffer the page was decoded from (e.g. a mapped region of the file),
+	// kept instead of a copy in oldData until the before image is needed
+	protected ByteBuffer source;
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -120,10 +126,41 @@ public abstract class BTreePage implements Page {
 	 * that did the dirtying
 	 */
 	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty) {
+			// the source buffer may be overwritten once this page is flushed
+			beforeImageData();
+		}
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
 
+	/**
+	 * Returns the before image of this page, copying it out of the source
+	 * buffer first if the page was decoded from one and that has not been
+	 * done yet.
+	 */
+	protected byte[] beforeImageData() {
+		synchronized(oldDataLock)
+		{
+			if (source != null) {
+				byte[] copy = new byte[BufferPool.getPageSize()];
+				for (int i=0; i<copy.length; i++)
+					copy[i] = source.get(i);
+				oldData = copy;
+				source = null;
+			}
+			return oldData;
+		}
+	}
+
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
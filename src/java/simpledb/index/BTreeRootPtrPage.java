@@ -19,6 +19,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long lsn; // of the last log record applied to this page
 
 	private final BTreePageId pid;
 
@@ -133,6 +134,14 @@ public class BTreeRootPtrPage implements Page {
 		if (dirty) this.dirtier = tid;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	public TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
@@ -0,0 +1,255 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one page of a bucket
+ * of a HashFile: either the primary page of the bucket or one of the
+ * overflow pages chained to it.  The tuples are in no particular order.
+ *
+ * @see HashFile
+ */
+public class HashBucketPage extends HashPage {
+	private final TupleDesc td;
+	private final byte[] header;
+	private final Tuple[] tuples;
+	private final int numSlots;
+
+	private int next; // next page of the bucket's chain, or 0
+
+	/**
+	 * Create a HashBucketPage from the bytes of the page.  The format of a
+	 * HashBucketPage is the page number of the next page of its chain (0 for
+	 * the last one), followed by a header bitmap of the slots in use and the
+	 * tuple slots, like a HeapPage.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) {
+		super(id);
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		this.next = buf.getInt(0);
+
+		int offset = INDEX_SIZE;
+		header = new byte[getHeaderSize()];
+		for (int i = 0; i < header.length; i++)
+			header[i] = buf.get(offset++);
+
+		tuples = new Tuple[numSlots];
+		for (int i = 0; i < tuples.length; i++) {
+			tuples[i] = readTuple(buf, offset, i);
+			offset += td.getSize();
+		}
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		// extraBits are: next page pointer
+		int extraBits = INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	private Tuple readTuple(ByteBuffer data, int offset, int slotId) {
+		if (!isSlotUsed(slotId)) {
+			return null;
+		}
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		for (int j = 0; j < td.numFields(); j++) {
+			Type type = td.getFieldType(j);
+			t.setField(j, type.parse(data, offset));
+			offset += type.getLen();
+		}
+		return t;
+	}
+
+	/**
+	 * The next page pointer, then the header bitmap and the tuple slots.
+	 */
+	public PageLayout getLayout() {
+		return new PageLayout(BufferPool.getPageSize(), INDEX_SIZE, INDEX_SIZE, numSlots)
+				.addRegion(INDEX_SIZE + header.length, td.getSize(), 0);
+	}
+
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(next);
+			dos.write(header);
+			byte[] emptySlot = new byte[td.getSize()];
+			for (int i = 0; i < tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(emptySlot);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++) {
+					tuples[i].getField(j).serialize(dos);
+				}
+			}
+			// padding
+			dos.write(new byte[len - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			// writing to a byte array does not fail
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage: no tuples and no next page.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()];
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		return new HashBucketPage(pid, beforeImageData());
+	}
+
+	/**
+	 * @return the id of the next page of the chain, or null if this is the
+	 *   last one
+	 */
+	public HashPageId getNextPageId() {
+		return next == 0 ? null : new HashPageId(pid.getTableId(), next, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Set the next page of the chain
+	 * @param id - the id of the next page, or null to end the chain here
+	 * @throws DbException if the id is not valid
+	 */
+	public void setNextPageId(HashPageId id) throws DbException {
+		if (id == null) {
+			next = 0;
+			return;
+		}
+		if (id.getTableId() != pid.getTableId() || id.pgcateg() != HashPageId.BUCKET) {
+			throw new DbException("next page must be a bucket page of the same table");
+		}
+		next = id.getPageNumber();
+	}
+
+	/**
+	 * Adds the specified tuple to the first empty slot of the page, and
+	 * updates the tuple to reflect that it is now stored on this page.
+	 * @throws DbException if the page is full or tupledesc is mismatched.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the tuple is updated to
+	 * reflect that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null)
+			throw new DbException("tried to delete tuple with null rid");
+		if (!pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		if (!isSlotUsed(rid.getTupleNumber()))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(rid.getTupleNumber(), false);
+		tuples[rid.getTupleNumber()] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Remove all tuples from the page and end the chain here, e.g. to reuse
+	 * it as an overflow page.
+	 */
+	public void clear() {
+		for (int i = 0; i < numSlots; i++) {
+			markSlotUsed(i, false);
+			tuples[i] = null;
+		}
+		next = 0;
+	}
+
+	/**
+	 * Returns the number of tuples currently stored on this page
+	 */
+	public int getNumTuples() {
+		return numSlots - getNumEmptySlots();
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int n = 0;
+		for (int i = 0; i < numSlots; i++)
+			if (!isSlotUsed(i))
+				n++;
+		return n;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return i >= 0 && i < numSlots && (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= (byte) (1 << (i % 8));
+		else
+			header[i / 8] &= (byte) ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return an iterator over the tuples on this page (calling remove on
+	 *   this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		List<Tuple> used = new ArrayList<>();
+		for (int i = 0; i < numSlots; i++)
+			if (isSlotUsed(i))
+				used.add(tuples[i]);
+		return Collections.unmodifiableList(used).iterator();
+	}
+}
@@ -0,0 +1,582 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashFile is an implementation of a DbFile that stores a linear hash table
+ * on its key field.  Page 0 is a HashHeaderPage with the number of buckets
+ * and where their pages are; every other page is a HashBucketPage holding the
+ * tuples of a bucket, either its primary page or an overflow page chained to
+ * it.  An equality lookup reads the header and the chain of one bucket only.
+ * <p>
+ * The table grows one bucket at a time: whenever a bucket overflows, the next
+ * bucket in turn is split, moving the tuples whose hash code has the next bit
+ * set to a new bucket at the end of the table.  Overflow pages that a split
+ * empties go to a free list, to be reused before the file grows.  Deleting
+ * tuples never shrinks the table.
+ * <p>
+ * All pages are read and written through the BufferPool under page locks of
+ * the transaction, so they are logged and recovered like any other page.
+ *
+ * @see HashHeaderPage
+ * @see HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	// opened on first use and kept open for positional reads and writes
+	private volatile FileChannel channel;
+
+	// LSN of the last log record applied to each page
+	private final PageLsnMap pageLsns;
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+		// side files of an earlier file of the same name go
+		this.pageLsns = new PageLsnMap(f, (int) (f.length() / BufferPool.getPageSize()));
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile: the hash code of the
+	 * absolute file name of the underlying file.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash file is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 * <p>
+	 * A bucket page past the end of the file reads as an empty page: the file
+	 * was extended for it, but the write did not reach the disk before a
+	 * crash, and recovery rebuilds it from the log.
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		try {
+			byte[] pageBuf = new byte[BufferPool.getPageSize()];
+			long offset = pageOffset(id.getPageNumber());
+			if(id.pgcateg() == HashPageId.HEADER || offset < fileLength()) {
+				readFully(pageBuf, offset);
+			}
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			Page page = makePage(id, pageBuf);
+			page.setLsn(pageLsns.get(id.getPageNumber()));
+			return page;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the channel of the backing file, opening it on first use, and
+	 * again if a thread interrupted during I/O on it closed it.
+	 */
+	private FileChannel channel() throws IOException {
+		FileChannel ch = channel;
+		if(ch == null || !ch.isOpen()) {
+			synchronized(this) {
+				ch = channel;
+				if(ch == null || !ch.isOpen()) {
+					ch = new RandomAccessFile(f, "rw").getChannel();
+					channel = ch;
+				}
+			}
+		}
+		return ch;
+	}
+
+	/**
+	 * @return the file offset of the given page
+	 */
+	private static long pageOffset(int pgNo) {
+		return (long) pgNo * BufferPool.getPageSize();
+	}
+
+	private long fileLength() throws IOException {
+		return channel().size();
+	}
+
+	/**
+	 * Fill buf from the file starting at offset with positional reads.
+	 * @throws IllegalArgumentException if the file ends before buf is full
+	 */
+	private void readFully(byte[] buf, long offset) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		FileChannel ch = channel();
+		while(bb.hasRemaining()) {
+			if(ch.read(bb, offset + bb.position()) < 0) {
+				throw new IllegalArgumentException("Unable to read "
+						+ buf.length + " bytes from HashFile at offset " + offset);
+			}
+		}
+	}
+
+	/**
+	 * Write data to the file at offset with positional writes.
+	 */
+	private void writeFully(byte[] data, long offset) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		FileChannel ch = channel();
+		while(bb.hasRemaining()) {
+			ch.write(bb, offset + bb.position());
+		}
+	}
+
+	/**
+	 * Create a page of this file from its serialized bytes
+	 *
+	 * @param pid - the id of the page
+	 * @param data - the bytes of the page, as returned by getPageData()
+	 */
+	public Page makePage(PageId pid, byte[] data) throws IOException {
+		HashPageId id = (HashPageId) pid;
+		if(id.pgcateg() == HashPageId.HEADER) {
+			return new HashHeaderPage(id, data);
+		}
+		return new HashBucketPage(id, data);
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		int pgNo = page.getId().getPageNumber();
+		writeFully(page.getPageData(), pageOffset(pgNo));
+		// after the page, so the recorded LSN never runs ahead of it
+		pageLsns.set(pgNo, page.getLsn());
+	}
+
+	/**
+	 * Force the pages written so far to disk, and then their LSNs.
+	 */
+	public void sync() throws IOException {
+		pageLsns.sync(channel());
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the header page.
+	 */
+	public int numPages() {
+		try {
+			return (int) (fileLength() / BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the hash code of a key, spread so that the low bits that pick
+	 *   the bucket depend on all of its bits, and never negative
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & 0x7fffffff;
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the
+	 * method checks the local cache ("dirtypages"), and if it can't find the
+	 * requested page there, it fetches it from the buffer pool.  It also adds
+	 * pages to the dirtypages cache if they are fetched with read-write
+	 * permission, since presumably they will soon be dirtied by this
+	 * transaction.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 */
+	private Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if(perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Get the header page, writing the header page and the pages of the
+	 * initial buckets first if the file is still empty.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the requested permissions on the header page
+	 * @return the header page
+	 */
+	HashHeaderPage getHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			if(fileLength() == 0) {
+				writeFully(HashHeaderPage.createInitialPageData(), 0);
+				for(int b = 0; b < HashHeaderPage.INITIAL_BUCKETS; b++) {
+					writeFully(HashBucketPage.createEmptyPageData(), pageOffset(1 + b));
+				}
+			}
+		}
+		return (HashHeaderPage) getPage(tid, dirtypages, HashPageId.headerId(tableid), perm);
+	}
+
+	/**
+	 * @return the id of the primary page of a bucket
+	 */
+	private HashPageId bucketPageId(HashHeaderPage header, int bucket) {
+		return new HashPageId(tableid, header.pageOf(bucket), HashPageId.BUCKET);
+	}
+
+	/**
+	 * Wipe a page that lies beyond every page in use, on disk and in the
+	 * cache, and return a clean copy locked with read-write permission
+	 */
+	private HashBucketPage getNewPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgNo)
+			throws DbException, IOException, TransactionAbortedException {
+		HashPageId id = new HashPageId(tableid, pgNo, HashPageId.BUCKET);
+		writeFully(HashBucketPage.createEmptyPageData(), pageOffset(pgNo));
+
+		// make sure the page is not in the buffer pool or in the local cache
+		Database.getBufferPool().discardPage(id);
+		dirtypages.remove(id);
+
+		return (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Get an empty overflow page: the first one of the free list, or a new
+	 * one at the end of the file if the list is empty.  Pages of the free list
+	 * are cleared through the buffer pool rather than on disk, since they hold
+	 * the rest of the list until the header is updated.
+	 *
+	 * @param header - the header page, locked with read-write permission
+	 */
+	private HashBucketPage getOverflowPage(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header)
+			throws DbException, IOException, TransactionAbortedException {
+		int free = header.getFreeList();
+		if(free == 0) {
+			return getNewPage(tid, dirtypages, header.allocateOverflowPage());
+		}
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+				new HashPageId(tableid, free, HashPageId.BUCKET), Permissions.READ_WRITE);
+		HashPageId next = page.getNextPageId();
+		header.setFreeList(next == null ? 0 : next.getPageNumber());
+		page.clear();
+		return page;
+	}
+
+	/**
+	 * Put an overflow page that no chain uses anymore on the free list.
+	 */
+	private void freeOverflowPage(HashHeaderPage header, HashBucketPage page) throws DbException {
+		int free = header.getFreeList();
+		page.clear();
+		page.setNextPageId(free == 0 ? null : new HashPageId(tableid, free, HashPageId.BUCKET));
+		header.setFreeList(page.getId().getPageNumber());
+	}
+
+	/**
+	 * Add a tuple to the last page of a chain, chaining an overflow page to
+	 * it first if it is full.
+	 *
+	 * @return the page the tuple went to, the new last page of the chain
+	 */
+	private HashBucketPage append(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header,
+			HashBucketPage last, Tuple t) throws DbException, IOException, TransactionAbortedException {
+		if(last.getNumEmptySlots() == 0) {
+			HashBucketPage overflow = getOverflowPage(tid, dirtypages, header);
+			last.setNextPageId(overflow.getId());
+			last = overflow;
+		}
+		last.insertTuple(t);
+		return last;
+	}
+
+	/**
+	 * Split the next bucket in turn: add a bucket to the table and move the
+	 * tuples of the split bucket that belong to it now.  Overflow pages of the
+	 * split bucket that end up empty are unlinked and freed.
+	 *
+	 * @param header - the header page, locked with read-write permission
+	 */
+	private void splitBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header)
+			throws DbException, IOException, TransactionAbortedException {
+		int split = header.getSplitBucket();
+		int added = header.addBucket();
+		HashBucketPage to = getNewPage(tid, dirtypages, header.pageOf(added));
+
+		HashBucketPage prev = null;
+		HashPageId pid = bucketPageId(header, split);
+		while(pid != null) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			// iterates over a copy of the slots, so deleting as we go is fine
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(header.bucketOf(hash(t.getField(keyField))) == added) {
+					page.deleteTuple(t);
+					to = append(tid, dirtypages, header, to, t);
+				}
+			}
+			pid = page.getNextPageId();
+			if(prev != null && page.getNumTuples() == 0) {
+				prev.setNextPageId(pid);
+				freeOverflowPage(header, page);
+			}
+			else {
+				prev = page;
+			}
+		}
+	}
+
+	/**
+	 * Insert a tuple into the bucket of its key, chaining an overflow page to
+	 * the bucket if it is full.  Each overflow also splits the next bucket in
+	 * turn, so the table grows with the number of tuples.
+	 * <p>
+	 * The header is read with read-only permission to find the bucket, so
+	 * inserters into buckets with room run concurrently.  A shared header lock
+	 * this call took is released again once the tuple is in: the locks on the
+	 * bucket pages keep a split from moving it.  An overflow needs the header
+	 * with read-write permission; two inserters upgrading their shared locks
+	 * would deadlock, so a shared lock this call took is released first and
+	 * the bucket looked up again under the exclusive one.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashPageId headerId = HashPageId.headerId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, headerId);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		HashHeaderPage header = getHeaderPage(tid, dirtypages, Permissions.READ_ONLY);
+		HashBucketPage page = pageToInsertInto(tid, dirtypages, header, t);
+		if(page.getNumEmptySlots() > 0) {
+			page.insertTuple(t);
+			if(!held) {
+				Database.getBufferPool().unsafeReleasePage(tid, headerId);
+			}
+			return new ArrayList<>(dirtypages.values());
+		}
+
+		if(!held) {
+			Database.getBufferPool().unsafeReleasePage(tid, headerId);
+		}
+		dirtypages = new HashMap<>();
+		header = getHeaderPage(tid, dirtypages, Permissions.READ_WRITE);
+		// another transaction may have split the bucket in between
+		page = pageToInsertInto(tid, dirtypages, header, t);
+		if(page.getNumEmptySlots() > 0) {
+			page.insertTuple(t);
+		}
+		else {
+			append(tid, dirtypages, header, page, t);
+			splitBucket(tid, dirtypages, header);
+		}
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * @return the first page of the chain of the bucket of a tuple's key that
+	 *   has room for it, or the last page of the chain if none has, locked
+	 *   with read-write permission
+	 */
+	private HashBucketPage pageToInsertInto(TransactionId tid, Map<PageId, Page> dirtypages,
+			HashHeaderPage header, Tuple t) throws DbException, TransactionAbortedException {
+		HashPageId pid = bucketPageId(header, header.bucketOf(hash(t.getField(keyField))));
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		while(page.getNumEmptySlots() == 0 && page.getNextPageId() != null) {
+			page = (HashBucketPage) getPage(tid, dirtypages, page.getNextPageId(), Permissions.READ_WRITE);
+		}
+		return page;
+	}
+
+	/**
+	 * Delete a tuple from the page its RecordId points to.  Overflow pages
+	 * emptied this way stay in their chain until the bucket is split.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if(rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tried to delete tuple that is not in this file");
+		}
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+				(HashPageId) rid.getPageId(), Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Get an iterator over the tuples matching the IndexPredicate.  An
+	 * EQUALS predicate reads only the bucket of its key; any other one reads
+	 * the whole file, since hashing does not keep keys in order.  This method
+	 * will acquire a read lock on the pages it reads, and may block until the
+	 * lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new HashFileIterator(tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, bucket by bucket.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(tid, null);
+	}
+
+	/**
+	 * Iterates over the chains of a range of buckets, keeping the tuples that
+	 * match a predicate on the key.
+	 */
+	private class HashFileIterator extends AbstractDbFileIterator {
+
+		private final TransactionId tid;
+		private final IndexPredicate ipred;
+
+		private HashHeaderPage header = null;
+		private int bucket;
+		private int lastBucket;
+		private HashPageId nextp = null;
+		private Iterator<Tuple> it = null;
+
+		/**
+		 * @param tid - the transaction id
+		 * @param ipred - the predicate to filter on, or null for all tuples
+		 */
+		HashFileIterator(TransactionId tid, IndexPredicate ipred) {
+			this.tid = tid;
+			this.ipred = ipred;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			try {
+				header = getHeaderPage(tid, new HashMap<>(), Permissions.READ_ONLY);
+			} catch (IOException e) {
+				throw new DbException("cannot read hash file: " + e.getMessage());
+			}
+			if(ipred != null && ipred.getOp() == Op.EQUALS) {
+				bucket = lastBucket = header.bucketOf(hash(ipred.getField()));
+			}
+			else {
+				bucket = 0;
+				lastBucket = header.getNumBuckets() - 1;
+			}
+			nextp = bucketPageId(header, bucket);
+		}
+
+		@Override
+		protected Tuple readNext() throws TransactionAbortedException, DbException {
+			if(header == null) {
+				return null;
+			}
+			while(true) {
+				while(it != null && it.hasNext()) {
+					Tuple t = it.next();
+					if(ipred == null || t.getField(keyField).compare(ipred.getOp(), ipred.getField())) {
+						return t;
+					}
+				}
+				if(nextp == null) {
+					if(bucket == lastBucket) {
+						return null;
+					}
+					nextp = bucketPageId(header, ++bucket);
+				}
+				HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				it = page.iterator();
+				nextp = page.getNextPageId();
+			}
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			header = null;
+			nextp = null;
+			it = null;
+		}
+	}
+}
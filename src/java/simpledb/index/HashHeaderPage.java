@@ -0,0 +1,179 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HashHeaderPage is the first page of a HashFile, and holds the state of its
+ * linear hash table: the number of buckets, the list of free overflow pages,
+ * and the number of overflow pages allocated in each bucket group, from
+ * which the page of every bucket follows.
+ * <p>
+ * The buckets are allocated in groups: group 0 holds the first
+ * {@link #INITIAL_BUCKETS} buckets, and each group after it as many buckets
+ * as all the groups before it, so a group is added each time the table
+ * doubles.  The bucket pages of a group are at consecutive page numbers,
+ * followed by the overflow pages allocated while the group was the last one:
+ * <pre>
+ *     page of bucket b = 1 + b + (overflow pages of the groups before b's group)
+ * </pre>
+ * So a bucket is found without reading anything but this page, and the file
+ * grows only at its end.
+ *
+ * @see HashFile
+ */
+public class HashHeaderPage extends HashPage {
+
+	/** The number of buckets of an empty table, a power of two */
+	public static final int INITIAL_BUCKETS = 4;
+
+	/** Enough groups for 2^31 buckets */
+	static final int MAX_GROUPS = 31 - Integer.numberOfTrailingZeros(INITIAL_BUCKETS) + 1;
+
+	private int numBuckets;
+	private int freeList; // first free overflow page, or 0
+	private final int[] spares = new int[MAX_GROUPS]; // overflow pages of each group
+
+	/**
+	 * Create a HashHeaderPage from the bytes of the page: the number of
+	 * buckets, the page number of the first free overflow page (0 if there is
+	 * none), and the number of overflow pages of each bucket group.  An all
+	 * zero page is a table that was not initialized yet.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashHeaderPage(HashPageId id, byte[] data) {
+		super(id);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		numBuckets = buf.getInt();
+		freeList = buf.getInt();
+		for (int i = 0; i < spares.length; i++) {
+			spares[i] = buf.getInt();
+		}
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the bytes of the header page of an empty table
+	 */
+	public static byte[] createInitialPageData() {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		ByteBuffer.wrap(data).putInt(INITIAL_BUCKETS);
+		return data;
+	}
+
+	public byte[] getPageData() {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.putInt(numBuckets);
+		buf.putInt(freeList);
+		for (int s : spares) {
+			buf.putInt(s);
+		}
+		return data;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashHeaderPage getBeforeImage() {
+		return new HashHeaderPage(pid, beforeImageData());
+	}
+
+	/**
+	 * @return the number of buckets of the table
+	 */
+	public int getNumBuckets() {
+		return numBuckets;
+	}
+
+	/**
+	 * @return the number of buckets before the current round of splits,
+	 *   i.e. the largest INITIAL_BUCKETS * 2^level not above the number of
+	 *   buckets
+	 */
+	int getLowBuckets() {
+		return Integer.highestOneBit(numBuckets / INITIAL_BUCKETS) * INITIAL_BUCKETS;
+	}
+
+	/**
+	 * @return the next bucket to split
+	 */
+	int getSplitBucket() {
+		return numBuckets - getLowBuckets();
+	}
+
+	/**
+	 * @param hash - a non-negative hash code
+	 * @return the bucket holding the keys with the given hash code
+	 */
+	public int bucketOf(int hash) {
+		int low = getLowBuckets();
+		int b = hash & (2 * low - 1);
+		return b < numBuckets ? b : hash & (low - 1);
+	}
+
+	/**
+	 * @return the group of a bucket
+	 */
+	static int groupOf(int bucket) {
+		return bucket < INITIAL_BUCKETS ? 0 : 32 - Integer.numberOfLeadingZeros(bucket / INITIAL_BUCKETS);
+	}
+
+	/**
+	 * @return the first bucket of a group
+	 */
+	static int firstBucketOf(int group) {
+		return group == 0 ? 0 : INITIAL_BUCKETS << (group - 1);
+	}
+
+	/**
+	 * @return the page number of the primary page of a bucket
+	 */
+	public int pageOf(int bucket) {
+		int g = groupOf(bucket);
+		int page = 1 + bucket;
+		for (int i = 0; i < g; i++) {
+			page += spares[i];
+		}
+		return page;
+	}
+
+	/**
+	 * Add a bucket to the table: the one that the keys of the split bucket
+	 * with the next bit of their hash code set move to.
+	 *
+	 * @return the new bucket
+	 */
+	int addBucket() {
+		return numBuckets++;
+	}
+
+	/**
+	 * @return the first free overflow page, or 0 if there is none
+	 */
+	int getFreeList() {
+		return freeList;
+	}
+
+	void setFreeList(int pgNo) {
+		freeList = pgNo;
+	}
+
+	/**
+	 * Allocate a new overflow page at the end of the file: after the bucket
+	 * pages of the last group and the overflow pages allocated after them.
+	 *
+	 * @return its page number
+	 */
+	int allocateOverflowPage() {
+		int g = groupOf(numBuckets - 1);
+		int page = 1 + firstBucketOf(g + 1);
+		for (int i = 0; i <= g; i++) {
+			page += spares[i];
+		}
+		spares[g]++;
+		return page;
+	}
+}
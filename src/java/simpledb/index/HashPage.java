@@ -0,0 +1,77 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+/**
+ * The state common to the pages of a HashFile: their id, whether and by
+ * whom they are dirty, their LSN and their before image.
+ *
+ * @see HashFile
+ */
+public abstract class HashPage implements Page {
+	protected volatile boolean dirty = false;
+	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn; // of the last log record applied to this page
+
+	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	protected final HashPageId pid;
+
+	protected byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	public HashPage(HashPageId id) {
+		this.pid = id;
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the bytes of this page before it was modified
+	 */
+	protected byte[] beforeImageData() {
+		synchronized(oldDataLock) {
+			return oldData;
+		}
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+}
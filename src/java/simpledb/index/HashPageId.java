@@ -0,0 +1,100 @@
+package simpledb.index;
+
+import simpledb.storage.PageId;
+
+import java.util.Objects;
+
+/**
+ * Unique identifier for the pages of a HashFile: the header page, which
+ * holds the state of the hash table, and the bucket pages, which hold the
+ * tuples of a bucket and of its overflow chain.
+ */
+public class HashPageId implements PageId {
+
+	public final static int HEADER = 0;
+	public final static int BUCKET = 1;
+
+	private final int tableId;
+	private final int pgNo;
+	private final int pgcateg;
+
+	static public String categToString(int categ) {
+		switch (categ) {
+			case HEADER:
+				return "HEADER";
+			case BUCKET:
+				return "BUCKET";
+			default:
+				throw new IllegalArgumentException("categ");
+		}
+	}
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific table.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param pgNo The page number in that table.
+	 * @param pgcateg which kind of page it is
+	 */
+	public HashPageId(int tableId, int pgNo, int pgcateg) {
+		this.tableId = tableId;
+		this.pgNo = pgNo;
+		this.pgcateg = pgcateg;
+	}
+
+	/**
+	 * @return the id of the header page of the given table
+	 */
+	public static HashPageId headerId(int tableId) {
+		return new HashPageId(tableId, 0, HEADER);
+	}
+
+	/** @return the table associated with this PageId */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the page number in the table getTableId() associated with
+	 *   this PageId
+	 */
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return the category of this page
+	 */
+	public int pgcateg() {
+		return pgcateg;
+	}
+
+	public int hashCode() {
+		return Objects.hash(tableId, pgNo, pgcateg);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof HashPageId))
+			return false;
+		HashPageId p = (HashPageId) o;
+		return tableId == p.tableId && pgNo == p.pgNo && pgcateg == p.pgcateg;
+	}
+
+	public String toString() {
+		return "(tableId: " + tableId +
+				", pgNo: " + pgNo +
+				", pgcateg: " + categToString(pgcateg) +
+				")";
+	}
+
+	/**
+	 * Return a representation of this object as an array of
+	 * integers, for writing to disk.  Size of returned array must contain
+	 * number of integers that corresponds to number of args to one of the
+	 * constructors.
+	 */
+	public int[] serialize() {
+		return new int[] {tableId, pgNo, pgcateg};
+	}
+}
@@ -0,0 +1,124 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * HashScan is an operator which reads the tuples of a table stored in a
+ * HashFile that match a predicate on its key, in no particular order.  An
+ * EQUALS predicate reads only the bucket of its key.
+ */
+public class HashScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TupleDesc myTd;
+	private final IndexPredicate ipred;
+	private transient DbFileIterator it;
+	private final String tablename;
+	private final String alias;
+
+	/**
+	 * Creates a scan over the specified hash table as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan, stored in a HashFile.
+	 * @param tableAlias
+	 *            the alias of this table; the returned tupleDesc has fields
+	 *            with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan will return
+	 *            all tuples
+	 */
+	public HashScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(tableid);
+		HashFile file = (HashFile) Database.getCatalog().getDatabaseFile(tableid);
+		this.it = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+		TupleDesc td = file.getTupleDesc();
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the name of the table the operator scans in the catalog
+	 */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/**
+	 * @return the predicate the scan applies, or null if it reads every tuple
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * @return the TupleDesc of the table, with field names prefixed with
+	 *         the tableAlias string from the constructor
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return it.next();
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
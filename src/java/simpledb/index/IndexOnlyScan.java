@@ -0,0 +1,166 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexOnlyScan is an operator which reads some of the fields of a table in
+ * sorted order according to a predicate, using only the leaf pages of a B+
+ * tree that stores them: either the table itself, if it is a BTreeFile, or a
+ * {@link SecondaryIndex} on the one field that is read, in which case the
+ * pages of the table are never read.
+ * <p>
+ * Its tuples hold only the fields read, taken from the tuples of the leaf
+ * pages in the buffer pool, and carry the RecordId of the tuple of the table
+ * they come from.
+ */
+public class IndexOnlyScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final BTreeFile file;
+	private final SecondaryIndex index;
+	private final int[] fields;
+	private final IndexPredicate ipred;
+	private final TupleDesc myTd;
+	private final String tablename;
+	private final String alias;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates a scan of some of the fields of a table stored in a BTreeFile.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan; must be a BTreeFile
+	 * @param fields
+	 *            the fields of the table to return, in the order to return them
+	 * @param tableAlias
+	 *            the alias of this table; the returned tupleDesc has fields
+	 *            with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan will return
+	 *            all tuples in sorted order
+	 */
+	public IndexOnlyScan(TransactionId tid, int tableid, int[] fields, String tableAlias, IndexPredicate ipred) {
+		this(tid, (BTreeFile) Database.getCatalog().getDatabaseFile(tableid), null, tableid, fields, fields,
+				tableAlias, ipred);
+	}
+
+	/**
+	 * Creates a scan of the indexed field of the table of a secondary index.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to read
+	 * @param tableAlias
+	 *            the alias of the table; the returned tupleDesc has one field
+	 *            with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan will return
+	 *            all entries in the order of the indexed field
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this(tid, index.getFile(), index, index.getTableId(), new int[] {0}, new int[] {index.getField()},
+				tableAlias, ipred);
+	}
+
+	/**
+	 * @param fields - the fields of the tuples of file to return
+	 * @param tableFields - the fields of the table they hold, which name them
+	 */
+	private IndexOnlyScan(TransactionId tid, BTreeFile file, SecondaryIndex index, int tableid,
+			int[] fields, int[] tableFields, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.file = file;
+		this.index = index;
+		this.fields = fields.clone();
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(tableid);
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		String[] names = new String[tableFields.length];
+		Type[] types = new Type[tableFields.length];
+		for (int i = 0; i < tableFields.length; i++) {
+			names[i] = tableAlias + "." + td.getFieldName(tableFields[i]);
+			types[i] = td.getFieldType(tableFields[i]);
+		}
+		this.myTd = new TupleDesc(types, names);
+	}
+
+	/**
+	 * @return the actual name of the table in the catalog of the database
+	 */
+	public String getTableName() {
+		return tablename;
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the fields read, with names prefixed with the
+	 * tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		Tuple t = it.next();
+		Tuple out = new Tuple(myTd);
+		for (int i = 0; i < fields.length; i++) {
+			out.setField(i, t.getField(fields[i]));
+		}
+		out.setRecordId(index == null ? t.getRecordId() : index.recordIdOf(t));
+		return out;
+	}
+
+	public void close() {
+		if (it != null)
+			it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -0,0 +1,209 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A secondary index on one field of a table stored in a HeapFile: a B+ tree
+ * of entries (key, page number, slot), one for each tuple of the table,
+ * keyed on the value of the field and pointing to the tuple's RecordId.
+ * <p>
+ * An index is registered in the Catalog next to its table (see
+ * {@link simpledb.common.Catalog#addIndex}), and the BufferPool keeps it up to
+ * date as tuples are inserted into and deleted from the table.  Its pages
+ * are locked, logged and recovered like those of any other BTreeFile.
+ *
+ * @see SecondaryIndexScan
+ */
+public class SecondaryIndex {
+
+	/** How full the pages of an index built on an existing table are */
+	public static final double BUILD_FILL_FACTOR = 0.75;
+
+	private final BTreeFile file;
+	private final int tableid;
+	private final int field;
+
+	/**
+	 * @param f - the file to store the index in
+	 * @param tableid - the heap table to index
+	 * @param field - the field of the table to index on
+	 */
+	public SecondaryIndex(File f, int tableid, int field) {
+		Type keyType = Database.getCatalog().getTupleDesc(tableid).getFieldType(field);
+		this.file = new BTreeFile(f, 0, entryDesc(keyType));
+		this.tableid = tableid;
+		this.field = field;
+	}
+
+	/**
+	 * @return the layout of the entries of an index on a field of the given type
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return new TupleDesc(new Type[] {keyType, Type.INT_TYPE, Type.INT_TYPE},
+				new String[] {"key", "pageno", "slot"});
+	}
+
+	/**
+	 * Create an index on a field of an existing heap table, fill it with the
+	 * tuples in the table and register it in the Catalog.  The table is
+	 * locked in shared mode for tid, so no tuple is changed meanwhile; the
+	 * index is maintained from then on.
+	 *
+	 * @param tid - the transaction id
+	 * @param f - the file to store the index in; must be empty
+	 * @param tableid - the heap table to index
+	 * @param field - the field of the table to index on
+	 * @return the new index
+	 *
+	 * @throws DbException if the table is not a heap table, or f is not empty
+	 */
+	public static SecondaryIndex create(TransactionId tid, File f, int tableid, int field)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+		if(!(table instanceof HeapFile)) {
+			throw new DbException("secondary indexes are only kept on heap files");
+		}
+		SecondaryIndex index = new SecondaryIndex(f, tableid, field);
+		Database.getBufferPool().lockTable(tid, tableid, Permissions.READ_ONLY);
+		// registered first: the buffer pool finds the pages of the index
+		// through the catalog
+		Database.getCatalog().addIndex(index);
+		boolean built = false;
+		try {
+			index.file.bulkLoad(tid, index.new EntryIterator(table.iterator(tid)), BUILD_FILL_FACTOR);
+			built = true;
+		} finally {
+			if(!built) {
+				Database.getCatalog().dropIndex(index);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return the B+ tree of the entries of this index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the id of the B+ tree of the entries of this index
+	 */
+	public int getId() {
+		return file.getId();
+	}
+
+	/**
+	 * @return the heap table this index is on
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the field of the table this index is on
+	 */
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * @return the index entry of a tuple of the table, which must have a
+	 * RecordId
+	 */
+	Tuple entryFor(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple entry = new Tuple(file.getTupleDesc());
+		entry.setField(0, t.getField(field));
+		entry.setField(1, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(2, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * @return the RecordId of the tuple an index entry points to
+	 */
+	RecordId recordIdOf(Tuple entry) {
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue()),
+				((IntField) entry.getField(2)).getValue());
+	}
+
+	/**
+	 * Add the entry of a tuple just inserted into the table.
+	 *
+	 * @return the pages dirtied
+	 */
+	public List<Page> insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, entryFor(t));
+	}
+
+	/**
+	 * Remove the entry of a tuple just deleted from the table.
+	 *
+	 * @return the pages dirtied
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public List<Page> deleteEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(field)));
+		it.open();
+		try {
+			while(it.hasNext()) {
+				Tuple entry = it.next();
+				if(recordIdOf(entry).equals(rid)) {
+					return file.deleteTuple(tid, entry);
+				}
+			}
+		} finally {
+			it.close();
+		}
+		throw new DbException("no entry for " + rid + " in index on field " + field + " of table " + tableid);
+	}
+
+	/**
+	 * The entries of the tuples of a table.
+	 */
+	private class EntryIterator implements DbFileIterator {
+		private final DbFileIterator tuples;
+
+		EntryIterator(DbFileIterator tuples) {
+			this.tuples = tuples;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			tuples.open();
+		}
+
+		public boolean hasNext() throws DbException, TransactionAbortedException {
+			return tuples.hasNext();
+		}
+
+		public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+			return entryFor(tuples.next());
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			tuples.rewind();
+		}
+
+		public void close() {
+			tuples.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * SecondaryIndexScan is an operator which reads the tuples of a heap table
+ * that match a predicate on an indexed field, in the order of the field, by
+ * looking them up in a {@link SecondaryIndex} instead of scanning the table.
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final TupleDesc myTd;
+	private final String alias;
+	private transient DbFileIterator entries;
+	private Tuple next;
+
+	/**
+	 * Creates a scan of the tuples of the table of an index that match a
+	 * predicate on the indexed field.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to look the tuples up in
+	 * @param tableAlias
+	 *            the alias of the table; the returned tupleDesc has fields
+	 *            with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan will return
+	 *            all tuples in the order of the indexed field
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		String[] names = new String[td.numFields()];
+		Type[] types = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			names[i] = tableAlias + "." + td.getFieldName(i);
+			types[i] = td.getFieldType(i);
+		}
+		this.myTd = new TupleDesc(types, names);
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the index this operator looks tuples up in
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		BTreeFile f = index.getFile();
+		entries = ipred == null ? f.iterator(tid) : f.indexIterator(tid, ipred);
+		entries.open();
+		next = null;
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table, with field names prefixed with the
+	 * tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	/**
+	 * @return the tuple the next entry points to, or null if there are no
+	 * more entries
+	 */
+	private Tuple fetchNext() throws DbException, TransactionAbortedException {
+		while (entries.hasNext()) {
+			RecordId rid = index.recordIdOf(entries.next());
+			HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			if (!p.isSlotUsed(rid.getTupleNumber()))
+				continue;
+			Tuple t = p.getTuple(rid.getTupleNumber());
+			// the slot holds another tuple than the one the entry was made
+			// for, e.g. in the snapshot of a read-only transaction
+			if (ipred != null && !t.getField(index.getField()).compare(ipred.getOp(), ipred.getField()))
+				continue;
+			return t;
+		}
+		return null;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		if (next == null)
+			next = fetchNext();
+		return next != null;
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple t = next;
+		next = null;
+		return t;
+	}
+
+	public void close() {
+		if (entries != null)
+			entries.close();
+		next = null;
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
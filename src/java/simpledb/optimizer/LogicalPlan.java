@@ -4,6 +4,12 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.HashFile;
+import simpledb.index.HashScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -274,6 +280,246 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return the constant of a filter, as a field of the type of the field
+     *   it is compared with
+     * @throws ParsingException if the filter's field is not in td
+     */
+    private Field filterConstant(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Type ftyp;
+        try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
+            ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c));
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /**
+     * @return whether a B+ tree can find the tuples matching op by itself
+     */
+    private static boolean isIndexable(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @return a filter on the specified field of the table of an alias that
+     *   a B+ tree on the field can apply, preferring an equality filter, or
+     *   null if there is none
+     */
+    private LogicalFilterNode indexFilter(String alias, String fieldPureName) {
+        LogicalFilterNode chosen = null;
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias) && lf.fieldPureName.equals(fieldPureName) && isIndexable(lf.p)
+                    && (chosen == null || (chosen.p != Predicate.Op.EQUALS && lf.p == Predicate.Op.EQUALS)))
+                chosen = lf;
+        }
+        return chosen;
+    }
+
+    /**
+     * @return the names of the fields of the table of each alias that the
+     *   query refers to
+     */
+    private Map<String,Set<String>> referencedFields() {
+        Map<String,Set<String>> refs = new HashMap<>();
+        for (LogicalScanNode table : tables)
+            refs.put(table.alias, new HashSet<>());
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*")) {
+                for (LogicalScanNode table : tables) {
+                    TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+                    for (int i = 0; i < td.numFields(); i++)
+                        refs.get(table.alias).add(td.getFieldName(i));
+                }
+            } else {
+                names.add(si.fname);
+            }
+        }
+        if (groupByField != null)
+            names.add(groupByField);
+        if (hasOrderBy)
+            names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            Set<String> fields = refs.get(parts[0]);
+            if (fields != null)
+                fields.add(parts[1]);
+        }
+        return refs;
+    }
+
+    /**
+     * Replace the sequential scan of each table by an {@link IndexOnlyScan}
+     * if a B+ tree stores all the fields of the table the query refers to:
+     * <ul>
+     * <li>a table stored in a BTreeFile, if the query refers to only some of
+     *   its fields or filters on its key;
+     * <li>a heap table, if the query refers only to a field with a secondary
+     *   index, and the part of the index to read has no more pages than the
+     *   table.
+     * </ul>
+     * A filter on the key of the tree is applied by the scan itself.
+     *
+     * @return the filters the chosen index-only scans apply
+     */
+    private Set<LogicalFilterNode> chooseIndexOnlyScans(TransactionId t, Map<String,TableStats> statsMap, boolean explain) throws ParsingException {
+        Set<LogicalFilterNode> indexed = new HashSet<>();
+        Map<String,Set<String>> refs = referencedFields();
+        for (LogicalScanNode table : tables) {
+            TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+            List<Integer> fields = new ArrayList<>();
+            for (int i = 0; i < td.numFields(); i++) {
+                if (refs.get(table.alias).contains(td.getFieldName(i)))
+                    fields.add(i);
+            }
+            if (fields.isEmpty())
+                continue;
+
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            OpIterator subplan = subplanMap.get(table.alias);
+            LogicalFilterNode lf;
+            IndexOnlyScan scan;
+            if (file instanceof BTreeFile) {
+                lf = indexFilter(table.alias, td.getFieldName(((BTreeFile) file).keyField()));
+                if (lf == null && fields.size() == td.numFields())
+                    continue;
+                IndexPredicate ipred = lf == null ? null : new IndexPredicate(lf.p, filterConstant(lf, subplan.getTupleDesc()));
+                scan = new IndexOnlyScan(t, table.t, fields.stream().mapToInt(Integer::intValue).toArray(),
+                        table.alias, ipred);
+            } else if (file instanceof HeapFile && fields.size() == 1) {
+                SecondaryIndex index = Database.getCatalog().getIndex(table.t, fields.get(0));
+                if (index == null)
+                    continue;
+                lf = indexFilter(table.alias, td.getFieldName(index.getField()));
+                double sel = 1.0;
+                IndexPredicate ipred = null;
+                if (lf != null) {
+                    Field f = filterConstant(lf, subplan.getTupleDesc());
+                    TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+                    sel = s.estimateSelectivity(index.getField(), lf.p, f);
+                    ipred = new IndexPredicate(lf.p, f);
+                }
+                if (sel * index.getFile().numPages() > ((HeapFile) file).numPages())
+                    continue;
+                scan = new IndexOnlyScan(t, index, table.alias, ipred);
+            } else {
+                continue;
+            }
+            subplanMap.put(table.alias, scan);
+            if (lf != null)
+                indexed.add(lf);
+            if (explain) {
+                System.out.println("Reading " + scan.getTupleDesc() + " of " + table.alias + " from index pages only"
+                        + (lf == null ? "" : " for " + lf.fieldQuantifiedName + " " + lf.p + " " + lf.c));
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Replace the sequential scan of each table that has a filter on a field
+     * with a secondary index by a {@link SecondaryIndexScan}, if looking up
+     * the matching tuples is estimated to be cheaper than scanning the table.
+     * An equality filter is preferred over a range filter.  Each matching
+     * tuple is taken to cost a random page read.  Without statistics on the
+     * table to estimate the selectivity from, only an equality filter is
+     * taken to be selective enough.
+     *
+     * @return the filters the chosen index scans apply
+     */
+    private Set<LogicalFilterNode> chooseIndexScans(TransactionId t, Map<String,TableStats> statsMap, boolean explain) throws ParsingException {
+        Map<String,LogicalFilterNode> chosen = new HashMap<>();
+        for (LogicalFilterNode lf : filters) {
+            if (!isIndexable(lf.p))
+                continue;
+            // a table already read through an index-only scan
+            OpIterator subplan = subplanMap.get(lf.tableAlias);
+            if (!(subplan instanceof SeqScan))
+                continue;
+            int field;
+            try {
+                field = subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            if (Database.getCatalog().getIndex(getTableId(lf.tableAlias), field) == null)
+                continue;
+            LogicalFilterNode prev = chosen.get(lf.tableAlias);
+            if (prev == null || (prev.p != Predicate.Op.EQUALS && lf.p == Predicate.Op.EQUALS))
+                chosen.put(lf.tableAlias, lf);
+        }
+
+        Set<LogicalFilterNode> indexed = new HashSet<>();
+        for (LogicalFilterNode lf : chosen.values()) {
+            OpIterator subplan = subplanMap.get(lf.tableAlias);
+            int tableId = getTableId(lf.tableAlias);
+            int field = subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName);
+            Field f = filterConstant(lf, subplan.getTupleDesc());
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            if (s == null || s.totalTuples() == 0) {
+                if (lf.p != Predicate.Op.EQUALS)
+                    continue;
+            } else {
+                double sel = s.estimateSelectivity(field, lf.p, f);
+                double indexCost = s.estimateTableCardinality(sel) * TableStats.IOCOSTPERPAGE;
+                if (indexCost > s.estimateScanCost())
+                    continue;
+            }
+            subplanMap.put(lf.tableAlias, new SecondaryIndexScan(t, Database.getCatalog().getIndex(tableId, field),
+                    lf.tableAlias, new IndexPredicate(lf.p, f)));
+            indexed.add(lf);
+            if (explain) {
+                System.out.println("Scanning " + lf.tableAlias + " through the index on " + lf.fieldQuantifiedName
+                        + " for " + lf.fieldQuantifiedName + " " + lf.p + " " + lf.c);
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Replace the sequential scan of each table stored in a {@link HashFile}
+     * that has an equality filter on its key by a {@link HashScan}, which
+     * reads only the bucket of the key.
+     *
+     * @return the filters the chosen hash scans apply
+     */
+    private Set<LogicalFilterNode> chooseHashScans(TransactionId t, boolean explain) throws ParsingException {
+        Set<LogicalFilterNode> indexed = new HashSet<>();
+        for (LogicalFilterNode lf : filters) {
+            if (lf.p != Predicate.Op.EQUALS)
+                continue;
+            OpIterator subplan = subplanMap.get(lf.tableAlias);
+            if (!(subplan instanceof SeqScan))
+                continue;
+            int tableId = getTableId(lf.tableAlias);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (!(file instanceof HashFile)
+                    || !lf.fieldPureName.equals(file.getTupleDesc().getFieldName(((HashFile) file).keyField())))
+                continue;
+            Field f = filterConstant(lf, subplan.getTupleDesc());
+            subplanMap.put(lf.tableAlias, new HashScan(t, tableId, lf.tableAlias, new IndexPredicate(lf.p, f)));
+            indexed.add(lf);
+            if (explain) {
+                System.out.println("Reading the bucket of " + lf.fieldQuantifiedName + " = " + lf.c
+                        + " of " + lf.tableAlias);
+            }
+        }
+        return indexed;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -309,25 +555,21 @@ public class LogicalPlan {
 
         }
 
+        // a snapshot can only read heap pages, so not the secondary indexes
+        Set<LogicalFilterNode> indexedFilters = new HashSet<>();
+        if (!Database.getBufferPool().readsSnapshot(t)) {
+            indexedFilters.addAll(chooseIndexOnlyScans(t, statsMap, explain));
+            indexedFilters.addAll(chooseIndexScans(t, statsMap, explain));
+        }
+        indexedFilters.addAll(chooseHashScans(t, explain));
+
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            Field f = filterConstant(lf, subplan.getTupleDesc());
 
             Predicate p = null;
             try {
@@ -335,11 +577,15 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // a filter the index scan already applies is not repeated
+            if (!indexedFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the scan may read only some of the fields of the table
+            int field = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName);
+            double sel = s.estimateSelectivity(field, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -1,14 +1,24 @@
 package simpledb.storage;
 
+import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.index.SecondaryIndex;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -19,6 +29,16 @@ import java.util.concurrent.ConcurrentHashMap;
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
  * BufferPool是内存中直接读写数据的结构
+ * <p>
+ * Read-only transactions that started with {@link #beginSnapshot} take no
+ * locks: they get a private copy of each heap page as it was when their
+ * snapshot began, rebuilt from the prior slot versions writers keep (see
+ * {@link VersionStore}), so they never block writers or wait for them.
+ * Only heap pages keep versions.  The pages of B+ trees and hash files,
+ * including their header and root pointer pages, do not, so a snapshot
+ * cannot read them: getPage() throws DbException rather than lock them,
+ * and the planner does not read a heap table of a snapshot through its
+ * secondary indexes.
  *
  * @Threadsafe, all fields are final
  */
@@ -39,18 +59,72 @@ public class BufferPool {
 
     private int maxNumPages;
 
-    // PageId.hasCode是这个key
-    private ConcurrentHashMap<Integer, Page> idToPage;
+    // keyed on (tableId, pageNo), not on PageId.hashCode(), which may collide
+    private final PageTable pageTable;
+
+    private final EvictionPolicy evictionPolicy;
+
+    private final BufferPoolStats stats;
+
+    // null when read-ahead is turned off
+    private volatile ReadAhead readAhead;
+
+    // pages loaded by read-ahead that no scan has reached yet
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+
+    // pages read-ahead is reading from disk, keyed like pageTable; set to
+    // false when the page leaves the pool meanwhile, as the disk copy read
+    // may be stale by then
+    private final Map<Long, Boolean> prefetching = new ConcurrentHashMap<>();
+
+    private final LockManager lockManager = new LockManager();
+
+    // pages whose logged changes may not be on disk yet, with an LSN no later
+    // than the oldest such change (the recLSN of ARIES' dirty page table)
+    private final ConcurrentHashMap<PageId, Long> recLsns = new ConcurrentHashMap<>();
+
+    // pages marked dirty since they were last written; may hold pages that
+    // became clean otherwise, e.g. by rollback
+    private final Set<PageId> dirtyPages = ConcurrentHashMap.newKeySet();
+
+    // transactions in the middle of an insert or delete, with a count per
+    // thread; the pages they dirtied may be half way through a change, so
+    // they are pinned and the page cleaner leaves them alone
+    private final ConcurrentHashMap<TransactionId, Integer> pins = new ConcurrentHashMap<>();
+
+    // the page cleaner: writes out dirty pages in the background, e.g. the
+    // ones that were dirty at a checkpoint
+    private final PageFlusher flusher = new PageFlusher(this);
+
+    // prior versions of heap page slots, for read-only transactions
+    private final VersionStore versions = new VersionStore();
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * eviction policy selected by the simpledb.storage.EvictionPolicy system
+     * property.
      *
      * @param numPages maximum number of pages in this buffer pool.
+     * @see EvictionPolicy#fromSystemProperty(int)
      */
     public BufferPool(int numPages) {
+        this(numPages, EvictionPolicy.fromSystemProperty(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the policy used to choose pages to evict
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         // some code goes here
         this.maxNumPages = numPages;
-        this.idToPage = new ConcurrentHashMap<>();
+        this.pageTable = new PageTable();
+        this.evictionPolicy = evictionPolicy;
+        this.stats = new BufferPoolStats(evictionPolicy.getName());
+        this.readAhead = ReadAhead.enabledBySystemProperty() ? new ReadAhead(this, numPages) : null;
     }
 
     public static int getPageSize() {
@@ -81,17 +155,341 @@ public class BufferPool {
      * @param tid  the ID of the transaction requesting the page
      * @param pid  the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws DbException if a read-only transaction asks for READ_WRITE, or
+     *   for a page that is not a heap page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        if (!idToPage.containsKey(pid.hashCode())) {
+        Long snapshot = tid == null ? null : versions.snapshotOf(tid);
+        if (snapshot != null) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("transaction " + tid.getId() + " is read-only");
+            }
+            if (!(pid instanceof HeapPageId)) {
+                // reading it under a shared lock would wait for writers
+                throw new DbException("transaction " + tid.getId()
+                        + " reads a snapshot, and only heap pages keep versions, not " + pid);
+            }
+            HeapPage copy = ((HeapPage) fetchPage(pid)).snapshotCopy();
+            versions.rollBack(copy, snapshot);
+            return copy;
+        }
+        if (tid != null) {
+            lockManager.acquire(tid, pid, perm);
+        }
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve a page like {@link #getPage}, but only if its lock can be
+     * granted at once, for callers that must not block while they hold
+     * latches.
+     *
+     * @return the page, or null if another transaction holds a conflicting lock
+     * @throws DbException if a read-only transaction asks for READ_WRITE, or
+     *   for a page that is not a heap page
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (tid != null && versions.snapshotOf(tid) != null) {
+            // refused, or read from the versions without a lock
+            return getPage(tid, pid, perm);
+        }
+        if (tid != null && !lockManager.tryAcquire(tid, pid, perm)) {
+            return null;
+        }
+        return fetchPage(pid);
+    }
+
+    /**
+     * @return the cached page, read in (evicting a page if needed) if it is
+     *   not in the pool
+     */
+    private Page fetchPage(PageId pid) throws DbException {
+        Page page = pageTable.get(pid);
+        if (page != null) {
+            stats.recordHit();
+            evictionPolicy.pageAccessed(pid);
+            return page;
+        }
+        synchronized (this) {
+            page = pageTable.get(pid);
+            if (page != null) {
+                stats.recordHit();
+                evictionPolicy.pageAccessed(pid);
+                return page;
+            }
             // 没在内存中
+            stats.recordMiss();
+            if (pageTable.size() >= maxNumPages) {
+                evictPage();
+            }
+            DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            page = dbfile.readPage(pid);
+            cachePage(page);
+            return page;
+        }
+    }
+
+    /**
+     * Lock a whole table, e.g. to build it in one go.  May block.
+     *
+     * @throws DbException if tid is read-only and asks for READ_WRITE
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (perm == Permissions.READ_WRITE) {
+            checkWritable(tid);
+        }
+        lockManager.acquireTable(tid, tableId, perm);
+    }
+
+    /**
+     * Make a transaction read-only: from now until it completes, it reads the
+     * heap pages as they were at this point, without taking any locks, and
+     * may not change any page, nor read any other page.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /**
+     * @return true if tid is a read-only transaction reading a snapshot
+     */
+    public boolean readsSnapshot(TransactionId tid) {
+        return tid != null && versions.snapshotOf(tid) != null;
+    }
+
+    /**
+     * Retrieve a heap page to change some of its tuples: the page and its
+     * table are locked in intention-exclusive mode only, so other
+     * transactions can change other tuples of it at the same time.  Each
+     * tuple must then be locked with {@link #lockRecord} or
+     * {@link #tryLockRecord}, and changed with {@link #changeSlot}.
+     *
+     * @throws DbException if tid is read-only
+     */
+    Page getPageForRowWrite(TransactionId tid, PageId pid)
+            throws TransactionAbortedException, DbException {
+        checkWritable(tid);
+        lockManager.acquireIntention(tid, pid, Permissions.READ_WRITE);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Lock a tuple, and its page and table in the matching intention mode.
+     * May block.
+     *
+     * @throws DbException if tid is read-only and asks for READ_WRITE
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (perm == Permissions.READ_WRITE) {
+            checkWritable(tid);
+        }
+        lockManager.acquireRecord(tid, rid, perm);
+    }
+
+    /**
+     * Lock a tuple exclusively if no one else has it locked, without
+     * waiting for it.
+     *
+     * @return false if another transaction holds a lock on the tuple
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid)
+            throws TransactionAbortedException, DbException {
+        checkWritable(tid);
+        return lockManager.tryAcquireRecord(tid, rid);
+    }
+
+    /**
+     * @return true if tid holds a lock on the tuple, or on its whole page
+     */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        return lockManager.holdsLock(tid, rid);
+    }
+
+    /**
+     * Record that tid waits for something outside the lock table, such as a
+     * latch, that other transactions hold, so that deadlocks through it are
+     * found; see {@link LockManager#waitOutside}.
+     *
+     * @return true if all the holders are waiting for a lock, directly or
+     *   through other waits like this one
+     */
+    public boolean waitOutside(TransactionId tid, Set<TransactionId> holders)
+            throws TransactionAbortedException {
+        return lockManager.waitOutside(tid, holders);
+    }
+
+    /**
+     * End a wait recorded with {@link #waitOutside}.
+     */
+    public void stopWaiting(TransactionId tid) {
+        lockManager.stopWaiting(tid);
+    }
+
+    /**
+     * @return the number of times a transaction's tuple locks on a page were
+     *   traded for a lock on the whole page
+     */
+    public long getLockEscalations() {
+        return lockManager.getEscalations();
+    }
+
+    private void checkWritable(TransactionId tid) throws DbException {
+        if (versions.snapshotOf(tid) != null) {
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        }
+    }
+
+    /** A change to one slot of a heap page. */
+    interface SlotChange {
+        /**
+         * @return false if the page was left as it was
+         */
+        boolean apply(HeapPage page) throws DbException;
+    }
+
+    /**
+     * Change a slot of a heap page on behalf of a transaction that holds
+     * the lock on it.  The former contents are kept for snapshots and for
+     * undo, and the page is marked dirty.  Changes are serialized with
+     * flushes, so that each is logged under the transaction that made it.
+     *
+     * @return the page, or null if the change left it as it was
+     */
+    synchronized HeapPage changeSlot(TransactionId tid, PageId pid, int slot, SlotChange change)
+            throws DbException {
+        HeapPage p = (HeapPage) fetchPage(pid);
+        synchronized (p) {
+            byte[] before = p.slotData(slot);
+            if (!change.apply(p)) {
+                return null;
+            }
+            versions.record(tid, pid, slot, before);
+            p.markDirty(true, tid);
+        }
+        dirtyPages.add(pid);
+        return p;
+    }
+
+    /**
+     * @return the number of prior slot versions kept for snapshots
+     */
+    public int getRetainedVersions() {
+        return versions.size();
+    }
+
+    /**
+     * @return the hit, miss and eviction counters of this buffer pool
+     */
+    public BufferPoolStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Start read-ahead for a scan. The scan reports every page it moves to
+     * with {@link ReadAhead.Stream#accessed(Page)}.
+     *
+     * @param successor returns the id of the page a sequential scan reads
+     *                  after the given page, or null at the end
+     * @return the stream, or null if read-ahead is off for this pool
+     */
+    public ReadAhead.Stream readAheadStream(Function<Page, PageId> successor) {
+        ReadAhead r = readAhead;
+        return r == null ? null : r.newStream(successor);
+    }
+
+    /**
+     * Turn read-ahead on or off for scans started from now on.
+     *
+     * @see ReadAhead#PROPERTY
+     */
+    public void setReadAhead(boolean on) {
+        if (!on) {
+            readAhead = null;
+        } else if (readAhead == null) {
+            readAhead = new ReadAhead(this, maxNumPages);
+        }
+    }
+
+    /**
+     * Load a page into the pool on behalf of read-ahead, without taking any
+     * lock for a transaction. The page is read before the pool's monitor is
+     * taken, so transactions do not wait on read-ahead's disk reads; only
+     * clean pages are evicted to make room.
+     *
+     * @return the cached page, or null if there is no room for it or it
+     *   left the pool while it was read
+     */
+    Page prefetchPage(PageId pid) {
+        Page page = pageTable.get(pid);
+        if (page != null) {
+            return page;
+        }
+        long key = PageTable.key(pid.getTableId(), pid.getPageNumber());
+        if (prefetching.putIfAbsent(key, Boolean.TRUE) != null) {
+            return null;
+        }
+        try {
             DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbfile.readPage(pid);
-            idToPage.put(pid.hashCode(), page);
+            Page read = dbfile.readPage(pid);
+            synchronized (this) {
+                page = pageTable.get(pid);
+                if (page != null) {
+                    return page;
+                }
+                if (!prefetching.get(key)) {
+                    return null;
+                }
+                try {
+                    if (pageTable.size() >= maxNumPages) {
+                        evictPage();
+                    }
+                } catch (DbException e) {
+                    return null;
+                }
+                cachePage(read);
+                prefetched.add(pid);
+                stats.recordPrefetch();
+                return read;
+            }
+        } finally {
+            prefetching.remove(key);
+        }
+    }
+
+    /**
+     * Tell a read of the page by read-ahead that is under way that the page
+     * left the pool, so the copy it read must not be cached.
+     */
+    private void prefetchInvalidated(PageId pid) {
+        prefetching.replace(PageTable.key(pid.getTableId(), pid.getPageNumber()), Boolean.FALSE);
+    }
+
+    /**
+     * Called by read-ahead when a scan reaches a page it prefetched.
+     *
+     * @return true if the page was still cached, false if it had been
+     *   evicted before the scan got to it
+     */
+    boolean prefetchConsumed(PageId pid) {
+        if (prefetched.remove(pid)) {
+            stats.recordPrefetchHit();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget that a page leaving the pool was prefetched.
+     */
+    private void prefetchDropped(PageId pid) {
+        if (prefetched.remove(pid)) {
+            stats.recordPrefetchWasted();
         }
-        return idToPage.get(pid.hashCode());
     }
 
     /**
@@ -106,6 +504,7 @@ public class BufferPool {
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -116,6 +515,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /**
@@ -124,19 +524,115 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
      *
+     * <p>
+     * The page cleaner and checkpoints write pages that transactions have
+     * not committed yet.  So an abort of a transaction that has records in the
+     * log is rolled back from the log first (see {@link LogFile#logAbort}),
+     * which also undoes the changes that already reached the disk.
+     *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        // a transaction can only have dirtied pages it holds a lock on
+        // an interrupt that aborted tid would close the file channels this
+        // writes to for every thread; it is set again when done
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!commit && Database.getLogFile().hasLogged(tid)) {
+                Database.getLogFile().logAbort(tid);
+            }
+            for (PageId pid : lockManager.lockedPages(tid)) {
+                Page p = pageTable.get(pid);
+                if (commit) {
+                    if (p != null && dirtiedBy(tid, p)) {
+                        // FORCE: write the changes out; they become the new before image
+                        flushPage(pid);
+                    }
+                } else if (sharesChanges(tid, pid, p)) {
+                    // the page holds other transactions' changes too, or
+                    // went to disk with tid's: undo just tid's slots
+                    undoSlots(tid, pid);
+                } else if (p != null && tid.equals(p.isDirty())) {
+                    // nothing of tid's was logged for this page, so none of
+                    // it was written: the disk holds the last committed version
+                    discardPage(pid);
+                }
+            }
+        } catch (IOException | DbException e) {
+            throw new RuntimeException("could not flush pages of transaction " + tid.getId(), e);
+        } finally {
+            // before the locks go, so that the next writer of a slot stacks
+            // its version on top of these
+            if (commit) {
+                versions.commit(tid);
+            } else {
+                versions.abort(tid);
+            }
+            versions.end(tid);
+            lockManager.releaseAll(tid);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if the page is dirty with changes of tid: it changed the
+     *   page last, or changed tuples of it that another transaction's
+     *   changes followed
+     */
+    private boolean dirtiedBy(TransactionId tid, Page p) {
+        return p.isDirty() != null
+                && (tid.equals(p.isDirty()) || versions.pendingWriters(p.getId()).containsValue(tid));
+    }
+
+    /**
+     * @return true if tid changed tuples of a heap page that also holds
+     *   uncommitted changes of other transactions, or whose cached copy is
+     *   not just tid's changes on top of the disk
+     */
+    private boolean sharesChanges(TransactionId tid, PageId pid, Page p) {
+        if (!(pid instanceof HeapPageId)) {
+            return false;
+        }
+        Collection<TransactionId> writers = versions.pendingWriters(pid).values();
+        if (!writers.contains(tid)) {
+            return false;
+        }
+        if (p == null || !tid.equals(p.isDirty())) {
+            return true;
+        }
+        for (TransactionId w : writers) {
+            if (!w.equals(tid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the tuples of a heap page that an aborting transaction changed
+     * back to their contents before, leaving the changes of others.  Every
+     * change is logged first, so the undo is logged as tid's.
+     */
+    private synchronized void undoSlots(TransactionId tid, PageId pid) throws IOException, DbException {
+        HeapPage p = (HeapPage) fetchPage(pid);
+        flushPage(pid);
+        if (versions.undo(tid, p)) {
+            p.markDirty(true, tid);
+            dirtyPages.add(pid);
+            flushPage(pid);
+        }
     }
 
     /**
@@ -149,6 +645,11 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * Adds the tuple's entry to each secondary index on the table.  The
+     * table's pages are only handed to the pool once every entry is in; if
+     * an index refuses its entry, the tuple is taken out of the table and the
+     * indexes again, so the table never holds a tuple an index misses.
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -159,8 +660,24 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile f = Database.getCatalog().getDatabaseFile(tableId);
-        ArrayList<Page> pages = (ArrayList<Page>) f.insertTuple(tid, t);
-        updateBufferPool(pages, tid);
+        pin(tid);
+        try {
+            List<Page> pages = f.insertTuple(tid, t);
+            List<SecondaryIndex> indexed = new ArrayList<>();
+            try {
+                for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+                    updateBufferPool(index.insertEntry(tid, t), tid);
+                    indexed.add(index);
+                }
+            } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+                removeInserted(tid, f, t, indexed, e);
+                throw e;
+            }
+            updateBufferPool(pages, tid);
+        } finally {
+            unpin(tid);
+        }
+        cleanIfNeeded();
     }
 
     /**
@@ -172,6 +689,8 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * Removes the tuple's entry from each secondary index on its table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
@@ -181,21 +700,86 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile f = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        ArrayList<Page> pages = (ArrayList<Page>) f.deleteTuple(tid, t);
-        updateBufferPool(pages, tid);
+        pin(tid);
+        try {
+            ArrayList<Page> pages = (ArrayList<Page>) f.deleteTuple(tid, t);
+            updateBufferPool(pages, tid);
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(f.getId())) {
+                updateBufferPool(index.deleteEntry(tid, t), tid);
+            }
+        } finally {
+            unpin(tid);
+        }
+        cleanIfNeeded();
     }
 
-    private void updateBufferPool(ArrayList<Page> pagelist, TransactionId tid) throws DbException {
+    /**
+     * Take a tuple whose index entries could not all be added out of its
+     * table and of the indexes that took its entry.  What cannot be undone
+     * is left to the transaction's abort, and noted on the original failure.
+     */
+    private void removeInserted(TransactionId tid, DbFile f, Tuple t, List<SecondaryIndex> indexed, Exception cause) {
+        try {
+            for (SecondaryIndex index : indexed) {
+                updateBufferPool(index.deleteEntry(tid, t), tid);
+            }
+            updateBufferPool(f.deleteTuple(tid, t), tid);
+        } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    private void pin(TransactionId tid) {
+        pins.merge(tid, 1, Integer::sum);
+    }
+
+    private void unpin(TransactionId tid) {
+        pins.computeIfPresent(tid, (t, n) -> n == 1 ? null : n - 1);
+    }
+
+    /**
+     * Hand the dirty pages to the page cleaner once they take up more of the
+     * pool than the cleaner's threshold, so that eviction, which only takes
+     * clean pages, keeps finding victims.
+     */
+    private void cleanIfNeeded() {
+        if (dirtyPages.size() > maxNumPages * flusher.getDirtyRatio()) {
+            flusher.schedule(new ArrayList<>(dirtyPages));
+        }
+    }
+
+    private synchronized void updateBufferPool(List<Page> pagelist, TransactionId tid) throws DbException {
         for (Page p : pagelist) {
             p.markDirty(true, tid);
+            dirtyPages.add(p.getId());
             // 更新内存页面
-            if (idToPage.size() > maxNumPages) {
-                evictPage();
+            if (pageTable.get(p.getId()) != null) {
+                pageTable.put(p);
+                evictionPolicy.pageAccessed(p.getId());
+            } else {
+                if (!pageTable.contains(p.getId()) && pageTable.size() >= maxNumPages) {
+                    evictPage();
+                }
+                cachePage(p);
             }
-            idToPage.put(p.getId().hashCode(), p);
         }
     }
 
+    /**
+     * Put a page that was not cached under its id into the page table. A
+     * page cached at the same table and page number under a different id
+     * (a reused BTree page) is replaced.
+     */
+    private void cachePage(Page page) {
+        Page old = pageTable.put(page);
+        if (old != null) {
+            dirtyPages.remove(old.getId());
+            evictionPolicy.pageDiscarded(old.getId());
+            prefetchDropped(old.getId());
+        }
+        evictionPolicy.pageAdmitted(page.getId());
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -204,7 +788,9 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-
+        for (Page p : pageTable.pages()) {
+            flushPage(p.getId());
+        }
     }
 
     /**
@@ -219,6 +805,14 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        // whatever is cached at this position is stale, whatever its page category
+        prefetchInvalidated(pid);
+        Page old = pageTable.remove(pid);
+        if (old != null) {
+            dirtyPages.remove(old.getId());
+            evictionPolicy.pageDiscarded(old.getId());
+            prefetchDropped(old.getId());
+        }
     }
 
     /**
@@ -229,6 +823,163 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
+        Page p = pageTable.get(pid);
+        if (p == null) {
+            return;
+        }
+        if (p.isDirty() != null) {
+            List<Page> run = new ArrayList<>(1);
+            run.add(p);
+            writeRun(run);
+        }
+    }
+
+    /**
+     * Write out pages on behalf of the page cleaner, coalescing the pages
+     * that are adjacent in the same file into one vectored write.  Pages
+     * that are no longer cached, clean or pinned are skipped.
+     *
+     * @param pids the pages to write, sorted by table id and page number
+     */
+    synchronized void cleanPages(List<PageId> pids) throws IOException {
+        List<Page> run = new ArrayList<>();
+        for (PageId pid : pids) {
+            // whatever is cached at this position now
+            Page p = pageTable.get(pid.getTableId(), pid.getPageNumber());
+            TransactionId dirtier = p == null ? null : p.isDirty();
+            if (dirtier == null || pins.containsKey(dirtier)) {
+                cleanRun(run);
+                continue;
+            }
+            if (!run.isEmpty()) {
+                PageId last = run.get(run.size() - 1).getId();
+                if (last.getTableId() != p.getId().getTableId()
+                        || last.getPageNumber() + 1 != p.getId().getPageNumber()) {
+                    cleanRun(run);
+                }
+            }
+            run.add(p);
+        }
+        cleanRun(run);
+    }
+
+    private void cleanRun(List<Page> run) throws IOException {
+        if (!run.isEmpty()) {
+            stats.recordCleanerWrite(run.size());
+            writeRun(run);
+        }
+    }
+
+    /**
+     * Log and write dirty pages that are adjacent in their file, and mark
+     * them clean.  The run is emptied.
+     */
+    private void writeRun(List<Page> run) throws IOException {
+        LogFile log = Database.getLogFile();
+        long lastLsn = 0;
+        for (Page p : run) {
+            // from before the record is appended, so a checkpoint taken in
+            // between sees the page
+            recLsns.putIfAbsent(p.getId(), log.getNextLsn());
+            p.setLsn(logChanges(log, p));
+            lastLsn = Math.max(lastLsn, p.getLsn());
+        }
+        // write ahead: the update records must be on disk before the pages;
+        // one force covers the whole run
+        log.forceTo(lastLsn);
+        Database.getCatalog().getDatabaseFile(run.get(0).getId().getTableId()).writePages(run);
+        for (Page p : run) {
+            recLsns.remove(p.getId());
+            dirtyPages.remove(p.getId());
+            p.markDirty(false, null);
+            // the next log record for this page describes the changes from here on
+            p.setBeforeImage();
+        }
+        run.clear();
+    }
+
+    /**
+     * Log the changes to a page since it was last written.  The changes to
+     * tuples that transactions still hold locks on are logged under each of
+     * them; the rest under the transaction that dirtied the page.
+     *
+     * @return the LSN of the last record
+     */
+    private long logChanges(LogFile log, Page p) throws IOException {
+        TransactionId dirtier = p.isDirty();
+        Map<Integer, TransactionId> writers = versions.pendingWriters(p.getId());
+        if (writers.isEmpty()) {
+            return log.logWrite(dirtier, p.getBeforeImage(), p);
+        }
+        PageDelta delta = PageDelta.diff(p.getLayout(), p.getBeforeImage().getPageData(), p.getPageData());
+        Map<TransactionId, PageDelta> parts = delta.split(slot -> writers.getOrDefault(slot, dirtier));
+        if (parts.isEmpty()) {
+            return log.logDelta(dirtier, p.getId(), delta);
+        }
+        long lsn = 0;
+        for (Map.Entry<TransactionId, PageDelta> e : parts.entrySet()) {
+            lsn = log.logDelta(e.getKey(), p.getId(), e.getValue());
+        }
+        return lsn;
+    }
+
+    /**
+     * Write out the pages that are dirty now on a background thread, a few
+     * at a time, without holding the buffer pool lock in between.  Called
+     * after a fuzzy checkpoint instead of {@link #flushAllPages()}.
+     */
+    public void flushAllPagesInBackground() {
+        List<PageId> dirty = new ArrayList<>();
+        for (Page p : pageTable.pages()) {
+            if (p.isDirty() != null) {
+                dirty.add(p.getId());
+            }
+        }
+        flusher.schedule(dirty);
+    }
+
+    /**
+     * Force the pages written so far to disk, for every table and secondary
+     * index, each followed by the LSNs its file keeps on the side (see
+     * {@link DbFile#sync()}).  Called at every checkpoint.
+     */
+    public void syncFiles() throws IOException {
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> tables = catalog.tableIdIterator();
+        while (tables.hasNext()) {
+            int tableId = tables.next();
+            catalog.getDatabaseFile(tableId).sync();
+            for (SecondaryIndex index : catalog.getIndexes(tableId)) {
+                index.getFile().sync();
+            }
+        }
+    }
+
+    /**
+     * Set the share of the pool that dirty pages may take up before the page
+     * cleaner starts writing them out; 1 or more turns that off.
+     *
+     * @see PageFlusher#DIRTY_RATIO_PROPERTY
+     */
+    public void setCleanerDirtyRatio(double ratio) {
+        flusher.setDirtyRatio(ratio);
+    }
+
+    /**
+     * Wait until the background flusher has processed all pages scheduled so far.
+     *
+     * @return false if that took longer than timeoutMillis
+     */
+    public boolean awaitBackgroundFlush(long timeoutMillis) throws InterruptedException {
+        return flusher.awaitIdle(timeoutMillis);
+    }
+
+    /**
+     * @return the pages whose logged changes may not have reached the disk,
+     *   each with an LSN no later than its oldest such change
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(recLsns);
     }
 
     /**
@@ -237,15 +988,43 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for (Page p : pageTable.pages()) {
+            if (dirtiedBy(tid, p)) {
+                flushPage(p.getId());
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the eviction policy among the clean pages only,
+     * so eviction itself never writes.  Uncommitted changes still reach the
+     * disk through the page cleaner and checkpoints (STEAL); they are logged
+     * first, and an abort undoes them from the log.
+     *
+     * @throws DbException if every page in the buffer pool is dirty
      */
     private synchronized void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
+        PageId victim = evictionPolicy.chooseVictim(pid -> {
+            Page p = pageTable.get(pid);
+            return p == null || p.isDirty() == null;
+        });
+        if (victim == null) {
+            throw new DbException("cannot evict: all pages in the buffer pool are dirty");
+        }
+        try {
+            flushPage(victim);
+        } catch (IOException e) {
+            throw new DbException("could not flush page " + victim.getPageNumber() + ": " + e.getMessage());
+        }
+        pageTable.remove(victim);
+        evictionPolicy.pageEvicted(victim);
+        prefetchDropped(victim);
+        prefetchInvalidated(victim);
+        stats.recordEviction();
     }
 
 }
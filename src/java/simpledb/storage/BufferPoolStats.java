@@ -0,0 +1,170 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counters of a BufferPool, labelled with the name of
+ * the eviction policy in use, so that policies can be compared on the same
+ * workload. Also counts the pages loaded by read-ahead and whether the scans
+ * they were loaded for got to use them, and the pages the page cleaner wrote
+ * with how many writes.
+ *
+ * @see BufferPool#getStats()
+ * @Threadsafe
+ */
+public class BufferPoolStats {
+
+    private final String policyName;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchesWasted = new AtomicLong();
+    private final AtomicInteger readAheadDepth = new AtomicInteger();
+    private final AtomicInteger maxReadAheadDepth = new AtomicInteger();
+    private final AtomicLong pagesCleaned = new AtomicLong();
+    private final AtomicLong cleanerWrites = new AtomicLong();
+
+    public BufferPoolStats(String policyName) {
+        this.policyName = policyName;
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    void recordPrefetch() {
+        prefetches.incrementAndGet();
+    }
+
+    void recordPrefetchHit() {
+        prefetchHits.incrementAndGet();
+    }
+
+    void recordPrefetchWasted() {
+        prefetchesWasted.incrementAndGet();
+    }
+
+    void recordReadAheadDepth(int depth) {
+        readAheadDepth.set(depth);
+        maxReadAheadDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    void recordCleanerWrite(int pages) {
+        pagesCleaned.addAndGet(pages);
+        cleanerWrites.incrementAndGet();
+    }
+
+    /**
+     * @return the name of the eviction policy these counters belong to
+     */
+    public String getPolicyName() {
+        return policyName;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of pages read into the pool by read-ahead
+     */
+    public long getPrefetches() {
+        return prefetches.get();
+    }
+
+    /**
+     * @return the number of prefetched pages a scan found still cached
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /**
+     * @return the number of prefetched pages evicted or discarded before
+     *   any scan got to them
+     */
+    public long getPrefetchesWasted() {
+        return prefetchesWasted.get();
+    }
+
+    /**
+     * @return the read-ahead depth most recently chosen by a scan
+     */
+    public int getReadAheadDepth() {
+        return readAheadDepth.get();
+    }
+
+    /**
+     * @return the largest read-ahead depth chosen since the last reset
+     */
+    public int getMaxReadAheadDepth() {
+        return maxReadAheadDepth.get();
+    }
+
+    /**
+     * @return the number of dirty pages written by the page cleaner
+     */
+    public long getPagesCleaned() {
+        return pagesCleaned.get();
+    }
+
+    /**
+     * @return the number of writes the page cleaner issued; adjacent pages
+     *   share one
+     */
+    public long getCleanerWrites() {
+        return cleanerWrites.get();
+    }
+
+    /**
+     * @return hits / (hits + misses), or 0 if no page has been requested yet
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Reset all counters to zero. */
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        prefetches.set(0);
+        prefetchHits.set(0);
+        prefetchesWasted.set(0);
+        readAheadDepth.set(0);
+        maxReadAheadDepth.set(0);
+        pagesCleaned.set(0);
+        cleanerWrites.set(0);
+    }
+
+    public String toString() {
+        return String.format("%s: hits=%d misses=%d evictions=%d hitRatio=%.3f"
+                        + " prefetches=%d prefetchHits=%d prefetchesWasted=%d readAheadDepth=%d/%d"
+                        + " pagesCleaned=%d cleanerWrites=%d",
+                policyName, getHits(), getMisses(), getEvictions(), getHitRatio(),
+                getPrefetches(), getPrefetchHits(), getPrefetchesWasted(),
+                getReadAheadDepth(), getMaxReadAheadDepth(),
+                getPagesCleaned(), getCleanerWrites());
+    }
+}
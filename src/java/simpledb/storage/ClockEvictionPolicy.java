@@ -0,0 +1,106 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) eviction. Pages sit in a circular array of frames,
+ * each with a reference bit that is set on every access. The clock hand
+ * sweeps the frames, clearing reference bits, and picks the first evictable
+ * page whose bit is already clear.
+ *
+ * @see EvictionPolicy
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final Map<PageId, Integer> frameOf;
+    private final Deque<Integer> freeFrames;
+    private int used;
+    private int hand;
+
+    /**
+     * @param numPages initial number of frames; grows if more pages are admitted
+     */
+    public ClockEvictionPolicy(int numPages) {
+        int n = Math.max(1, numPages);
+        this.frames = new PageId[n];
+        this.referenced = new boolean[n];
+        this.frameOf = new HashMap<>();
+        this.freeFrames = new ArrayDeque<>();
+        this.used = 0;
+        this.hand = 0;
+    }
+
+    public String getName() {
+        return "clock";
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            if (!freeFrames.isEmpty()) {
+                frame = freeFrames.pop();
+            } else {
+                if (used == frames.length) {
+                    frames = Arrays.copyOf(frames, frames.length * 2);
+                    referenced = Arrays.copyOf(referenced, referenced.length * 2);
+                }
+                frame = used++;
+            }
+            frames[frame] = pid;
+            frameOf.put(pid, frame);
+        }
+        referenced[frame] = true;
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+        }
+    }
+
+    public void pageEvicted(PageId pid) {
+        remove(pid);
+    }
+
+    public void pageDiscarded(PageId pid) {
+        remove(pid);
+    }
+
+    private synchronized void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            referenced[frame] = false;
+            freeFrames.push(frame);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        if (used == 0) {
+            return null;
+        }
+        // two full sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * used; step++) {
+            int frame = hand;
+            hand = (hand + 1) % used;
+            PageId pid = frames[frame];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -33,6 +33,41 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Push pages that are adjacent in the file to disk.  Files that can do so
+     * write them with a single vectored (gathering) write; by default they
+     * are written one at a time.
+     *
+     * @param pages the pages to write, with consecutive page numbers in
+     *              increasing order
+     * @throws IOException if the write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
+    /**
+     * Force the pages written so far to disk, and after them whatever the
+     * file keeps about them on the side, such as their LSNs.  Does nothing
+     * by default.
+     *
+     * @throws IOException if the file cannot be forced
+     */
+    default void sync() throws IOException {
+    }
+
+    /**
+     * Create a page of this file from the bytes returned by its
+     * {@link Page#getPageData()}, e.g. a page image rebuilt by recovery.
+     *
+     * @throws IOException if the bytes are not a valid page
+     */
+    default Page makePage(PageId id, byte[] data) throws IOException {
+        throw new UnsupportedOperationException("makePage");
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
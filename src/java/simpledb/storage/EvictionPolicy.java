@@ -0,0 +1,94 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which page the BufferPool should give up when it
+ * needs room for a new one. The BufferPool reports every admission, hit,
+ * eviction and discard to the policy, and asks it for a victim when the
+ * pool is full.
+ * <p>
+ * The policy only tracks page ids; whether a page may actually be evicted
+ * (e.g. it is not dirty) is decided by the BufferPool through
+ * the predicate passed to {@link #chooseVictim}.
+ * <p>
+ * The policy used by the default BufferPool is chosen with the system
+ * property simpledb.storage.EvictionPolicy, which may be one of "clock",
+ * "lru-k" or "2q". For example, on the command line, use
+ * -Dsimpledb.storage.EvictionPolicy=2q.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+public interface EvictionPolicy {
+
+    String PROPERTY = "simpledb.storage.EvictionPolicy";
+
+    /**
+     * @return a short name for this policy, used in statistics output
+     */
+    String getName();
+
+    /**
+     * Called when a page has been read into the buffer pool.
+     */
+    void pageAdmitted(PageId pid);
+
+    /**
+     * Called when a page that is already in the buffer pool is requested.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page chosen by {@link #chooseVictim} has been evicted.
+     */
+    void pageEvicted(PageId pid);
+
+    /**
+     * Called when a page is removed from the buffer pool for reasons other
+     * than eviction (e.g. {@link BufferPool#discardPage}).
+     */
+    void pageDiscarded(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next. The policy must not forget
+     * the page until {@link #pageEvicted} is called for it.
+     *
+     * @param evictable returns true for pages the buffer pool is allowed to evict
+     * @return the id of the page to evict, or null if no tracked page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /**
+     * Create the policy named by the given string.
+     *
+     * @param name one of "clock", "lru-k" (or "lru-2") or "2q"; null selects clock
+     * @param numPages the capacity of the buffer pool the policy serves
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    static EvictionPolicy forName(String name, int numPages) {
+        if (name == null || name.equalsIgnoreCase("clock")) {
+            return new ClockEvictionPolicy(numPages);
+        }
+        switch (name.toLowerCase()) {
+            case "lru-k":
+            case "lruk":
+            case "lru-2":
+                return new LruKEvictionPolicy(2);
+            case "2q":
+                return new TwoQueueEvictionPolicy(numPages);
+            default:
+                throw new IllegalArgumentException("unknown eviction policy " + name);
+        }
+    }
+
+    /**
+     * Create the policy selected by the simpledb.storage.EvictionPolicy system
+     * property.
+     *
+     * @see #forName(String, int)
+     */
+    static EvictionPolicy fromSystemProperty(int numPages) {
+        return forName(System.getProperty(PROPERTY), numPages);
+    }
+}
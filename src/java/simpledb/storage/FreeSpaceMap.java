@@ -0,0 +1,233 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Free-space map of a HeapFile: the number of empty slots on every page, so
+ * that an insert can go straight to a page with room instead of visiting
+ * every page from the start of the file.
+ * <p>
+ * The map is a hint. It follows the newest version of each page (the one in
+ * the buffer pool), and HeapFile checks that a page really has room before
+ * inserting into it. Entries are corrected whenever a page is read from or
+ * written to disk.
+ * <p>
+ * The map is kept in a side file next to the heap file ("&lt;file&gt;.fsm"):
+ * a magic number and page count followed by one short per page. An entry is
+ * written to the side file whenever its page is written to the heap file. If
+ * the side file is missing, has the wrong page count or is older than the
+ * heap file (e.g. the table was rebuilt by HeapFileEncoder), the map is
+ * rebuilt from the page headers on disk, without going through the buffer
+ * pool.  A side file for more pages than the heap file has is deleted as soon
+ * as the HeapFile is created.
+ * <p>
+ * Inserts always pick the lowest numbered page with room, so a bulk insert
+ * fills pages in file order.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+    private static final int HEADER_SIZE = 8;
+
+    private final HeapFile heapFile;
+    private final File sideFile;
+    private FileChannel sideChannel;
+
+    private boolean loaded;
+    // number of empty slots per page
+    private short[] free = new short[0];
+    private int numPages;
+    // pages whose entry is greater than zero
+    private final BitSet withRoom = new BitSet();
+    // no page below this one has room
+    private int firstWithRoom;
+
+    /**
+     * @param numPages the number of pages the heap file has now, 0 if it is
+     *   new; a side file describing more pages is left over from an earlier
+     *   file of the same name and is deleted
+     */
+    FreeSpaceMap(HeapFile heapFile, int numPages) {
+        this.heapFile = heapFile;
+        this.sideFile = sideFileOf(heapFile.getFile());
+        if (sideFile.length() > HEADER_SIZE + 2L * numPages) {
+            sideFile.delete();
+        }
+    }
+
+    /**
+     * @return the side file the map of the heap file in dataFile is kept in
+     */
+    static File sideFileOf(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    /**
+     * @return the side file this map is persisted in
+     */
+    File getSideFile() {
+        return sideFile;
+    }
+
+    /**
+     * @return the lowest numbered page that has an empty slot, or -1 if no
+     *   page of the file has room
+     */
+    synchronized int pageWithRoom() throws IOException {
+        load();
+        int pgNo = withRoom.nextSetBit(firstWithRoom);
+        if (pgNo < 0) {
+            // pages may have been appended to the file behind our back
+            int n = heapFile.numPages();
+            for (int i = numPages; i < n; i++) {
+                set(i, heapFile.readNumEmptySlots(i));
+            }
+            pgNo = withRoom.nextSetBit(firstWithRoom);
+        }
+        firstWithRoom = pgNo < 0 ? numPages : pgNo;
+        return pgNo;
+    }
+
+    /**
+     * Record the number of empty slots of a page in memory.
+     */
+    synchronized void update(int pgNo, int numEmpty) {
+        if (!loaded) {
+            // will be read from disk on first use
+            return;
+        }
+        set(pgNo, numEmpty);
+    }
+
+    /**
+     * Record the number of empty slots of a page that was just written to
+     * the heap file, and write the entry to the side file.
+     */
+    synchronized void pageWritten(int pgNo, int numEmpty) throws IOException {
+        if (!loaded) {
+            return;
+        }
+        set(pgNo, numEmpty);
+        FileChannel ch = sideChannel();
+        if (ch == null) {
+            return;
+        }
+        ByteBuffer count = ByteBuffer.allocate(4);
+        count.putInt(0, numPages);
+        writeFully(ch, count, 4);
+        ByteBuffer entry = ByteBuffer.allocate(2);
+        entry.putShort(0, free[pgNo]);
+        writeFully(ch, entry, HEADER_SIZE + 2L * pgNo);
+    }
+
+    private void set(int pgNo, int numEmpty) {
+        if (pgNo >= free.length) {
+            free = Arrays.copyOf(free, Math.max(pgNo + 1, free.length * 2));
+        }
+        if (pgNo >= numPages) {
+            numPages = pgNo + 1;
+        }
+        free[pgNo] = (short) numEmpty;
+        if (numEmpty > 0) {
+            withRoom.set(pgNo);
+            if (pgNo < firstWithRoom) {
+                firstWithRoom = pgNo;
+            }
+        } else {
+            withRoom.clear(pgNo);
+        }
+    }
+
+    /**
+     * Read the side file, or rebuild the map from the heap file if the side
+     * file cannot be trusted.
+     */
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        int n = heapFile.numPages();
+        free = new short[Math.max(n, 16)];
+        numPages = 0;
+        withRoom.clear();
+        firstWithRoom = 0;
+        loaded = true;
+        if (!readSideFile(n)) {
+            rebuild(n);
+        }
+    }
+
+    private boolean readSideFile(int n) throws IOException {
+        if (!sideFile.exists() || sideFile.lastModified() < heapFile.getFile().lastModified()
+                || sideFile.length() != HEADER_SIZE + 2L * n) {
+            return false;
+        }
+        FileChannel ch = sideChannel();
+        if (ch == null) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 2 * n);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, buf.position()) < 0) {
+                return false;
+            }
+        }
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            set(i, buf.getShort(HEADER_SIZE + 2 * i));
+        }
+        return true;
+    }
+
+    private void rebuild(int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 2 * n);
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, n);
+        for (int i = 0; i < n; i++) {
+            set(i, heapFile.readNumEmptySlots(i));
+            buf.putShort(HEADER_SIZE + 2 * i, free[i]);
+        }
+        FileChannel ch = sideChannel();
+        if (ch != null) {
+            ch.truncate(0);
+            writeFully(ch, buf, 0);
+        }
+    }
+
+    /**
+     * @return the channel of the side file, or null if it cannot be written
+     *   (e.g. a read-only directory), in which case the map is only kept in memory
+     */
+    private FileChannel sideChannel() throws IOException {
+        if (sideChannel == null) {
+            try {
+                sideChannel = new RandomAccessFile(sideFile, "rw").getChannel();
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            if (sideChannel.size() < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(0, MAGIC);
+                writeFully(sideChannel, header, 0);
+            }
+        }
+        return sideChannel;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf, offset + buf.position());
+        }
+    }
+}
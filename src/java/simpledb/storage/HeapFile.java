@@ -7,6 +7,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -29,6 +32,26 @@ public class HeapFile implements DbFile {
 
     private TupleDesc tupleDesc;
 
+    // opened on first use and kept open; positional reads and writes on a
+    // FileChannel are safe to issue from several threads at once
+    private volatile FileChannel channel;
+
+    // number of pages, refreshed by numPages() and bumped when we extend the
+    // file; -1 until the length is first read
+    private volatile int cachedNumPages = -1;
+
+    // read pages straight out of a mapping of the file instead of copying them
+    private final boolean memoryMapped;
+
+    // read-only mapping of the file, remapped when the file has grown past it
+    private volatile MappedByteBuffer mapped;
+
+    // empty slots per page, used by insertTuple to find a page with room
+    private final FreeSpaceMap freeSpaceMap;
+
+    // LSN of the last log record applied to each page
+    private final PageLsnMap pageLsns;
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -36,9 +59,39 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * pages through a memory mapping of it.
+     * <p>
+     * In memory-mapped mode readPage decodes each page directly from the
+     * mapped region, without copying it into a byte array first. This is
+     * meant for tables that are written in bulk (e.g. by HeapFileEncoder)
+     * and then mostly scanned. Writes still go through the file channel and
+     * are visible through the mapping.
+     *
+     * @param f            the file that stores the on-disk backing store for
+     *                     this heap file.
+     * @param memoryMapped true to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
+        this.memoryMapped = memoryMapped;
+        // side files of an earlier file of the same name go
+        int numPages = (int) (f.length() / BufferPool.getPageSize());
+        this.freeSpaceMap = new FreeSpaceMap(this, numPages);
+        this.pageLsns = new PageLsnMap(f, numPages);
+    }
+
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -75,69 +128,242 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Returns the channel of the backing file, opening it on first use, and
+     * again if a thread interrupted during I/O on it closed it.
+     */
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    RandomAccessFile raf;
+                    try {
+                        raf = new RandomAccessFile(file, "rw");
+                    } catch (FileNotFoundException e) {
+                        // read-only file system or permissions
+                        raf = new RandomAccessFile(file, "r");
+                    }
+                    ch = raf.getChannel();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         int tableId = pid.getTableId();
         int pgNo = pid.getPageNumber();
-        RandomAccessFile f = null;
+        int pageSize = BufferPool.getPageSize();
+        // pgNo = 2代表文件一共有3个页面，所以长度是3 * BufferPool.getPageSize()
+        if (pgNo < 0) {
+            throw new IllegalArgumentException(
+                    String.format("table %d page %d is invalid", tableId, pgNo));
+        }
         try {
-            f = new RandomAccessFile(file, "r");
-            // pgNo = 2代表文件一共有3个页面，所以长度是3 * BufferPool.getPageSize()
-            if ((pgNo + 1) * BufferPool.getPageSize() > f.length()) {
-                f.close();
-                throw new IllegalArgumentException(
-                        String.format("table %d page %d is invalid", tableId, pgNo));
+            long offset = (long) pgNo * pageSize;
+            HeapPageId id = new HeapPageId(pid.getTableId(), pid.getPageNumber());
+            if (memoryMapped) {
+                ByteBuffer region = mappedRegion(offset, pageSize);
+                if (region != null) {
+                    HeapPage page = new HeapPage(id, region);
+                    page.setLsn(pageLsns.get(pgNo));
+                    freeSpaceMap.update(pgNo, page.getNumEmptySlots());
+                    return page;
+                }
             }
-            byte[] bytes = new byte[BufferPool.getPageSize()];
-            f.seek(pgNo * BufferPool.getPageSize());
-            // big end
-            int read = f.read(bytes, 0, BufferPool.getPageSize());
-            if (read != BufferPool.getPageSize()) {
-                throw new IllegalArgumentException(
-                        String.format("table %d page %d read %d bytes", tableId, pgNo, read));
+            byte[] bytes = new byte[pageSize];
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            FileChannel ch = channel();
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) {
+                    throw new IllegalArgumentException(
+                            String.format("table %d page %d is invalid", tableId, pgNo));
+                }
             }
-            HeapPageId id = new HeapPageId(pid.getTableId(), pid.getPageNumber());
-            return new HeapPage(id, bytes);
+            HeapPage page = new HeapPage(id, bytes);
+            page.setLsn(pageLsns.get(pgNo));
+            freeSpaceMap.update(pgNo, page.getNumEmptySlots());
+            return page;
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                f.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
         }
         throw new IllegalArgumentException(
                 String.format("table %d page %d is invalid", tableId, pgNo));
     }
 
+    /**
+     * Returns a buffer over len bytes of the mapping starting at offset,
+     * mapping the file again if it has grown past the current mapping.
+     *
+     * @return the region, or null if it lies beyond the end of the file or
+     *   the file is too large to map as a whole
+     */
+    private ByteBuffer mappedRegion(long offset, int len) throws IOException {
+        MappedByteBuffer m = mapped;
+        if (m == null || offset + len > m.capacity()) {
+            synchronized (this) {
+                m = mapped;
+                if (m == null || offset + len > m.capacity()) {
+                    long size = channel().size();
+                    if (offset + len > size || size > Integer.MAX_VALUE) {
+                        return null;
+                    }
+                    m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    mapped = m;
+                }
+            }
+        }
+        // duplicate() so that concurrent readers do not share a position
+        ByteBuffer region = m.duplicate();
+        region.position((int) offset);
+        region.limit((int) offset + len);
+        return region.slice();
+    }
+
+    // see DbFile.java for javadocs
+    public Page makePage(PageId id, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId) id, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
         int pgNo = page.getId().getPageNumber();
-        if (pgNo > numPages()) {
+        if (pgNo > cachedNumPages() && pgNo > numPages()) {
+            throw new IllegalArgumentException();
+        }
+        writePageData(pgNo, page.getPageData());
+        // after the page, so the recorded LSN never runs ahead of it
+        pageLsns.set(pgNo, page.getLsn());
+        freeSpaceMap.pageWritten(pgNo, ((HeapPage) page).getNumEmptySlots());
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        int first = pages.get(0).getId().getPageNumber();
+        int last = first + pages.size() - 1;
+        if (last > cachedNumPages() && last > numPages()) {
             throw new IllegalArgumentException();
         }
-        int pgSize = BufferPool.getPageSize();
-        //write IO
-        RandomAccessFile f = new RandomAccessFile(file, "rw");
-        // set offset
-        f.seek(pgNo * pgSize);
-        // write
-        byte[] data = page.getPageData();
-        f.write(data);
-        f.close();
+        ByteBuffer[] bufs = new ByteBuffer[pages.size()];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = ByteBuffer.wrap(pages.get(i).getPageData());
+        }
+        writeFully(channel(), bufs, (long) first * BufferPool.getPageSize());
+        synchronized (this) {
+            if (cachedNumPages >= 0 && last >= cachedNumPages) {
+                cachedNumPages = last + 1;
+            }
+        }
+        for (Page page : pages) {
+            int pgNo = page.getId().getPageNumber();
+            pageLsns.set(pgNo, page.getLsn());
+            freeSpaceMap.pageWritten(pgNo, ((HeapPage) page).getNumEmptySlots());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void sync() throws IOException {
+        pageLsns.sync(channel());
+    }
+
+    /**
+     * Write buffers back to back from offset on with gathering writes.  These
+     * go through the channel's position, so they are serialized on the
+     * channel; the positional reads and writes used elsewhere are unaffected.
+     */
+    private static void writeFully(FileChannel ch, ByteBuffer[] bufs, long offset) throws IOException {
+        long left = 0;
+        for (ByteBuffer b : bufs) {
+            left += b.remaining();
+        }
+        synchronized (ch) {
+            ch.position(offset);
+            while (left > 0) {
+                left -= ch.write(bufs);
+            }
+        }
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Count the empty slots of a page on disk by reading only its header.
+     * Used to rebuild the free-space map without going through the buffer pool.
+     */
+    int readNumEmptySlots(int pgNo) throws IOException {
+        byte[] header = new byte[HeapPage.headerSize(tupleDesc)];
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        long offset = (long) pgNo * BufferPool.getPageSize();
+        FileChannel ch = channel();
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("page " + pgNo + " is beyond the end of the file");
+            }
+        }
+        return HeapPage.countEmptySlots(header, HeapPage.numSlots(tupleDesc));
+    }
+
+    private void writePageData(int pgNo, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long offset = (long) pgNo * BufferPool.getPageSize();
+        FileChannel ch = channel();
+        while (buf.hasRemaining()) {
+            ch.write(buf, offset + buf.position());
+        }
+        synchronized (this) {
+            if (cachedNumPages >= 0 && pgNo >= cachedNumPages) {
+                cachedNumPages = pgNo + 1;
+            }
+        }
+    }
+
+    /**
+     * Append an empty page to the end of the file.
+     *
+     * @return the page number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        int pgNo = cachedNumPages();
+        writePageData(pgNo, HeapPage.createEmptyPageData());
+        freeSpaceMap.pageWritten(pgNo, HeapPage.numSlots(tupleDesc));
+        return pgNo;
+    }
+
+    /**
+     * Returns the number of pages in this HeapFile. This asks the file
+     * system for the current length, so the result also reflects writes made
+     * by others; internal callers, such as iterators and the writes of pages,
+     * use the cached count and only look at the file when it falls short.
      */
     public int numPages() {
         // some code goes here
-        int totalPageNum = (int) Math.floor(file.length() * 1.0 / BufferPool.getPageSize());
-        return totalPageNum;
+        try {
+            int n = (int) (channel().size() / BufferPool.getPageSize());
+            synchronized (this) {
+                // heap files never shrink: a length read before a concurrent
+                // append must not undo its bump
+                if (n > cachedNumPages) {
+                    cachedNumPages = n;
+                }
+            }
+            return n;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of pages as of the last call to numPages() or the
+     *   last extension of the file
+     */
+    int cachedNumPages() {
+        int n = cachedNumPages;
+        return n < 0 ? numPages() : n;
     }
 
     // see DbFile.java for javadocs
@@ -146,43 +372,79 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
         // some code goes here
         ArrayList<Page> pageList = new ArrayList<Page>();
-        for (int i = 0; i < numPages(); ++i) {
-            // took care of getting new page
-            // 这里是尝试从第一个page块开始查找空闲的slot，然后写入。如果没在内存中，需要去磁盘读。
-            HeapPage p = (HeapPage) Database.getBufferPool().getPage(
-                    tid,
-                    new HeapPageId(this.getId(), i),
-                    Permissions.READ_WRITE
-            );
-            if (p.getNumEmptySlots() == 0)
+        // 通过free-space map直接找到有空闲slot的页面，而不是从第一个page块开始逐个查找
+        int pgNo;
+        while ((pgNo = freeSpaceMap.pageWithRoom()) >= 0) {
+            HeapPageId pid = new HeapPageId(this.getId(), pgNo);
+            boolean alreadyLocked = Database.getBufferPool().holdsLock(tid, pid);
+            HeapPage p = insertInto(tid, pid, t);
+            if (p == null) {
+                // the map was out of date, or the empty slots are locked by
+                // transactions that deleted their tuples; we did not read or
+                // change the page, so a lock taken just to look at it can go again
+                freeSpaceMap.update(pgNo, 0);
+                if (!alreadyLocked) {
+                    Database.getBufferPool().unsafeReleasePage(tid, pid);
+                }
                 continue;
-            p.insertTuple(t);
+            }
+            freeSpaceMap.update(pgNo, p.getNumEmptySlots());
             pageList.add(p);
             return pageList;
         }
-        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(file, true));
-        byte[] emptyData = HeapPage.createEmptyPageData();
-        bw.write(emptyData);
-        bw.close();
+        int newPgNo = appendEmptyPage();
         // load into cache
         // 初始的时候有没有一个页面?从下面来看，是有一个的。
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(
-                tid,
-                new HeapPageId(getId(), numPages() - 1),
-                Permissions.READ_WRITE);
-        p.insertTuple(t);
+        HeapPage p = insertInto(tid, new HeapPageId(getId(), newPgNo), t);
+        if (p == null) {
+            throw new DbException("no room for the tuple on a new page");
+        }
+        freeSpaceMap.update(newPgNo, p.getNumEmptySlots());
         pageList.add(p);
         return pageList;
     }
 
+    /**
+     * Add a tuple to the first empty slot of a page that no other
+     * transaction holds a lock on.  Only the tuple is locked exclusively;
+     * others may add to the same page meanwhile.
+     *
+     * @return the page, or null if no slot could be taken
+     */
+    private HeapPage insertInto(TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPage p = (HeapPage) bp.getPageForRowWrite(tid, pid);
+        for (int i = p.nextEmptySlot(0); i >= 0; i = p.nextEmptySlot(i + 1)) {
+            final int slot = i;
+            if (!bp.tryLockRecord(tid, new RecordId(pid, slot))) {
+                continue;
+            }
+            // another transaction may have filled the slot since we looked
+            HeapPage changed = bp.changeSlot(tid, pid, slot, page -> page.insertTuple(t, slot));
+            if (changed != null) {
+                return changed;
+            }
+        }
+        return null;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         ArrayList<Page> pageList = new ArrayList<Page>();
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
-                t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        p.deleteTuple(t);
+        RecordId rid = t.getRecordId();
+        if (rid == null) {
+            throw new DbException("tuple has no record id");
+        }
+        BufferPool bp = Database.getBufferPool();
+        bp.lockRecord(tid, rid, Permissions.READ_WRITE);
+        HeapPage p = bp.changeSlot(tid, rid.getPageId(), rid.getTupleNumber(), page -> {
+            page.deleteTuple(t);
+            return true;
+        });
+        freeSpaceMap.update(p.getId().getPageNumber(), p.getNumEmptySlots());
         pageList.add(p);
         return pageList;
     }
@@ -213,6 +475,9 @@ public class HeapFile implements DbFile {
         private final TransactionId tid;
         private Iterator<Tuple> it;
         private int whichPage;
+        private int numPages;
+        // null if read-ahead is off
+        private ReadAhead.Stream readAhead;
 
         public HeapFileIterator(HeapFile file, TransactionId tid) {
             this.heapFile = file;
@@ -222,38 +487,52 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             whichPage = 0;
+            numPages = heapFile.numPages();
+            readAhead = Database.getBufferPool().readAheadStream(this::nextPageId);
             it = getPageTuples(whichPage);
         }
 
         private Iterator<Tuple> getPageTuples(int pageNumber)
                 throws TransactionAbortedException, DbException {
-            if (pageNumber >= 0 && pageNumber < heapFile.numPages()) {
+            if (pageNumber >= 0 && pageNumber < numPages) {
                 HeapPageId pid = new HeapPageId(heapFile.getId(), pageNumber);
                 HeapPage page = (HeapPage) Database
                         .getBufferPool()
                         .getPage(tid, pid, Permissions.READ_ONLY);
+                if (readAhead != null) {
+                    readAhead.accessed(page);
+                }
                 return page.iterator();
             } else {
                 throw new DbException(String.format("heapfile %d does not contain page %d!", pageNumber, heapFile.getId()));
             }
         }
 
+        /**
+         * @return the page a scan reads after the given one, or null if it is the last
+         */
+        private PageId nextPageId(Page page) {
+            int next = page.getId().getPageNumber() + 1;
+            return next < heapFile.cachedNumPages() ? new HeapPageId(heapFile.getId(), next) : null;
+        }
+
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
             if (it == null) {
                 return false;
             }
-            if (!it.hasNext()) {
-                if (whichPage < (heapFile.numPages() - 1)) {
-                    whichPage++;
-                    it = getPageTuples(whichPage);
-                    return it.hasNext();
-                } else {
-                    return false;
+            while (!it.hasNext()) {
+                if (whichPage >= numPages - 1) {
+                    // only look at the file again once the known pages are used up
+                    numPages = heapFile.cachedNumPages();
+                    if (whichPage >= numPages - 1) {
+                        return false;
+                    }
                 }
-            } else {
-                return true;
+                whichPage++;
+                it = getPageTuples(whichPage);
             }
+            return true;
         }
 
         @Override
@@ -273,6 +552,7 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             it = null;
+            readAhead = null;
         }
 
     }
@@ -6,7 +6,7 @@ import simpledb.common.DbException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -25,14 +25,24 @@ public class HeapPage implements Page {
 
     final byte[] header;
 
+    // tuples inserted since the page was read; the tuples in the other used
+    // slots stay in data and are decoded when they are accessed
     final Tuple[] tuples;
 
     final int numSlots;
 
+    // the raw page the unmodified tuples are read from
+    private volatile ByteBuffer data;
+
     // 用来做什么？
     byte[] oldData;
 
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
+
+    // the buffer this page was read from, kept (instead of a copy in
+    // oldData) until the before image is first needed; see HeapPage(HeapPageId, ByteBuffer).
+    // Only cleared after data points at a private copy, so readers need no lock
+    private volatile ByteBuffer source;
 
     // the transaction id which changed the page to dirty
     private TransactionId dirtyId;
@@ -40,6 +50,9 @@ public class HeapPage implements Page {
     // if the page is dirty
     private boolean dirty;
 
+    // LSN of the last log record applied to this page
+    private volatile long lsn;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -56,14 +69,35 @@ public class HeapPage implements Page {
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
+     * <p>
+     * Tuples are not decoded here but when they are accessed. The page takes
+     * ownership of data, which must not be modified afterwards; it also
+     * serves as the before image of the page.
      * data这里是从磁盘read出来的字节流
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+        synchronized (oldDataLock) {
+            oldData = data;
+            source = null;
+        }
+    }
+
+    /**
+     * Create a HeapPage directly over a buffer holding the page, such as a
+     * region of a memory-mapped HeapFile. Byte 0 of the buffer is the first
+     * byte of the page. The layout is the same as for
+     * {@link #HeapPage(HeapPageId, byte[])}.
+     * <p>
+     * The page keeps a reference to the buffer instead of copying it, and
+     * only copies its before image out of the buffer when the page is first
+     * dirtied or the before image is requested. The buffer must therefore
+     * keep the on-disk contents of the page until then.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        // 对这个字节流使用DataInputStream来读取
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
         // 这里的逻辑是 - 不管磁盘上读出来的数据是什么样(空的和有数据的)，每个页面的结构都是一样的。
@@ -72,19 +106,12 @@ public class HeapPage implements Page {
         // 先读header
         header = new byte[getHeaderSize()];
         for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-        // 再读真实数据，注意，这里是new了一个新数组，放在了内存中。
+            header[i] = data.get(i);
+        // 真实数据留在data中，访问时才解码
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
 
-        setBeforeImage();
+        this.data = data;
+        this.source = data;
     }
 
     /**
@@ -94,9 +121,36 @@ public class HeapPage implements Page {
      */
     private int getNumTuples() {
         // some code goes here
-        int num = (int) Math.floor((BufferPool.getPageSize() * 8 * 1.0)
+        return numSlots(td);
+    }
+
+    /**
+     * @return the number of tuple slots on a page of a table with the given schema
+     */
+    static int numSlots(TupleDesc td) {
+        return (int) Math.floor((BufferPool.getPageSize() * 8 * 1.0)
                 / (td.getSize() * 8 + 1));
-        return num;
+    }
+
+    /**
+     * @return the number of header bytes on a page of a table with the given schema
+     */
+    static int headerSize(TupleDesc td) {
+        return (int) Math.ceil(numSlots(td) * 1.0 / 8);
+    }
+
+    /**
+     * Count the empty slots described by the header bytes of a page, without
+     * decoding the page.
+     */
+    static int countEmptySlots(byte[] header, int numSlots) {
+        int used = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if ((header[i / 8] & (1 << (i % 8))) != 0) {
+                used++;
+            }
+        }
+        return numSlots - used;
     }
 
     /**
@@ -107,7 +161,7 @@ public class HeapPage implements Page {
     private int getHeaderSize() {
         // some code goes here
         // 向上取整，int的某些部分没有被用到
-        return (int) Math.ceil(getNumTuples() * 1.0 / 8);
+        return headerSize(td);
     }
 
     /**
@@ -118,6 +172,7 @@ public class HeapPage implements Page {
         try {
             byte[] oldDataRef = null;
             synchronized (oldDataLock) {
+                captureBeforeImage();
                 oldDataRef = oldData;
             }
             return new HeapPage(pid, oldDataRef);
@@ -131,7 +186,29 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            // getPageData already returns a fresh array
+            oldData = getPageData();
+            if (source != null) {
+                data = ByteBuffer.wrap(oldData);
+                source = null;
+            }
+        }
+    }
+
+    /**
+     * Copy the before image out of the source buffer if that has not been
+     * done yet, and read unmodified tuples from the copy from then on.
+     * Must be called with oldDataLock held.
+     */
+    private void captureBeforeImage() {
+        if (source != null) {
+            byte[] copy = new byte[BufferPool.getPageSize()];
+            ByteBuffer src = source.duplicate();
+            src.clear();
+            src.get(copy);
+            oldData = copy;
+            data = ByteBuffer.wrap(copy);
+            source = null;
         }
     }
 
@@ -144,41 +221,48 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
-     * 这个函数很重要，是从DataInputStream读取某个位置的tuple
+     * @return the offset of the given slot in the page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                // parse可是会改变dis的位置的
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Return the tuple in a used slot, e.g. one a secondary index points to
+     * (check {@link #isSlotUsed} first). A tuple that was not inserted into
+     * this page is read from the page data; its fields are only decoded
+     * when they are accessed. While the page still reads from a mapped
+     * file, the tuple gets its own copy of the slot, since the mapping
+     * changes when the page is written back.
+     * 这个函数很重要，是从buffer的offset位置读取某个slot的tuple
+     */
+    public Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            ByteBuffer mapped = source;
+            if (mapped != null) {
+                byte[] slot = new byte[td.getSize()];
+                ByteBuffer src = mapped.duplicate();
+                src.clear();
+                src.position(slotOffset(slotId));
+                src.get(slot);
+                t = new Tuple(td, ByteBuffer.wrap(slot), 0);
+            } else {
+                t = new Tuple(td, data, slotOffset(slotId));
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            t.setRecordId(new RecordId(pid, slotId));
         }
-
         return t;
     }
 
+    /**
+     * A HeapPage is a header bitmap followed by the tuple slots.
+     */
+    public PageLayout getLayout() {
+        return new PageLayout(BufferPool.getPageSize(), 0, 0, numSlots)
+                .addRegion(header.length, td.getSize(), 0);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -191,67 +275,36 @@ public class HeapPage implements Page {
      * 这个函数用来写将内存中的HeapPage写会到磁盘上去。
      * @see #HeapPage
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] out = new byte[len];
+        ByteBuffer buf = ByteBuffer.wrap(out);
 
         // 为什么要将header写会磁盘? - header估计也可以分开存储，但是比较麻烦。
         // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, out, 0, header.length);
 
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
+        // create the tuples; empty slots and the padding at the end stay zero
+        int size = td.getSize();
+        ByteBuffer raw = data.duplicate();
+        for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
                 continue;
             }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
+            int offset = slotOffset(i);
+            if (tuples[i] == null) {
+                // unmodified: copy the bytes without decoding them
+                raw.clear();
+                raw.position(offset);
+                raw.get(out, offset, size);
+            } else {
+                for (int j = 0; j < td.numFields(); j++) {
+                    td.getFieldType(j).write(tuples[i].getField(j), buf, offset + td.getOffset(j));
                 }
             }
         }
 
-        // padding
-        // 这个padding主要是写到最后用的。
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return out;
     }
 
     /**
@@ -268,6 +321,92 @@ public class HeapPage implements Page {
         return new byte[len]; //all 0
     }
 
+    /**
+     * @return a private copy of this page as it is now, taken while no tuple
+     *   is being inserted or deleted
+     */
+    synchronized HeapPage snapshotCopy() {
+        try {
+            HeapPage copy = new HeapPage(pid, getPageData());
+            copy.lsn = lsn;
+            return copy;
+        } catch (IOException e) {
+            // cannot happen: the data is in memory
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the serialized tuple in a slot, or null if the slot is empty
+     */
+    synchronized byte[] slotData(int slotId) {
+        if (!isSlotUsed(slotId)) {
+            return null;
+        }
+        int size = td.getSize();
+        byte[] out = new byte[size];
+        if (tuples[slotId] == null) {
+            ByteBuffer raw = data.duplicate();
+            raw.clear();
+            raw.position(slotOffset(slotId));
+            raw.get(out, 0, size);
+        } else {
+            ByteBuffer buf = ByteBuffer.wrap(out);
+            for (int j = 0; j < td.numFields(); j++) {
+                td.getFieldType(j).write(tuples[slotId].getField(j), buf, td.getOffset(j));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Put a serialized tuple into a slot, or empty it.  Used to set a
+     * private copy of a page back to an earlier version.
+     *
+     * @param tuple the serialized tuple (see {@link #slotData(int)}), or null
+     */
+    synchronized void restoreSlot(int slotId, byte[] tuple) {
+        markSlotUsed(slotId, tuple != null);
+        if (tuple == null) {
+            tuples[slotId] = null;
+        } else {
+            Tuple t = new Tuple(td, ByteBuffer.wrap(tuple), 0);
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
+        }
+    }
+
+    /**
+     * @return the first empty slot from the given one on, or -1 if there is none
+     */
+    synchronized int nextEmptySlot(int from) {
+        for (int i = from; i < numSlots; ++i) {
+            if (!isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a tuple to the page in the given slot, if that is empty.
+     *
+     * @return false if the slot is in use
+     * @throws DbException if the tuple descriptor does not match
+     */
+    synchronized boolean insertTuple(Tuple t, int slotId) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("tuple descriptor does not match");
+        }
+        if (isSlotUsed(slotId)) {
+            return false;
+        }
+        markSlotUsed(slotId, true);
+        t.setRecordId(new RecordId(pid, slotId));
+        tuples[slotId] = t;
+        return true;
+    }
+
     /**
      * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
      * that it is no longer stored on any page.
@@ -276,18 +415,15 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (t.getRecordId().getPageId().getTableId() != pid.getTableId()) {
+        if (t.getRecordId() == null || !pid.equals(t.getRecordId().getPageId())) {
             // this tuple is not on this page
             throw new DbException("tuple is not on this page");
         }
         int tid = t.getRecordId().getTupleNumber();
-        if (tuples[tid] == null) {
-            throw new DbException("tuple does not exist");
-        }
-        if (!isSlotUsed(tid)) {
+        if (tid < 0 || tid >= numSlots || !isSlotUsed(tid)) {
             throw new DbException("the slot is already empty");
         } else {
             markSlotUsed(tid, false);
@@ -303,21 +439,17 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (getNumEmptySlots() == 0 || !t.getTupleDesc().equals(td)) {
+        // 寻找空块
+        int i = nextEmptySlot(0);
+        if (i < 0 || !t.getTupleDesc().equals(td)) {
             throw new DbException("page is full or tuple descriptor does not match");
         }
-        for (int i = 0; i < numSlots; ++i) {
-            // 寻找空块
-            if (!isSlotUsed(i)) {
-                markSlotUsed(i, true);
-                t.setRecordId(new RecordId(pid, i));
-                tuples[i] = t;
-                break;
-            }
-        }
+        markSlotUsed(i, true);
+        t.setRecordId(new RecordId(pid, i));
+        tuples[i] = t;
     }
 
     /**
@@ -327,10 +459,24 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
         // not necessary for lab1
+        if (dirty && source != null) {
+            // the source buffer may be overwritten once this page is flushed
+            synchronized (oldDataLock) {
+                captureBeforeImage();
+            }
+        }
         this.dirty = dirty;
         this.dirtyId = tid;
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
@@ -388,13 +534,33 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> validTuples = new ArrayList<Tuple>();
-        for (int i = 0; i < numSlots; ++i) {
-            if (isSlotUsed(i)) {
-                validTuples.add(tuples[i]);
+        // 只复制header，tuple在next()时才从页面数据中读取
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int next = nextUsed(0);
+
+            private int nextUsed(int from) {
+                while (from < numSlots && (used[from / 8] & (1 << (from % 8))) == 0) {
+                    from++;
+                }
+                return from;
             }
-        }
-        return validTuples.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (next >= numSlots) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = getTuple(next);
+                next = nextUsed(next + 1);
+                return t;
+            }
+        };
     }
 
 }
@@ -42,8 +42,7 @@ public class HeapPageId implements PageId {
      */
     public int hashCode() {
         // some code goes here
-        String s = tableId + "-" + pageNumber;
-        return s.hashCode();
+        return 31 * tableId + pageNumber;
     }
 
     /**
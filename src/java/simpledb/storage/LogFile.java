@@ -6,7 +6,12 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.lang.reflect.*;
 
 /*
@@ -21,8 +26,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file writes BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -36,6 +41,75 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+Checkpoints are the exception: they only read the buffer pool's dirty page
+table, which does not need the BufferPool lock, so they never stop
+transactions that are using the buffer pool.
+
+<u> Group commit: </u>
+<p>
+
+Log records are appended to an in-memory log buffer, which is written to
+the file when the log is forced (or read).  A committing transaction does
+not force the log itself: it appends its COMMIT record and waits, outside
+the LogFile lock, until a single flusher thread has forced the log up to
+that record.  The flusher forces once for all commits that arrived while
+the previous force was in progress, so N concurrent committers share one
+fsync instead of issuing N.  Before each force the flusher can also wait
+for up to a batch window for more commits to join, until a maximum batch
+size is reached; see {@link #setGroupCommit(long, int)}.  The number of
+commits and of forces is counted so that commits per fsync can be reported.
+
+<u> Segments: </u>
+<p>
+
+The log is one stream of bytes, stored in segment files of a fixed size
+(see {@link LogSegments}): "&lt;log&gt;.000000000000", "&lt;log&gt;.000000000001"
+and so on.  Segments are allocated at their full size, so appending never
+grows a file, and segments that were dropped are reused.  The master record,
+a side file next to the segments ("&lt;log&gt;.master"), holds the segment
+size, the position the log starts at and the position of the last
+checkpoint.  It is replaced as a whole, atomically, whenever one of these
+changes.  Truncation moves the start of the log forward and drops the
+segments before it, without copying any record, so it takes constant time.
+When a new log replaces the old one, it starts after the last segment of
+the old one.  The segment size (default 1 MB) and a directory to archive
+the segments the log has moved past in (default none) can be set with the
+system properties simpledb.storage.LogFile.segmentSize and
+simpledb.storage.LogFile.archiveDir; the segment size of an existing log is
+taken from its master record.
+<p>
+
+<u> LSNs and recovery: </u>
+<p>
+
+Every log record has a log sequence number (LSN): the position of the
+record in the stream of the log.  Positions are never reused, so the LSN of
+a record does not change when the log is truncated, and LSNs only ever
+increase.
+<p>
+
+Each page carries the LSN of the last record applied to it ({@link
+Page#getLsn()}), which its DbFile stores with the page, and forces to disk
+after the page at each checkpoint ({@link DbFile#sync()}).  recover() follows
+ARIES: an analysis pass from the last checkpoint finds the transactions
+that did not finish and the pages that may lack logged changes, with the
+LSN of their oldest such change; a redo pass repeats history from the
+oldest of those LSNs, skipping records that the page's LSN shows to be on
+disk already; and an undo pass rolls back the unfinished transactions.
+Undoing a change writes a compensation log record (CLR), which is redone
+like any other record but never undone, so recovery that is interrupted and
+restarted does not undo a change twice.  Aborts use the same undo logic.
+<p>
+
+Redo is spread over worker threads by page.  One thread reads the log in
+order and hands each record to the worker that owns its page, so the records
+of a page are applied in log order while different pages are read and
+redone in parallel.  Analysis and undo stay on the recovering thread; undo
+starts once every worker is done.  The number of workers (default: one per
+core, at most 8) can be set with the system property
+simpledb.storage.LogFile.redoThreads or {@link #setRedoThreads(int)}; with
+one worker, redo runs on the recovering thread.
 */
 
 /**
@@ -43,40 +117,57 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
-
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log consists of log records, from the start position in the
+master record on.  Log records are variable length.  The position of the
+last written checkpoint, or -1 if there are no checkpoints, is kept in the
+master record.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer representing the position
+in the log where the record began.  Reading the log stops at the first
+record that does not end with its own position, such as a record a reused
+segment holds from before.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  logWrite() no longer
+writes them, but they are still read.
+
+<li>DELTA RECORDS are what logWrite() writes for a page instead of an
+UPDATE record: the LSN of the previous record of the transaction (or -1),
+the page id (see writePageId()) and the slots of the page that changed,
+with their old and new contents (see {@link PageDelta}).  They are redone
+and undone on the page image without going through full before and after
+images.
+
+<li>CLR RECORDS (compensation log records) describe the undo of a DELTA
+record: the LSN of the next record of the transaction to undo (the
+previous LSN of the undone record), the page id and the inverse delta.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken, their first log record on disk and the LSN of
+their last log record, followed by the dirty page table of the buffer
+pool: the pages whose logged changes may not be on disk yet.  The format of
+the record is an integer count of the number of transactions, as well as a
+long integer transaction id, a long integer first record position and a long
+integer last record LSN for each active transaction; then an integer count
+of dirty pages, and a page id (see writePageId()) and a long integer recLSN
+for each.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,16 +175,77 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    // records appended but not yet written to the file; protected by this
+    private final LogBuffer logBuffer = new LogBuffer();
+    private final DataOutputStream out = new DataOutputStream(logBuffer);
+    // position the log buffer is written to, -1 until the first append
+    long fileEnd = -1; //protected by this
+    // number of log bytes written to the segments by this LogFile; plus the
+    // log buffer size, it is the position of the end of the log that
+    // committers wait for.
+    private long writtenBytes = 0; //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // LSN of the last record of each live transaction; protected by this
+    final Map<Long,Long> tidToLastLsn = new HashMap<>();
+
+    // the master record: segment size, start and last checkpoint of the log
+    private final File masterFile;
+    private long start; //protected by this
+    private long checkpoint = NO_CHECKPOINT_ID; //protected by this
+
+    // what the last recovery did, for tests and tuning; protected by this
+    private int redone, redoSkipped, undone;
+    private long redoNanos;
+    // the number of threads redo is spread over; protected by this
+    private int redoThreads;
+
+    public static final String GROUP_COMMIT_WINDOW_PROPERTY = "simpledb.storage.LogFile.groupCommitWindowMicros";
+    public static final String GROUP_COMMIT_BATCH_PROPERTY = "simpledb.storage.LogFile.groupCommitBatch";
+    public static final String SEGMENT_SIZE_PROPERTY = "simpledb.storage.LogFile.segmentSize";
+    public static final String ARCHIVE_DIR_PROPERTY = "simpledb.storage.LogFile.archiveDir";
+    public static final String REDO_THREADS_PROPERTY = "simpledb.storage.LogFile.redoThreads";
+
+    private static final long DEFAULT_SEGMENT_SIZE = 1 << 20;
+    private static final int MASTER_MAGIC = 0x4c4f4732; // "LOG2"
+    private static final int MAX_REDO_THREADS = 8;
+
+    // the flusher exits after being idle this long, and is restarted on demand
+    private static final long FLUSHER_LINGER_MS = 1000;
+
+    // group commit state, protected by durable; never acquire this while
+    // holding durable
+    private final Object durable = new Object();
+    private long durableBytes = 0; // appendedBytes known to be on disk
+    private long requestedBytes = 0; // largest appendedBytes a committer waits for
+    private int waiting = 0; // threads waiting for a force
+    private boolean flusherRunning = false;
+    private IOException flushError;
+    private long groupWindowNanos;
+    private int groupMaxBatch;
+    private long commits = 0;
+    private long forces = 0;
+
+    /** Growable byte buffer that gives LogFile access to its contents. */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer() {
+            super(1 << 16);
+        }
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,8 +260,18 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        masterFile = new File(f.getPath() + ".master");
+        long segmentSize = readMaster();
+        String archiveDir = System.getProperty(ARCHIVE_DIR_PROPERTY);
+        segments = new LogSegments(f, segmentSize, archiveDir == null ? null : new File(archiveDir));
+        // we may have crashed after moving the start, before dropping the
+        // segments before it
+        segments.drop(start);
         recoveryUndecided = true;
+        setGroupCommit(Long.getLong(GROUP_COMMIT_WINDOW_PROPERTY, 0L),
+                Integer.getInteger(GROUP_COMMIT_BATCH_PROPERTY, 64));
+        setRedoThreads(Integer.getInteger(REDO_THREADS_PROPERTY,
+                Math.min(Runtime.getRuntime().availableProcessors(), MAX_REDO_THREADS)));
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -129,12 +291,77 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // pages may still carry LSNs of the old log: continue after them
+            start = segments.end();
+            checkpoint = NO_CHECKPOINT_ID;
+            writeMaster();
+            // the old log is thrown away, not archived
+            segments.discard(start);
+            currentOffset = start;
+            fileEnd = currentOffset;
+        }
+    }
+
+    /**
+     * Read the start and the last checkpoint of the log from the master
+     * record.  Without a master record of this format there is no log.
+     *
+     * @return the segment size of the log
+     */
+    private long readMaster() throws IOException {
+        long segmentSize = Long.getLong(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE);
+        if (!masterFile.exists()) {
+            return segmentSize;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(masterFile))) {
+            if (in.readInt() == MASTER_MAGIC) {
+                segmentSize = in.readLong();
+                start = in.readLong();
+                checkpoint = in.readLong();
+            }
+        } catch (EOFException e) {
+            // empty
+        }
+        return segmentSize;
+    }
+
+    /** Replace the master record, atomically. */
+    private void writeMaster() throws IOException {
+        File tmp = new File(masterFile.getPath() + ".tmp");
+        try (RandomAccessFile m = new RandomAccessFile(tmp, "rw")) {
+            m.setLength(0);
+            m.writeInt(MASTER_MAGIC);
+            m.writeLong(segments.getSegmentSize());
+            m.writeLong(start);
+            m.writeLong(checkpoint);
+            m.getChannel().force(true);
         }
+        Files.move(tmp.toPath(), masterFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return the position the next appended byte goes to */
+    private long endOffset() {
+        return fileEnd + logBuffer.size();
+    }
+
+    /** @return the position of the end of the log, for waiting on durability */
+    private long appendedBytes() {
+        return writtenBytes + logBuffer.size();
+    }
+
+    /**
+     * Write the log buffer to the end of the log.  Called before the log
+     * is forced or read.
+     */
+    private void writeBuffer() throws IOException {
+        if (logBuffer.size() == 0) {
+            return;
+        }
+        segments.write(logBuffer.contents(), fileEnd);
+        fileEnd += logBuffer.size();
+        writtenBytes += logBuffer.size();
+        logBuffer.reset();
     }
 
     public synchronized int getTotalRecords() {
@@ -160,67 +387,163 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = endOffset();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLsn.remove(tid.getId());
             }
         }
     }
 
+    /**
+     * @return true if tid has records in the log that no commit or abort
+     *   record has ended yet, i.e. changes of it may have reached the disk
+     */
+    public synchronized boolean hasLogged(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId()) || tidToLastLsn.containsKey(tid.getId());
+    }
+
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  Returns once the commit record is
+        durable; concurrent commits share a single force (group commit).
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = endOffset();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLsn.remove(tid.getId());
+            end = appendedBytes();
+        }
+        awaitDurable(end, true);
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Write a DELTA record to the log for the specified tid and page,
+        describing the slots that differ between the provided before and
+        after images.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, to be set as the page's LSN
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        PageDelta delta = PageDelta.diff(after.getLayout(), before.getPageData(), after.getPageData());
+        return logDelta(tid, after.getId(), delta);
+    }
+
+    /** Write a DELTA record to the log for the specified tid and page.
+        Used when a page holds the changes of several transactions: each
+        logs the slots it changed.
+        @param tid The transaction that made the changes
+        @param pid The page changed
+        @param delta The changed slots
+        @return the LSN of the record
+
+        @see #logWrite
+    */
+    public synchronized long logDelta(TransactionId tid, PageId pid, PageDelta delta)
+        throws IOException {
         preAppend();
-        /* update record conists of
+        Debug.log("WRITE, offset = " + currentOffset);
+        /* delta record consists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           LSN of the previous record of the transaction
+           page id (see writePageId)
+           changed slots (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        long lsn = currentOffset;
+        out.writeInt(DELTA_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(tidToLastLsn.getOrDefault(tid.getId(), -1L));
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageId(out, pid);
+        delta.serialize(out);
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+        tidToLastLsn.put(tid.getId(), lsn);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
+    }
+
+    /** @return an LSN no later than that of the next record appended */
+    public synchronized long getNextLsn() {
+        return fileEnd < 0 ? start : endOffset();
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Write a CLR for the undo of a DELTA record.
+        @param tid The transaction whose change was undone
+        @param pid The page that was changed
+        @param delta The changes made by the undo
+        @param undoNext The LSN of the next record of tid to undo
+        @return the LSN of the CLR, to be set as the page's LSN
+    */
+    private synchronized long logClr(long tid, PageId pid, PageDelta delta, long undoNext)
+        throws IOException {
+        preAppend();
+        long lsn = currentOffset;
+        out.writeInt(CLR_RECORD);
+        out.writeLong(tid);
+        out.writeLong(undoNext);
+        writePageId(out, pid);
+        delta.serialize(out);
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+        if (tidToLastLsn.containsKey(tid)) {
+            tidToLastLsn.put(tid, lsn);
+        }
+        return lsn;
+    }
+
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object[] idArgs = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = in.readInt();
+        }
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            for (Constructor<?> c : idClass.getDeclaredConstructors()) {
+                if (c.getParameterCount() == numIdArgs) {
+                    return (PageId) c.newInstance(idArgs);
+                }
+            }
+            throw new IOException("no constructor with " + numIdArgs + " arguments in " + idClassName);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("cannot read page id of class " + idClassName, e);
+        }
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
 
@@ -248,7 +571,7 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -267,17 +590,27 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            // pages may have several constructors; use the one taking the raw bytes
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[0].isInstance(pid) && params[1] == byte[].class) {
+                    pageConst = c;
+                }
+            }
+            if (pageConst == null) {
+                throw new IOException("no (PageId, byte[]) constructor in " + pageClassName);
+            }
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
@@ -300,150 +633,106 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToLastLsn.put(tid.getId(), currentOffset);
+        currentOffset = endOffset();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint is
+        fuzzy: it does not flush the buffer pool or hold its lock, but
+        records the active transactions and the buffer pool's dirty page
+        table, and leaves the pages dirty at the time to the buffer pool's
+        background flusher.  The pages written before are forced to disk,
+        with their LSNs, before the log is truncated. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            // taken under the log lock: a page that is logged before the
+            // checkpoint record and not written yet is in it
+            Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+            startCpOffset = endOffset();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+                out.writeLong(tidToLastLsn.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
             }
+            out.writeLong(currentOffset);
+            currentOffset = endOffset();
+
+            //once the CP is written, make sure the CP location in the
+            // master record is updated
+            forceNow();
+            checkpoint = startCpOffset;
+            writeMaster();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        Database.getBufferPool().flushAllPagesInBackground();
+        // the pages written before the checkpoint no longer need the log
+        // before it, and their LSNs may go to disk
+        Database.getBufferPool().syncFiles();
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Everything before the minimum recovery LSN of the
+        last checkpoint can go: the oldest of the checkpoint itself, the
+        recLSNs of its dirty page table and the first records of the
+        transactions active at it.  Moves the start of the log there and
+        drops the segments before it; no record is copied, and the buffer
+        pool is not locked. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        writeBuffer();
+        if (checkpoint == NO_CHECKPOINT_ID) {
+            return;
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        LogRecord cp = readRecord(new LogReader(segments, checkpoint));
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        long minLogRecord = checkpoint;
+        for (long firstLogRecord : cp.activeTxns.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long recLsn : cp.dirtyPages.values()) {
+            minLogRecord = Math.min(minLogRecord, recLsn);
+        }
+        if (minLogRecord <= start) {
+            return;
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        Debug.log("TRUNCATING LOG;  WAS " + (endOffset() - start) + " BYTES ; NEW START : " + minLogRecord
+                + " NEW LENGTH: " + (endOffset() - minLogRecord));
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        // the new start goes to disk first, so the log never starts in a
+        // dropped segment
+        start = minLogRecord;
+        writeMaster();
+        segments.drop(start);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -460,7 +749,67 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                if (!hasLogged(tid)) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " has not begun");
+                }
+                // with row locks, other transactions may have changed the
+                // pages since: log and write every change, so that the undo
+                // below works on the disk and keeps theirs
+                Database.getBufferPool().flushPages(tid);
+                writeBuffer();
+                undone = 0;
+                // the pages on disk hold the changes that were logged; the
+                // copies in the buffer pool are dropped by writeAll
+                PageImages images = new PageImages();
+                undo(Collections.singletonMap(tid.getId(), tidToLastLsn.get(tid.getId())), images);
+                // write ahead: the CLRs must be on disk before the pages
+                forceNow();
+                images.writeAll();
+            }
+        }
+    }
+
+    /**
+     * Undo the changes of the given transactions, newest first, starting
+     * from the given LSN of each and following the previous LSNs of their
+     * records.  Each undone DELTA record is compensated by a CLR, whose LSN
+     * becomes the LSN of the page; CLRs are skipped over to the record they
+     * say is next.  The chain of a transaction ends at its BEGIN record.
+     *
+     * @param toUndo the transactions to undo, with the LSN of their last record
+     */
+    private void undo(Map<Long, Long> toUndo, PageImages images) throws IOException {
+        // {lsn, tid}, largest lsn first
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (Map.Entry<Long, Long> e : toUndo.entrySet()) {
+            queue.add(new long[]{e.getValue(), e.getKey()});
+        }
+        while (!queue.isEmpty()) {
+            long[] next = queue.poll();
+            if (next[0] < start) {
+                // no (more) records, e.g. a transaction that never began
+                continue;
+            }
+            LogRecord rec = readRecord(new LogReader(segments, next[0]));
+            if (rec == null) {
+                throw new IOException("no log record at LSN " + next[0]);
             }
+            long undoNext;
+            switch (rec.type) {
+            case DELTA_RECORD:
+                long clr = logClr(rec.tid, rec.pid, rec.delta.inverse(), rec.prev);
+                images.undo(rec, clr);
+                undone++;
+                undoNext = rec.prev;
+                break;
+            case CLR_RECORD:
+                undoNext = rec.prev;
+                break;
+            default:
+                // BEGIN: nothing before it
+                continue;
+            }
+            queue.add(new long[]{undoNext, next[1]});
         }
     }
 
@@ -468,10 +817,15 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // the checkpoint no longer flushes; do it here so that start up
+            // has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -487,62 +841,584 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                redone = redoSkipped = undone = 0;
+                // analysis: the transactions that did not finish, with the LSN
+                // of their last record, and the pages that may lack logged
+                // changes, with the LSN of the oldest one: those in the dirty
+                // page table of the checkpoint, and those changed after it.
+                Map<Long, Long> losers = new LinkedHashMap<>();
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                long end = checkpoint == NO_CHECKPOINT_ID ? start : checkpoint;
+                LogReader reader = new LogReader(segments, end);
+                LogRecord rec;
+                while ((rec = readRecord(reader)) != null) {
+                    long lsn = end;
+                    end = reader.offset();
+                    switch (rec.type) {
+                    case CHECKPOINT_RECORD:
+                        losers.putAll(rec.lastLsns);
+                        dirtyPages.putAll(rec.dirtyPages);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        losers.remove(rec.tid);
+                        break;
+                    case BEGIN_RECORD:
+                        losers.put(rec.tid, lsn);
+                        break;
+                    default:
+                        losers.put(rec.tid, lsn);
+                        dirtyPages.putIfAbsent(rec.pid, lsn);
+                    }
+                }
+                // wipe a record that was only partly written when we crashed
+                segments.zeroFrom(end);
+                fileEnd = currentOffset = end;
+                tidToFirstLogRecord.clear();
+                tidToLastLsn.clear();
+
+                // redo: repeat history for all transactions, from the oldest
+                // change that may be missing
+                long redoStart = System.nanoTime();
+                PageImages images = new PageImages();
+                if (!dirtyPages.isEmpty()) {
+                    long pos = Math.max(Collections.min(dirtyPages.values()), start);
+                    reader = new LogReader(segments, pos);
+                    ParallelRedo redo = new ParallelRedo(redoThreads);
+                    try {
+                        while (pos < end && (rec = readRecord(reader)) != null) {
+                            pos = reader.offset();
+                            if (rec.pid == null) {
+                                continue;
+                            }
+                            Long recLsn = dirtyPages.get(rec.pid);
+                            if (recLsn != null && rec.lsn >= recLsn) {
+                                redo.submit(rec);
+                            } else {
+                                redoSkipped++;
+                            }
+                        }
+                    } finally {
+                        redo.finish();
+                    }
+                    images = redo.images();
+                    redone = redo.redone;
+                    redoSkipped += redo.skipped;
+                }
+                redoNanos = System.nanoTime() - redoStart;
+
+                // undo: roll back the losers, logging CLRs
+                undo(losers, images);
+                forceNow();
+                images.writeAll();
+
+                // so that a later recovery does not undo them again
+                for (long tid : losers.keySet()) {
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = endOffset();
+                }
+                forceNow();
             }
          }
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    /** @return the number of bytes of the log, from its start to its end */
+    public synchronized long getLogSize() {
+        return fileEnd < 0 ? 0 : endOffset() - start;
+    }
 
-        raf.seek(0);
+    /** @return the number of segment files, including those kept for reuse */
+    public int getSegmentFiles() {
+        return segments.numFiles();
+    }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    /**
+     * Wait until every segment the log has moved past was archived, if an
+     * archive directory is set.
+     *
+     * @return false if that took longer than timeoutMillis
+     */
+    public boolean awaitArchived(long timeoutMillis) throws InterruptedException {
+        return segments.awaitArchived(timeoutMillis);
+    }
 
-        while (true) {
+    /** @return the number of records the last recovery redid */
+    public synchronized int getRedoneRecords() {
+        return redone;
+    }
+
+    /** @return the number of records the last recovery did not have to
+        redo because their page already reflected them */
+    public synchronized int getRedoSkippedRecords() {
+        return redoSkipped;
+    }
+
+    /** @return how long the redo pass of the last recovery took, in nanoseconds */
+    public synchronized long getRedoNanos() {
+        return redoNanos;
+    }
+
+    /** @return the number of threads redo is spread over */
+    public synchronized int getRedoThreads() {
+        return redoThreads;
+    }
+
+    /**
+     * Set the number of threads the redo pass of recover() is spread over.
+     * With one, redo runs on the thread calling recover().
+     */
+    public synchronized void setRedoThreads(int threads) {
+        redoThreads = Math.max(1, threads);
+    }
+
+    /** @return the number of changes the last recovery or rollback undid */
+    public synchronized int getUndoneRecords() {
+        return undone;
+    }
+
+    /** A log record read back from the log file. */
+    static class LogRecord {
+        // the position the record was read from
+        long lsn;
+        int type;
+        long tid;
+        // UPDATE, DELTA and CLR records
+        PageId pid;
+        Page before, after;
+        PageDelta delta;
+        // DELTA: LSN of the previous record of the transaction;
+        // CLR: LSN of the next record to undo
+        long prev = -1;
+        // CHECKPOINT records: active transaction id -> first log record,
+        // and -> LSN of its last record
+        Map<Long, Long> activeTxns;
+        Map<Long, Long> lastLsns;
+        // and the dirty page table: page -> recLSN
+        Map<PageId, Long> dirtyPages;
+    }
+
+    /**
+     * Read the record at the position of reader.
+     *
+     * @return the record, or null at the end of the log or if the rest of
+     *   the log is not a complete record of it
+     */
+    LogRecord readRecord(LogReader in) throws IOException {
+        LogRecord rec = new LogRecord();
+        long pos = in.offset();
+        rec.lsn = pos;
+        try {
+            rec.type = in.readInt();
+            rec.tid = in.readLong();
+            switch (rec.type) {
+            case UPDATE_RECORD:
+                rec.before = readPageData(in);
+                rec.after = readPageData(in);
+                rec.pid = rec.after.getId();
+                break;
+            case DELTA_RECORD:
+            case CLR_RECORD:
+                rec.prev = in.readLong();
+                rec.pid = readPageId(in);
+                rec.delta = PageDelta.deserialize(in);
+                break;
+            case CHECKPOINT_RECORD:
+                int n = in.readInt();
+                rec.activeTxns = new HashMap<>();
+                rec.lastLsns = new HashMap<>();
+                while (n-- > 0) {
+                    long tid = in.readLong();
+                    rec.activeTxns.put(tid, in.readLong());
+                    rec.lastLsns.put(tid, in.readLong());
+                }
+                n = in.readInt();
+                rec.dirtyPages = new HashMap<>();
+                while (n-- > 0) {
+                    PageId pid = readPageId(in);
+                    rec.dirtyPages.put(pid, in.readLong());
+                }
+                break;
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            default:
+                // garbage after the last record
+                return null;
+            }
+            if (in.readLong() != pos) {
+                // not a record of this log, e.g. left in a reused segment
+                return null;
+            }
+        } catch (EOFException | UTFDataFormatException | NegativeArraySizeException e) {
+            return null;
+        }
+        return rec;
+    }
+
+    /**
+     * Buffered sequential reader of the log from a given position.
+     */
+    static class LogReader extends DataInputStream {
+        private final Counter counter;
+
+        LogReader(LogSegments segments, long start) {
+            this(new Counter(new BufferedInputStream(new InputStream() {
+                private long pos = start;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = segments.read(ByteBuffer.wrap(b, off, len), pos);
+                    if (n > 0) {
+                        pos += n;
+                    }
+                    return n;
+                }
+            }, 1 << 16), start));
+        }
+
+        private LogReader(Counter counter) {
+            super(counter);
+            this.counter = counter;
+        }
+
+        /** @return the position of the next byte to be read */
+        long offset() {
+            return counter.offset;
+        }
+
+        private static class Counter extends FilterInputStream {
+            long offset;
+
+            Counter(InputStream in, long start) {
+                super(in);
+                this.offset = start;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    offset++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    offset += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                offset += skipped;
+                return skipped;
+            }
+        }
+    }
+
+    /**
+     * The images of the pages touched by rollback or recovery.  Each page is
+     * read from disk on first use, with its LSN; the changes are applied to
+     * its bytes, and writeAll() writes the changed pages out.
+     */
+    private static class PageImages {
+        private static class Image {
+            byte[] data;
+            PageLayout layout;
+            long lsn;
+            boolean changed;
+        }
+
+        private final Map<PageId, Image> images = new LinkedHashMap<>();
+
+        /** Take over the images of another set, which must not share pages with this one. */
+        void addAll(PageImages other) {
+            images.putAll(other.images);
+        }
+
+        private Image load(PageId pid) {
+            Image im = images.get(pid);
+            if (im == null) {
+                Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                im = new Image();
+                im.data = p.getPageData();
+                im.layout = p.getLayout();
+                im.lsn = p.getLsn();
+                images.put(pid, im);
+            }
+            return im;
+        }
+
+        /**
+         * Apply the record with the given LSN, unless the page reflects it.
+         *
+         * @return true if the page changed
+         */
+        boolean redo(LogRecord rec, long lsn) {
+            Image im = load(rec.pid);
+            if (im.lsn >= lsn) {
+                return false;
+            }
+            if (rec.type == UPDATE_RECORD) {
+                im.data = rec.after.getPageData();
+            } else {
+                rec.delta.redo(im.layout, im.data);
+            }
+            im.lsn = lsn;
+            im.changed = true;
+            return true;
+        }
+
+        /**
+         * Revert the changes of a DELTA record, compensated by the CLR with
+         * the given LSN.
+         */
+        void undo(LogRecord rec, long clrLsn) {
+            Image im = load(rec.pid);
+            rec.delta.undo(im.layout, im.data);
+            im.lsn = clrLsn;
+            im.changed = true;
+        }
+
+        /** Write the changed pages, and drop the copies cached in the buffer pool. */
+        void writeAll() throws IOException {
+            for (Map.Entry<PageId, Image> e : images.entrySet()) {
+                if (!e.getValue().changed) {
+                    continue;
+                }
+                DbFile f = Database.getCatalog().getDatabaseFile(e.getKey().getTableId());
+                Page p = f.makePage(e.getKey(), e.getValue().data);
+                p.setLsn(e.getValue().lsn);
+                f.writePage(p);
+                Database.getBufferPool().discardPage(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * The redo pass, partitioned by page.  Each worker owns the page images
+     * of the pages that hash to it and applies their records in the order
+     * they are submitted, which is log order, so no two workers touch the
+     * same page and the workers need no locks.  Records are handed over in
+     * batches, through bounded queues, so reading the log stays only a little
+     * ahead of the slowest worker.
+     */
+    private static class ParallelRedo {
+        private static final int BATCH = 256;
+        private static final int QUEUED_BATCHES = 16;
+        // a worker's last batch
+        private static final List<LogRecord> DONE = Collections.emptyList();
+
+        private final PageImages[] parts;
+        private final List<List<LogRecord>> pending = new ArrayList<>();
+        private final List<BlockingQueue<List<LogRecord>>> queues = new ArrayList<>();
+        private final List<Thread> workers = new ArrayList<>();
+        private final int[] partRedone, partSkipped;
+        private volatile Throwable error;
+        int redone, skipped;
+
+        ParallelRedo(int threads) {
+            parts = new PageImages[threads];
+            partRedone = new int[threads];
+            partSkipped = new int[threads];
+            for (int i = 0; i < threads; i++) {
+                parts[i] = new PageImages();
+            }
+            if (threads == 1) {
+                return;
+            }
+            for (int i = 0; i < threads; i++) {
+                final int part = i;
+                BlockingQueue<List<LogRecord>> queue =
+                        new ArrayBlockingQueue<>(QUEUED_BATCHES);
+                queues.add(queue);
+                pending.add(new ArrayList<>(BATCH));
+                Thread t = new Thread(() -> work(part, queue), "simpledb-redo-" + i);
+                t.setDaemon(true);
+                workers.add(t);
+                t.start();
+            }
+        }
+
+        /** Redo a record, unless its page reflects it. */
+        void submit(LogRecord rec) throws IOException {
+            if (workers.isEmpty()) {
+                apply(0, rec);
+                return;
+            }
+            int part = Math.floorMod(rec.pid.hashCode(), parts.length);
+            List<LogRecord> batch = pending.get(part);
+            batch.add(rec);
+            if (batch.size() == BATCH) {
+                hand(part, batch);
+                pending.set(part, new ArrayList<>(BATCH));
+            }
+        }
+
+        private void apply(int part, LogRecord rec) {
+            if (parts[part].redo(rec, rec.lsn)) {
+                partRedone[part]++;
+            } else {
+                partSkipped[part]++;
+            }
+        }
+
+        private void hand(int part, List<LogRecord> batch) throws IOException {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                queues.get(part).put(batch);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+        private void work(int part, BlockingQueue<List<LogRecord>> queue) {
+            while (true) {
+                List<LogRecord> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    error = e;
+                    return;
+                }
+                if (batch == DONE) {
+                    return;
+                }
+                if (error != null) {
+                    // keep draining, so that submit() does not block
+                    continue;
+                }
+                try {
+                    for (LogRecord rec : batch) {
+                        apply(part, rec);
+                    }
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            }
+        }
+
+        /**
+         * Hand over the last records and wait for the workers to apply them.
+         */
+        void finish() throws IOException {
+            for (int i = 0; i < workers.size(); i++) {
+                if (!pending.get(i).isEmpty()) {
+                    hand(i, pending.get(i));
+                }
+                hand(i, DONE);
+            }
+            for (Thread t : workers) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted during redo");
+                }
+            }
+            if (error != null) {
+                throw new IOException("redo failed", error);
+            }
+            for (int i = 0; i < parts.length; i++) {
+                redone += partRedone[i];
+                skipped += partSkipped[i];
+            }
+        }
+
+        /** @return the images of all pages touched by redo */
+        PageImages images() {
+            for (int i = 1; i < parts.length; i++) {
+                parts[0].addAll(parts[i]);
+            }
+            return parts[0];
+        }
+    }
+
+    /** Print out a human readable represenation of the log */
+    public void print() throws IOException {
+        long end;
+        LogReader in;
+        synchronized (this) {
+            writeBuffer();
+            end = fileEnd < 0 ? segments.end() : fileEnd;
+            in = new LogReader(segments, start);
+            System.out.println("log from " + start + " to " + end + ", checkpoint record at " + checkpoint);
+        }
+
+        while (in.offset() < end) {
+            try {
+                int cpType = in.readInt();
+                long cpTid = in.readLong();
+
+                System.out.println((in.offset() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((in.offset() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.offset() + ": RECORD START: " + in.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.offset() + ": RECORD START: " + in.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.offset() + ": RECORD START: " + in.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = in.readInt();
+                    System.out.println((in.offset() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = in.readLong();
+                        long firstRecord = in.readLong();
+                        System.out.println((in.offset() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                        System.out.println((in.offset() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        System.out.println(in.offset() + ": LAST LSN: " + in.readLong());
+                    }
+                    int numDirty = in.readInt();
+                    System.out.println((in.offset() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                    while (numDirty-- > 0) {
+                        PageId dirty = readPageId(in);
+                        System.out.println(in.offset() + ": page " + dirty.getPageNumber() + " of table "
+                                + dirty.getTableId() + ", REC LSN: " + in.readLong());
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.offset() + ": RECORD START: " + in.readLong());
 
+                    break;
+                case DELTA_RECORD:
+                case CLR_RECORD:
+                    System.out.println(cpType == DELTA_RECORD ? " (DELTA)" : " (CLR)");
+                    System.out.println(in.offset() + (cpType == DELTA_RECORD ? ": PREVIOUS LSN: " : ": UNDO NEXT LSN: ")
+                            + in.readLong());
+                    PageId pid = readPageId(in);
+                    System.out.println(in.offset() + ": page " + pid.getPageNumber() + " of table " + pid.getTableId()
+                            + ": " + PageDelta.deserialize(in));
+                    System.out.println(in.offset() + ": RECORD START: " + in.readLong());
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    long start = in.offset();
+                    Page before = readPageData(in);
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    long middle = in.offset();
+                    Page after = readPageData(in);
 
                     System.out.println(start + ": before image table id " + before.getId().getTableId());
                     System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
@@ -550,11 +1426,14 @@ public class LogFile {
 
                     System.out.println(middle + ": after image table id " + after.getId().getTableId());
                     System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println((middle + INT_SIZE) + " TO " + (in.offset()) + ": page data");
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.offset() + ": RECORD START: " + in.readLong());
 
                     break;
+                default:
+                    System.out.println(" (UNKNOWN, stopping)");
+                    return;
                 }
 
             } catch (EOFException e) {
@@ -562,13 +1441,193 @@ public class LogFile {
                 break;
             }
         }
+    }
+
+    /** Force the log to disk.  When called without holding the LogFile
+        lock, this joins the group commit of concurrent committers. */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            forceNow();
+            return;
+        }
+        long end;
+        synchronized (this) {
+            end = appendedBytes();
+        }
+        awaitDurable(end, false);
+    }
+
+    /** Force the log to disk up to the record with the given LSN, e.g. the
+        LSN of a page about to be written.  The log is always forced in whole
+        records, so the record is durable once the durable part of the log
+        extends past its first byte; if it does already, nothing is forced.
+        Joins the group commit of concurrent committers like {@link #force()}. */
+    public void forceTo(long lsn) throws IOException {
+        boolean locked = Thread.holdsLock(this);
+        long end;
+        synchronized (this) {
+            if (fileEnd < 0 || lsn >= endOffset()) {
+                // nothing was appended since the log was opened, or the
+                // record is not in this log
+                return;
+            }
+            // the position of the record's first byte, plus one
+            end = appendedBytes() - (endOffset() - lsn) + 1;
+            if (locked) {
+                if (end > durableBytes()) {
+                    forceNow();
+                }
+                return;
+            }
+        }
+        awaitDurable(end, false);
+    }
+
+    private long durableBytes() {
+        synchronized (durable) {
+            return durableBytes;
+        }
+    }
+
+    /** Write the log buffer and force the file, while holding the lock. */
+    private synchronized void forceNow() throws IOException {
+        writeBuffer();
+        segments.force();
+        synchronized (durable) {
+            forces++;
+        }
+        markDurable(writtenBytes);
+    }
+
+    private void markDurable(long end) {
+        synchronized (durable) {
+            if (end > durableBytes) {
+                durableBytes = end;
+                durable.notifyAll();
+            }
+        }
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /**
+     * Set the group commit parameters.  After the flusher is woken up by a
+     * commit, it waits up to windowMicros for more commits before forcing
+     * the log, unless maxBatch threads are waiting for it.  A window of 0 forces
+     * right away; commits that arrive during a force still share the next one.
+     */
+    public void setGroupCommit(long windowMicros, int maxBatch) {
+        synchronized (durable) {
+            groupWindowNanos = Math.max(0, windowMicros) * 1000;
+            groupMaxBatch = Math.max(1, maxBatch);
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Wait until the log is durable up to the given position, starting the
+     * flusher if it is not running.  Must not be called holding the LogFile lock.
+     */
+    private void awaitDurable(long end, boolean commit) throws IOException {
+        synchronized (durable) {
+            if (commit) {
+                commits++;
+            }
+            if (end <= durableBytes) {
+                return;
+            }
+            requestedBytes = Math.max(requestedBytes, end);
+            if (!flusherRunning) {
+                flusherRunning = true;
+                Thread t = new Thread(this::flush, "simpledb-log-flusher");
+                t.setDaemon(true);
+                t.start();
+            }
+            waiting++;
+            durable.notifyAll();
+            try {
+                while (durableBytes < end) {
+                    if (flushError != null) {
+                        throw new IOException("log force failed", flushError);
+                    }
+                    durable.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the log to be forced");
+            } finally {
+                waiting--;
+            }
+        }
+    }
+
+    /**
+     * The flusher thread: force the log for everyone waiting, one batch at a time.
+     */
+    private void flush() {
+        while (true) {
+            synchronized (durable) {
+                try {
+                    long idleSince = System.currentTimeMillis();
+                    while (requestedBytes <= durableBytes) {
+                        long idle = System.currentTimeMillis() - idleSince;
+                        if (idle >= FLUSHER_LINGER_MS) {
+                            flusherRunning = false;
+                            return;
+                        }
+                        durable.wait(FLUSHER_LINGER_MS - idle);
+                    }
+                    // batch window: give more commits a chance to join this force
+                    long deadline = System.nanoTime() + groupWindowNanos;
+                    long left;
+                    while (waiting < groupMaxBatch && (left = deadline - System.nanoTime()) > 0) {
+                        durable.wait(left / 1000000, (int) (left % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    flusherRunning = false;
+                    return;
+                }
+                flushError = null;
+            }
+            long end;
+            try {
+                synchronized (this) {
+                    writeBuffer();
+                    end = writtenBytes;
+                }
+                // force outside the lock, so the next batch can append meanwhile
+                segments.force();
+            } catch (IOException e) {
+                synchronized (durable) {
+                    flushError = e;
+                    requestedBytes = durableBytes;
+                    durable.notifyAll();
+                }
+                continue;
+            }
+            synchronized (durable) {
+                forces++;
+            }
+            markDurable(end);
+        }
+    }
+
+    /** @return the number of transactions committed through this log */
+    public long getCommitCount() {
+        synchronized (durable) {
+            return commits;
+        }
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (durable) {
+            return forces;
+        }
+    }
+
+    /** @return the average number of commits made durable by one force */
+    public double getCommitsPerForce() {
+        synchronized (durable) {
+            return forces == 0 ? 0 : (double) commits / forces;
+        }
     }
 
 }
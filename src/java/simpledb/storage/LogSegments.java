@@ -0,0 +1,362 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The files a {@link LogFile} keeps its records in: a sequence of segment
+ * files of a fixed size, which together hold one stream of bytes.
+ * <p>
+ * Segment n is the file "&lt;log&gt;.n" (n zero-padded to 12 digits) and holds
+ * the bytes at positions n * segmentSize up to (n + 1) * segmentSize of the
+ * stream; records may span two segments. A segment is created at its full
+ * size, filled with zeros, the first time a byte is written to it, so
+ * appending to the log never changes the length of a file and forcing it
+ * does not have to write file metadata. Positions are never reused: the
+ * start of the log moves forward as it is truncated, and whole segments
+ * before the start are dropped. A dropped segment is renamed to a segment
+ * number past the end of the log instead of being deleted, as long as fewer
+ * than {@link #MAX_SPARES} such spare segments exist, so the log usually
+ * grows into files that are already allocated. Spares hold the records of
+ * their former life; LogFile tells them apart from its own by the start
+ * position every record ends with.
+ * <p>
+ * When an archive directory is given, a background thread copies every
+ * segment the log has moved past, once it has been forced, to that
+ * directory. Such a segment is only dropped after it was copied.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    /** the number of dropped segments kept for reuse */
+    static final int MAX_SPARES = 2;
+
+    private static final int ZERO_CHUNK = 1 << 16;
+
+    private final File base;
+    private final long segmentSize;
+    private final File archiveDir;
+
+    // guarded by this
+    private final TreeSet<Long> files = new TreeSet<>();
+    private final Map<Long, FileChannel> channels = new HashMap<>();
+    private final Set<FileChannel> unforced = new HashSet<>();
+    // the position after the last byte written
+    private long writtenEnd;
+    // segments below these numbers: no longer in the log; forced and
+    // complete; copied to the archive
+    private long dropBefore;
+    private long closedBefore;
+    private long archivedBefore;
+    private boolean archiving;
+
+    /**
+     * @param base        the name of the log; segment files are named after it
+     * @param segmentSize the size of each segment
+     * @param archiveDir  the directory to archive segments in, or null
+     */
+    LogSegments(File base, long segmentSize, File archiveDir) {
+        this.base = base.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+        this.archiveDir = archiveDir;
+        File dir = this.base.getParentFile();
+        String prefix = this.base.getName() + ".";
+        String[] names = dir == null ? null : dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.length() == prefix.length() + 12 && name.startsWith(prefix)) {
+                    try {
+                        files.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        if (!files.isEmpty()) {
+            archivedBefore = files.first();
+        }
+        if (archiveDir != null) {
+            archiveDir.mkdirs();
+        }
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    private File file(long n) {
+        return new File(String.format("%s.%012d", base.getPath(), n));
+    }
+
+    /**
+     * @return the position after the last segment file, including spares;
+     *   no record of the log was written there or later
+     */
+    synchronized long end() {
+        return files.isEmpty() ? 0 : (files.last() + 1) * segmentSize;
+    }
+
+    /**
+     * @return the number of segment files, including spares
+     */
+    synchronized int numFiles() {
+        return files.size();
+    }
+
+    /**
+     * Read bytes at a position, from one segment at most.
+     *
+     * @return the number of bytes read, or -1 if no segment holds the position
+     */
+    synchronized int read(ByteBuffer dst, long pos) throws IOException {
+        FileChannel ch = channel(pos / segmentSize, false);
+        if (ch == null) {
+            return -1;
+        }
+        long off = pos % segmentSize;
+        int limit = dst.limit();
+        dst.limit(dst.position() + (int) Math.min(dst.remaining(), segmentSize - off));
+        try {
+            return ch.read(dst, off);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Write all remaining bytes of src from a position on, creating the
+     * segments they go to as needed.
+     */
+    synchronized void write(ByteBuffer src, long pos) throws IOException {
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                long n = pos / segmentSize;
+                long off = pos % segmentSize;
+                FileChannel ch = channel(n, true);
+                int len = (int) Math.min(src.remaining(), segmentSize - off);
+                src.limit(src.position() + len);
+                while (src.hasRemaining()) {
+                    off += ch.write(src, off);
+                }
+                src.limit(limit);
+                unforced.add(ch);
+                pos += len;
+            }
+        } finally {
+            src.limit(limit);
+        }
+        writtenEnd = Math.max(writtenEnd, pos);
+    }
+
+    /**
+     * Overwrite the rest of the segment holding pos with zeros, e.g. the
+     * remains of a record that was only partly written.
+     */
+    synchronized void zeroFrom(long pos) throws IOException {
+        FileChannel ch = channel(pos / segmentSize, false);
+        if (ch != null) {
+            zero(ch, pos % segmentSize, segmentSize);
+            unforced.add(ch);
+        }
+    }
+
+    private static void zero(FileChannel ch, long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+        while (from < to) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_CHUNK, to - from));
+            while (zeros.hasRemaining()) {
+                from += ch.write(zeros, from);
+            }
+        }
+    }
+
+    /**
+     * Force everything written so far to disk.  Only the data is forced: the
+     * files were allocated at their full size when they were created.  Does
+     * not hold the lock while forcing, so writes can go on meanwhile.
+     */
+    void force() throws IOException {
+        List<FileChannel> toForce;
+        long end;
+        synchronized (this) {
+            toForce = new ArrayList<>(unforced);
+            unforced.clear();
+            end = writtenEnd;
+        }
+        for (FileChannel ch : toForce) {
+            try {
+                ch.force(false);
+            } catch (ClosedChannelException e) {
+                // dropped meanwhile; nobody reads it any more
+            }
+        }
+        synchronized (this) {
+            // the segments before the one the log ends in are complete
+            if (end / segmentSize > closedBefore) {
+                closedBefore = end / segmentSize;
+                startArchiver();
+            }
+        }
+    }
+
+    /**
+     * Drop the segments that hold only positions before the given one.
+     * Segments that still have to be archived are dropped once they are.
+     */
+    synchronized void drop(long before) throws IOException {
+        dropBefore = Math.max(dropBefore, before / segmentSize);
+        for (long n : new ArrayList<>(files.headSet(dropBefore))) {
+            if (archiveDir != null && n >= archivedBefore) {
+                break;
+            }
+            recycle(n);
+        }
+    }
+
+    /**
+     * Drop the segments that hold only positions before the given one
+     * without archiving them, e.g. those of a log that is thrown away.
+     */
+    synchronized void discard(long before) throws IOException {
+        archivedBefore = Math.max(archivedBefore, before / segmentSize);
+        drop(before);
+    }
+
+    private void recycle(long n) throws IOException {
+        FileChannel ch = channels.remove(n);
+        if (ch != null) {
+            unforced.remove(ch);
+            ch.close();
+        }
+        files.remove(n);
+        // the segment the log ends in, or starts in if that is later
+        long inUse = Math.max(dropBefore, writtenEnd / segmentSize);
+        long next = files.isEmpty() ? inUse : Math.max(files.last() + 1, inUse);
+        if (files.tailSet(inUse + 1).size() < MAX_SPARES && file(n).renameTo(file(next))) {
+            files.add(next);
+        } else {
+            file(n).delete();
+        }
+    }
+
+    /**
+     * @return the channel of a segment, or null if it does not exist and
+     *   create is false
+     */
+    private FileChannel channel(long n, boolean create) throws IOException {
+        FileChannel ch = channels.get(n);
+        if (ch != null) {
+            return ch;
+        }
+        if (!files.contains(n)) {
+            if (!create) {
+                return null;
+            }
+            ch = new RandomAccessFile(file(n), "rw").getChannel();
+            zero(ch, 0, segmentSize);
+            // the one time the file's length is written
+            ch.force(true);
+            files.add(n);
+        } else {
+            ch = new RandomAccessFile(file(n), "rw").getChannel();
+        }
+        channels.put(n, ch);
+        return ch;
+    }
+
+    /** Close all segment files. */
+    synchronized void close() throws IOException {
+        for (FileChannel ch : channels.values()) {
+            ch.close();
+        }
+        channels.clear();
+        unforced.clear();
+    }
+
+    private void startArchiver() {
+        if (archiveDir == null || archiving || archivedBefore >= closedBefore) {
+            return;
+        }
+        archiving = true;
+        Thread t = new Thread(this::archive, "simpledb-log-archiver");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * The archiver thread: copy the closed segments to the archive directory,
+     * in order, and drop those the log no longer needs.
+     */
+    private void archive() {
+        while (true) {
+            long n;
+            synchronized (this) {
+                if (archivedBefore >= closedBefore) {
+                    archiving = false;
+                    notifyAll();
+                    return;
+                }
+                n = archivedBefore;
+            }
+            boolean exists;
+            synchronized (this) {
+                exists = files.contains(n);
+            }
+            try {
+                if (exists) {
+                    File f = file(n);
+                    Files.copy(f.toPath(), new File(archiveDir, f.getName()).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                synchronized (this) {
+                    archivedBefore = n + 1;
+                    if (n < dropBefore && files.contains(n)) {
+                        recycle(n);
+                    }
+                }
+            } catch (IOException e) {
+                // try again when the next segment is closed
+                e.printStackTrace();
+                synchronized (this) {
+                    archiving = false;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait until every closed segment was archived.
+     *
+     * @return false if that took longer than timeoutMillis
+     */
+    synchronized boolean awaitArchived(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (archiving || (archiveDir != null && archivedBefore < closedBefore)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K eviction (O'Neil, O'Neil and Weikum). Every page remembers the
+ * logical times of its last K references. The victim is the page whose K-th
+ * most recent reference is the oldest; pages referenced fewer than K times
+ * have an infinite backward K-distance and go first, oldest last reference
+ * first. With K = 2 a single sequential scan cannot push frequently used
+ * pages out of the pool.
+ *
+ * @see EvictionPolicy
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    private final int k;
+    private final Map<PageId, long[]> history;
+    private long clock;
+
+    /**
+     * @param k the number of references remembered per page; must be at least 1
+     */
+    public LruKEvictionPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.history = new HashMap<>();
+        this.clock = 0;
+    }
+
+    public String getName() {
+        return "lru-" + k;
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        reference(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (history.containsKey(pid)) {
+            reference(pid);
+        }
+    }
+
+    // hist[0] is the most recent reference, hist[k-1] the k-th most recent; 0 means none
+    private void reference(PageId pid) {
+        long[] hist = history.computeIfAbsent(pid, p -> new long[k]);
+        System.arraycopy(hist, 0, hist, 1, k - 1);
+        hist[0] = ++clock;
+    }
+
+    public synchronized void pageEvicted(PageId pid) {
+        history.remove(pid);
+    }
+
+    public synchronized void pageDiscarded(PageId pid) {
+        history.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> e : history.entrySet()) {
+            long[] hist = e.getValue();
+            long kth = hist[k - 1];
+            long last = hist[0];
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (evictable.test(e.getKey())) {
+                    victim = e.getKey();
+                    victimKth = kth;
+                    victimLast = last;
+                }
+            }
+        }
+        return victim;
+    }
+}
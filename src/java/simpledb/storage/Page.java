@@ -58,4 +58,28 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record applied to this page, or 0 if it
+     * is not known.  Recovery does not redo records the page already reflects.
+     * The LSN is not part of the bytes returned by {@link #getPageData()}; the
+     * DbFile stores it next to the page.
+     */
+    long getLsn();
+
+    /**
+     * Set the LSN of the last log record applied to this page.
+     */
+    void setLsn(long lsn);
+
+    /**
+     * Describe the slots of the bytes returned by {@link #getPageData()}, so
+     * that changes to this page can be logged slot by slot. By default the
+     * page has no slots and changes are logged as a byte range of the page.
+     *
+     * @see PageDelta
+     */
+    default PageLayout getLayout() {
+        return PageLayout.unslotted(getPageData().length);
+    }
 }
@@ -0,0 +1,224 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * The changes made to one page, described slot by slot: the body of a
+ * physiological log record.
+ * <p>
+ * A delta is computed from the serialized page before and after the
+ * changes and the page's {@link PageLayout}. It consists of
+ * <ul>
+ * <li> INSERT: a free slot became used; the new contents of the slot,
+ * <li> DELETE: a used slot became free; the old contents of the slot,
+ * <li> UPDATE: the contents of a used slot changed; old and new contents,
+ * <li> FIXED: a byte range of the fixed part of the page (e.g. the parent
+ *      or sibling pointers of a B+ tree page) changed; old and new bytes.
+ * </ul>
+ * Unlike a pair of full page images, the size of a delta is proportional to
+ * the number of slots changed.
+ * <p>
+ * {@link #redo} and {@link #undo} apply the delta to the serialized page.
+ * Every operation sets a slot or range to a given value, so applying a
+ * delta to a page that already reflects it leaves the page unchanged.
+ */
+public class PageDelta {
+
+    private static final byte FIXED = 0;
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    private static final byte UPDATE = 3;
+
+    private static class Op {
+        final byte kind;
+        // slot number; the offset of the range for FIXED
+        final int slot;
+        final byte[] before;
+        final byte[] after;
+
+        Op(byte kind, int slot, byte[] before, byte[] after) {
+            this.kind = kind;
+            this.slot = slot;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final List<Op> ops;
+
+    private PageDelta(List<Op> ops) {
+        this.ops = ops;
+    }
+
+    /**
+     * Compute the changes between two versions of a page.
+     *
+     * @param layout the layout of the page
+     * @param before the serialized page before the changes
+     * @param after  the serialized page after the changes
+     */
+    public static PageDelta diff(PageLayout layout, byte[] before, byte[] after) {
+        List<Op> ops = new ArrayList<>();
+        int first = 0;
+        int last = layout.getFixedLength() - 1;
+        while (first <= last && before[first] == after[first]) {
+            first++;
+        }
+        while (last >= first && before[last] == after[last]) {
+            last--;
+        }
+        if (first <= last) {
+            ops.add(new Op(FIXED, first, copy(before, first, last + 1), copy(after, first, last + 1)));
+        }
+        for (int i = 0; i < layout.getNumSlots(); i++) {
+            boolean wasUsed = layout.isSlotUsed(before, i);
+            boolean isUsed = layout.isSlotUsed(after, i);
+            if (!wasUsed && isUsed) {
+                ops.add(new Op(INSERT, i, null, layout.readSlot(after, i)));
+            } else if (wasUsed && !isUsed) {
+                ops.add(new Op(DELETE, i, layout.readSlot(before, i), null));
+            } else if (isUsed && !layout.slotEquals(before, after, i)) {
+                ops.add(new Op(UPDATE, i, layout.readSlot(before, i), layout.readSlot(after, i)));
+            }
+        }
+        return new PageDelta(ops);
+    }
+
+    private static byte[] copy(byte[] b, int from, int to) {
+        byte[] c = new byte[to - from];
+        System.arraycopy(b, from, c, 0, c.length);
+        return c;
+    }
+
+    /**
+     * @return true if the page did not change
+     */
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    /**
+     * Apply the changes to a serialized page.
+     */
+    public void redo(PageLayout layout, byte[] page) {
+        for (Op op : ops) {
+            apply(layout, page, op, op.kind, op.after);
+        }
+    }
+
+    /**
+     * Revert the changes on a serialized page, in reverse order.
+     */
+    public void undo(PageLayout layout, byte[] page) {
+        for (int i = ops.size() - 1; i >= 0; i--) {
+            Op op = ops.get(i);
+            byte inverse = op.kind == INSERT ? DELETE : op.kind == DELETE ? INSERT : op.kind;
+            apply(layout, page, op, inverse, op.before);
+        }
+    }
+
+    private static void apply(PageLayout layout, byte[] page, Op op, byte kind, byte[] value) {
+        switch (kind) {
+        case FIXED:
+            System.arraycopy(value, 0, page, op.slot, value.length);
+            break;
+        case INSERT:
+        case UPDATE:
+            layout.markSlotUsed(page, op.slot, true);
+            layout.writeSlot(page, op.slot, value);
+            break;
+        case DELETE:
+            // free slots are zero on all pages
+            layout.markSlotUsed(page, op.slot, false);
+            layout.writeSlot(page, op.slot, null);
+            break;
+        }
+    }
+
+    /**
+     * Split the delta by the owner of each slot, e.g. the transaction that
+     * changed it.  Changes to the fixed part of the page go to the owner of
+     * slot -1.
+     *
+     * @return the changes of each owner, in the order of this delta
+     */
+    public <T> Map<T, PageDelta> split(IntFunction<T> owner) {
+        Map<T, PageDelta> parts = new LinkedHashMap<>();
+        for (Op op : ops) {
+            T o = owner.apply(op.kind == FIXED ? -1 : op.slot);
+            parts.computeIfAbsent(o, k -> new PageDelta(new ArrayList<>())).ops.add(op);
+        }
+        return parts;
+    }
+
+    /**
+     * @return the inverse of this delta: redoing it undoes this one
+     */
+    public PageDelta inverse() {
+        List<Op> inv = new ArrayList<>(ops.size());
+        for (int i = ops.size() - 1; i >= 0; i--) {
+            Op op = ops.get(i);
+            byte kind = op.kind == INSERT ? DELETE : op.kind == DELETE ? INSERT : op.kind;
+            inv.add(new Op(kind, op.slot, op.after, op.before));
+        }
+        return new PageDelta(inv);
+    }
+
+    /**
+     * Write the delta in the format read by {@link #deserialize}.
+     */
+    public void serialize(DataOutput out) throws IOException {
+        out.writeInt(ops.size());
+        for (Op op : ops) {
+            out.writeByte(op.kind);
+            out.writeInt(op.slot);
+            if (op.kind != INSERT) {
+                out.writeInt(op.before.length);
+                out.write(op.before);
+            }
+            if (op.kind != DELETE) {
+                out.writeInt(op.after.length);
+                out.write(op.after);
+            }
+        }
+    }
+
+    public static PageDelta deserialize(DataInput in) throws IOException {
+        int n = in.readInt();
+        List<Op> ops = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            byte kind = in.readByte();
+            int slot = in.readInt();
+            byte[] before = null;
+            byte[] after = null;
+            if (kind != INSERT) {
+                before = new byte[in.readInt()];
+                in.readFully(before);
+            }
+            if (kind != DELETE) {
+                after = new byte[in.readInt()];
+                in.readFully(after);
+            }
+            ops.add(new Op(kind, slot, before, after));
+        }
+        return new PageDelta(ops);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Op op : ops) {
+            sb.append(sb.length() == 0 ? "" : ", ")
+                    .append(new String[]{"FIXED", "INSERT", "DELETE", "UPDATE"}[op.kind])
+                    .append(' ').append(op.slot);
+        }
+        return sb.toString();
+    }
+}
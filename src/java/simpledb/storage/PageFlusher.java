@@ -0,0 +1,167 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The page cleaner of a BufferPool: a background writer of dirty pages.
+ * <p>
+ * Pages are scheduled in two cases. A fuzzy checkpoint does not flush the
+ * buffer pool; it hands the pages that are dirty at the time to the cleaner
+ * instead. And the buffer pool hands over its dirty pages when they take up
+ * more than a share of the pool, so that eviction, which only takes clean
+ * pages, does not run out of victims and no write happens on the threads
+ * running queries.
+ * <p>
+ * The cleaner writes the pages in order of table and page number, a batch
+ * at a time, taking the buffer pool lock once per batch and pausing between
+ * batches, so transactions keep running while it works. Within a batch,
+ * pages that are adjacent in their file are written with a single vectored
+ * write (see {@link DbFile#writePages}); the log is forced once for them, up
+ * to the largest of their LSNs, before they are written. Pages that were
+ * written, evicted or discarded in the meantime are skipped, and so are
+ * pages their transaction is in the middle of changing.
+ * <p>
+ * The cleaner thread is started when pages are scheduled and exits once
+ * there is nothing left to write. The batch size, the pause and the share of
+ * dirty pages can be set with the system properties
+ * simpledb.storage.PageFlusher.batch (default 8 pages),
+ * simpledb.storage.PageFlusher.pauseMillis (default 1) and
+ * simpledb.storage.PageFlusher.dirtyRatio (default 0.5).
+ *
+ * @Threadsafe
+ */
+class PageFlusher {
+
+    public static final String BATCH_PROPERTY = "simpledb.storage.PageFlusher.batch";
+    public static final String PAUSE_PROPERTY = "simpledb.storage.PageFlusher.pauseMillis";
+    public static final String DIRTY_RATIO_PROPERTY = "simpledb.storage.PageFlusher.dirtyRatio";
+
+    // pages in the order they are written in
+    private static final Comparator<PageId> FILE_ORDER =
+            Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber);
+
+    private final BufferPool pool;
+    private final int batch;
+    private final long pauseMillis;
+    private volatile double dirtyRatio;
+
+    // guarded by this
+    private final TreeSet<PageId> queue = new TreeSet<>(FILE_ORDER);
+    private boolean running;
+    private long written;
+
+    PageFlusher(BufferPool pool) {
+        this.pool = pool;
+        this.batch = Math.max(1, Integer.getInteger(BATCH_PROPERTY, 8));
+        this.pauseMillis = Math.max(0, Long.getLong(PAUSE_PROPERTY, 1L));
+        this.dirtyRatio = parseRatio(System.getProperty(DIRTY_RATIO_PROPERTY));
+    }
+
+    private static double parseRatio(String value) {
+        if (value != null) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                // fall through to the default
+            }
+        }
+        return 0.5;
+    }
+
+    /**
+     * @return the share of the pool dirty pages may take up before the
+     *   buffer pool hands them to the cleaner
+     */
+    double getDirtyRatio() {
+        return dirtyRatio;
+    }
+
+    void setDirtyRatio(double ratio) {
+        dirtyRatio = ratio;
+    }
+
+    /**
+     * Queue pages to be written out, starting the cleaner thread if needed.
+     */
+    synchronized void schedule(Collection<PageId> pids) {
+        queue.addAll(pids);
+        if (!queue.isEmpty() && !running) {
+            running = true;
+            Thread t = new Thread(this::run, "simpledb-page-flusher");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * @return the number of pages queued but not written yet
+     */
+    synchronized int pending() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of pages the cleaner has processed
+     */
+    synchronized long written() {
+        return written;
+    }
+
+    /**
+     * Wait until all queued pages were processed.
+     *
+     * @return false if that took longer than timeoutMillis
+     */
+    synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (running) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    private void run() {
+        while (true) {
+            List<PageId> next = new ArrayList<>(batch);
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+                while (next.size() < batch && !queue.isEmpty()) {
+                    next.add(queue.pollFirst());
+                }
+            }
+            try {
+                pool.cleanPages(next);
+            } catch (IOException e) {
+                // the pages stay dirty; they are scheduled again later
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                written += next.size();
+            }
+            if (pauseMillis > 0) {
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    synchronized (this) {
+                        running = false;
+                        notifyAll();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes the slot structure of the serialized bytes of a page, so that
+ * changes to the page can be logged slot by slot (see {@link PageDelta}).
+ * <p>
+ * A page consists of
+ * <ul>
+ * <li> a fixed part at the start of the page: pointers and other page
+ *      header fields that are not tied to a slot,
+ * <li> a bitmap with one bit per slot, set if the slot is in use (bit i is
+ *      bit i % 8 of byte i / 8, like the headers of all SimpleDb pages),
+ * <li> one or more regions that hold a fixed number of bytes for every
+ *      slot. A HeapPage has a single region of tuples; a BTreeInternalPage
+ *      keeps the keys and the child pointers of its entries in two regions.
+ * </ul>
+ * Bytes outside of these parts are padding and never change.
+ */
+public class PageLayout {
+
+    private final int pageSize;
+    private final int fixedLength;
+    private final int bitmapOffset;
+    private final int numSlots;
+    // {offset of slot 0, bytes per slot, first slot with bytes in this region}
+    private final List<int[]> regions = new ArrayList<>(2);
+
+    /**
+     * @param pageSize     the length of the serialized page
+     * @param fixedLength  the length of the fixed part at the start of the page
+     * @param bitmapOffset the offset of the slot bitmap
+     * @param numSlots     the number of slots (bits in the bitmap)
+     */
+    public PageLayout(int pageSize, int fixedLength, int bitmapOffset, int numSlots) {
+        this.pageSize = pageSize;
+        this.fixedLength = fixedLength;
+        this.bitmapOffset = bitmapOffset;
+        this.numSlots = numSlots;
+    }
+
+    /**
+     * A layout without slots, for pages that are always logged as a whole.
+     */
+    public static PageLayout unslotted(int pageSize) {
+        return new PageLayout(pageSize, pageSize, pageSize, 0);
+    }
+
+    /**
+     * Add a region holding size bytes for every slot from firstSlot on; slot
+     * i is stored at offset + i * size.
+     *
+     * @return this layout
+     */
+    public PageLayout addRegion(int offset, int size, int firstSlot) {
+        regions.add(new int[]{offset, size, firstSlot});
+        return this;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getFixedLength() {
+        return fixedLength;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    boolean isSlotUsed(byte[] page, int slot) {
+        return (page[bitmapOffset + slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    void markSlotUsed(byte[] page, int slot, boolean used) {
+        int i = bitmapOffset + slot / 8;
+        if (used) {
+            page[i] |= (byte) (1 << (slot % 8));
+        } else {
+            page[i] &= (byte) ~(1 << (slot % 8));
+        }
+    }
+
+    /**
+     * @return the number of bytes stored for a slot, over all regions
+     */
+    int slotSize(int slot) {
+        int size = 0;
+        for (int[] r : regions) {
+            if (slot >= r[2]) {
+                size += r[1];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the bytes stored for a slot, region after region
+     */
+    byte[] readSlot(byte[] page, int slot) {
+        byte[] bytes = new byte[slotSize(slot)];
+        int pos = 0;
+        for (int[] r : regions) {
+            if (slot >= r[2]) {
+                System.arraycopy(page, r[0] + slot * r[1], bytes, pos, r[1]);
+                pos += r[1];
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Store the bytes of a slot, or zero them if bytes is null.
+     */
+    void writeSlot(byte[] page, int slot, byte[] bytes) {
+        int pos = 0;
+        for (int[] r : regions) {
+            if (slot >= r[2]) {
+                int offset = r[0] + slot * r[1];
+                if (bytes == null) {
+                    Arrays.fill(page, offset, offset + r[1], (byte) 0);
+                } else {
+                    System.arraycopy(bytes, pos, page, offset, r[1]);
+                }
+                pos += r[1];
+            }
+        }
+    }
+
+    /**
+     * @return true if the bytes of the slot are the same on both pages
+     */
+    boolean slotEquals(byte[] a, byte[] b, int slot) {
+        for (int[] r : regions) {
+            if (slot >= r[2]) {
+                int offset = r[0] + slot * r[1];
+                for (int i = offset; i < offset + r[1]; i++) {
+                    if (a[i] != b[i]) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,193 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The page LSNs of a DbFile: for every page, the LSN of the last log record
+ * applied to it (see {@link Page#getLsn()}).
+ * <p>
+ * The on-disk page formats have no room for an LSN, so the LSNs are kept in
+ * a side file next to the data file ("&lt;file&gt;.lsn"): a magic number
+ * followed by one long per page number. The LSN of a page that was written
+ * is only kept in memory at first. {@link #sync} forces the data file, and
+ * only then writes the entries of the pages written before to the side file,
+ * and forces it too; the log calls it at every checkpoint. So an entry on
+ * disk is never newer than its page on disk, even after a crash of the
+ * machine, and a missing or lagging entry only makes recovery redo records
+ * the page already reflects, which is harmless because redo is idempotent.
+ A side file that describes more pages than the data file has belongs to
+ * an earlier file and is dropped when the map is created.
+ *
+ * @Threadsafe
+ */
+public class PageLsnMap {
+
+    private static final int MAGIC = 0x4c534e31; // "LSN1"
+    private static final int HEADER_SIZE = 8;
+
+    private final File sideFile;
+    private FileChannel sideChannel;
+    private boolean readOnly;
+
+    private long[] lsns;
+    // the entries of pages written since the last sync(), by page number
+    private Map<Integer, Long> pending = new HashMap<>();
+
+    /**
+     * A side file with entries for more pages than the data file has was
+     * left behind by an earlier data file of the same name, e.g. one that was
+     * deleted and created again, and is deleted.
+     *
+     * @param dataFile the file holding the pages
+     * @param numPages the number of page numbers the data file has room for
+     *   now, 0 if it is new
+     */
+    public PageLsnMap(File dataFile, int numPages) {
+        this.sideFile = sideFileOf(dataFile);
+        if (sideFile.length() > HEADER_SIZE + 8L * numPages) {
+            sideFile.delete();
+        }
+    }
+
+    /**
+     * @return the side file the LSNs of the pages of dataFile are kept in
+     */
+    static File sideFileOf(File dataFile) {
+        return new File(dataFile.getPath() + ".lsn");
+    }
+
+    /**
+     * @return the side file the LSNs are persisted in
+     */
+    public File getSideFile() {
+        return sideFile;
+    }
+
+    /**
+     * @return the LSN recorded for a page, or 0 if none was
+     */
+    public synchronized long get(int pgNo) throws IOException {
+        load();
+        return pgNo < lsns.length ? lsns[pgNo] : 0;
+    }
+
+    /**
+     * Record the LSN of a page that was just written to the data file.  It
+     * reaches the side file at the next {@link #sync}.
+     */
+    public synchronized void set(int pgNo, long lsn) throws IOException {
+        load();
+        if (pgNo < lsns.length ? lsns[pgNo] == lsn : lsn == 0) {
+            return;
+        }
+        if (pgNo >= lsns.length) {
+            lsns = Arrays.copyOf(lsns, Math.max(pgNo + 1, lsns.length * 2));
+        }
+        lsns[pgNo] = lsn;
+        pending.put(pgNo, lsn);
+    }
+
+    /**
+     * Force the data file, then write the LSNs recorded since the last call
+     * to the side file and force that as well.
+     *
+     * @param data the channel of the data file the pages were written to
+     */
+    public void sync(FileChannel data) throws IOException {
+        Map<Integer, Long> entries;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            entries = pending;
+            pending = new HashMap<>();
+        }
+        // without holding the map, so pages can be written meanwhile; an
+        // entry set since is newer than these and waits for the next sync
+        data.force(false);
+        synchronized (this) {
+            FileChannel ch = sideChannel(true);
+            if (ch == null) {
+                return;
+            }
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            for (Map.Entry<Integer, Long> e : entries.entrySet()) {
+                entry.clear();
+                entry.putLong(0, e.getValue());
+                writeFully(ch, entry, HEADER_SIZE + 8L * e.getKey());
+            }
+            ch.force(false);
+        }
+    }
+
+    private void load() throws IOException {
+        if (lsns != null) {
+            return;
+        }
+        lsns = new long[16];
+        FileChannel ch = sideFile.exists() ? sideChannel(false) : null;
+        if (ch == null || ch.size() < HEADER_SIZE) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, buf.position()) < 0) {
+                break;
+            }
+        }
+        if (buf.getInt(0) != MAGIC) {
+            // not ours; start over
+            ch.truncate(0);
+            writeHeader(ch);
+            return;
+        }
+        int n = (buf.position() - HEADER_SIZE) / 8;
+        lsns = new long[Math.max(n, 16)];
+        for (int i = 0; i < n; i++) {
+            lsns[i] = buf.getLong(HEADER_SIZE + 8 * i);
+        }
+    }
+
+    /**
+     * @return the channel of the side file, or null if it cannot be written
+     *   (e.g. a read-only directory), in which case the LSNs are only kept in
+     *   memory
+     */
+    private FileChannel sideChannel(boolean create) throws IOException {
+        if (sideChannel == null && !readOnly) {
+            if (!create && !sideFile.exists()) {
+                return null;
+            }
+            try {
+                sideChannel = new RandomAccessFile(sideFile, "rw").getChannel();
+            } catch (FileNotFoundException e) {
+                readOnly = true;
+                return null;
+            }
+            if (sideChannel.size() < HEADER_SIZE) {
+                writeHeader(sideChannel);
+            }
+        }
+        return sideChannel;
+    }
+
+    private static void writeHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        writeFully(ch, header, 0);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf, offset + buf.position());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageTable maps the on-disk identity of a page, its (table id, page number)
+ * pair, to the Page object cached in the BufferPool.
+ * <p>
+ * Keys are packed into a primitive long and stored in open-addressing hash
+ * tables with linear probing, so a lookup neither boxes the key nor depends
+ * on PageId.hashCode(), which is free to collide. The table is split into
+ * a fixed number of stripes, each guarded by its own read/write lock, so
+ * concurrent lookups of different pages do not contend on one monitor.
+ * <p>
+ * Two PageIds with the same table id and page number (e.g. BTree pages of
+ * different categories that reuse a page number) map to the same slot; the
+ * lookup methods that take a PageId only return the cached page if its id
+ * is equal to the one requested.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+public class PageTable {
+
+    private static final int NUM_STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe[] stripes;
+    private final AtomicInteger size;
+
+    public PageTable() {
+        stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        size = new AtomicInteger();
+    }
+
+    /**
+     * @return the packed key of the page at pageNo in table tableId
+     */
+    static long key(int tableId, int pageNo) {
+        return ((long) tableId << 32) | (pageNo & 0xFFFFFFFFL);
+    }
+
+    // murmur3 finalizer, spreads table ids that only differ in the high bits
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private Stripe stripeFor(long mixed) {
+        return stripes[(int) (mixed >>> 60) & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * @return the cached page with exactly this id, or null if there is none
+     */
+    public Page get(PageId pid) {
+        Page p = get(pid.getTableId(), pid.getPageNumber());
+        if (p != null && !p.getId().equals(pid)) {
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * @return the cached page stored at pageNo of table tableId, whatever the
+     *   class of its PageId, or null if there is none
+     */
+    public Page get(int tableId, int pageNo) {
+        long k = key(tableId, pageNo);
+        long h = mix(k);
+        return stripeFor(h).get(k, h);
+    }
+
+    /**
+     * Cache a page, replacing any page stored at the same table id and page
+     * number.
+     *
+     * @return the page that was replaced, or null
+     */
+    public Page put(Page page) {
+        PageId pid = page.getId();
+        long k = key(pid.getTableId(), pid.getPageNumber());
+        long h = mix(k);
+        Page old = stripeFor(h).put(k, h, page);
+        if (old == null) {
+            size.incrementAndGet();
+        }
+        return old;
+    }
+
+    /**
+     * Remove the page stored at the table id and page number of pid.
+     *
+     * @return the page that was removed, or null
+     */
+    public Page remove(PageId pid) {
+        long k = key(pid.getTableId(), pid.getPageNumber());
+        long h = mix(k);
+        Page old = stripeFor(h).remove(k, h);
+        if (old != null) {
+            size.decrementAndGet();
+        }
+        return old;
+    }
+
+    /**
+     * @return true if a page is stored at the table id and page number of pid
+     */
+    public boolean contains(PageId pid) {
+        return get(pid.getTableId(), pid.getPageNumber()) != null;
+    }
+
+    /**
+     * @return the number of cached pages
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return a snapshot of all cached pages, in no particular order
+     */
+    public List<Page> pages() {
+        List<Page> result = new ArrayList<>(size());
+        for (Stripe s : stripes) {
+            s.collect(result);
+        }
+        return result;
+    }
+
+    /** Remove all pages. */
+    public void clear() {
+        for (Stripe s : stripes) {
+            size.addAndGet(-s.clear());
+        }
+    }
+
+    /**
+     * One open-addressing hash table with linear probing. A slot is free
+     * iff its value is null; deletions shift the following entries back so
+     * no tombstones are needed.
+     */
+    private static final class Stripe {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private Page[] values = new Page[INITIAL_CAPACITY];
+        private int count = 0;
+
+        Page get(long k, long h) {
+            lock.readLock().lock();
+            try {
+                int mask = keys.length - 1;
+                for (int i = (int) h & mask; values[i] != null; i = (i + 1) & mask) {
+                    if (keys[i] == k) {
+                        return values[i];
+                    }
+                }
+                return null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Page put(long k, long h, Page page) {
+            lock.writeLock().lock();
+            try {
+                int mask = keys.length - 1;
+                int i = (int) h & mask;
+                for (; values[i] != null; i = (i + 1) & mask) {
+                    if (keys[i] == k) {
+                        Page old = values[i];
+                        values[i] = page;
+                        return old;
+                    }
+                }
+                keys[i] = k;
+                values[i] = page;
+                if (++count * 2 > keys.length) {
+                    resize();
+                }
+                return null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        Page remove(long k, long h) {
+            lock.writeLock().lock();
+            try {
+                int mask = keys.length - 1;
+                int i = (int) h & mask;
+                while (values[i] != null && keys[i] != k) {
+                    i = (i + 1) & mask;
+                }
+                if (values[i] == null) {
+                    return null;
+                }
+                Page old = values[i];
+                // backward shift deletion
+                int hole = i;
+                for (int j = (hole + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                    int home = (int) mix(keys[j]) & mask;
+                    // move j into the hole unless its home lies cyclically in (hole, j]
+                    boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+                    if (!stays) {
+                        keys[hole] = keys[j];
+                        values[hole] = values[j];
+                        hole = j;
+                    }
+                }
+                values[hole] = null;
+                count--;
+                return old;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Page[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Page[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = (int) mix(oldKeys[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        void collect(List<Page> out) {
+            lock.readLock().lock();
+            try {
+                for (Page p : values) {
+                    if (p != null) {
+                        out.add(p);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int clear() {
+            lock.writeLock().lock();
+            try {
+                int n = count;
+                keys = new long[INITIAL_CAPACITY];
+                values = new Page[INITIAL_CAPACITY];
+                count = 0;
+                return n;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
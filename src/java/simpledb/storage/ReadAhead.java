@@ -0,0 +1,199 @@
+package simpledb.storage;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Asynchronous sequential read-ahead for a BufferPool.
+ * <p>
+ * A scan asks for a {@link Stream} and reports every page it moves to with
+ * {@link Stream#accessed(Page)}. Once two pages in a row were reached by
+ * following the stream's successor function (the next page number of a heap
+ * file, the right sibling of a B+ tree leaf), the stream starts loading the
+ * following pages into the buffer pool on a background thread, so the scan
+ * finds them cached when it gets there.
+ * <p>
+ * The read-ahead depth adapts per stream: it starts at {@link #MIN_DEPTH},
+ * doubles every time the scan reaches a prefetched page that is still cached,
+ * and halves when a prefetched page was evicted before the scan got to it.
+ * It never exceeds a quarter of the buffer pool. The prefetch counters and
+ * the current depth are reported in {@link BufferPoolStats}.
+ * <p>
+ * Read-ahead is off by default; set the system property
+ * simpledb.storage.ReadAhead to "true", or call
+ * {@link BufferPool#setReadAhead}, to turn it on.
+ *
+ * @Threadsafe
+ */
+public class ReadAhead {
+
+    public static final String PROPERTY = "simpledb.storage.ReadAhead";
+
+    public static final int MIN_DEPTH = 2;
+
+    public static final int MAX_DEPTH = 64;
+
+    private static final int NUM_THREADS = 2;
+
+    // shared by all buffer pools, so that Database.reset() does not leak threads
+    private static ExecutorService executor;
+
+    private final BufferPool pool;
+    private final int maxDepth;
+
+    /**
+     * @param pool     the buffer pool to load pages into
+     * @param numPages the capacity of the pool
+     */
+    ReadAhead(BufferPool pool, int numPages) {
+        this.pool = pool;
+        this.maxDepth = Math.min(MAX_DEPTH, numPages / 4);
+    }
+
+    /**
+     * @return true if read-ahead was turned on by the system property
+     */
+    static boolean enabledBySystemProperty() {
+        return "true".equalsIgnoreCase(System.getProperty(PROPERTY));
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(NUM_THREADS, r -> {
+                Thread t = new Thread(r, "simpledb-read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Create a stream for one scan.
+     *
+     * @param successor returns the id of the page a sequential scan reads
+     *                  after the given page, or null at the end
+     * @return the stream, or null if the pool is too small for read-ahead
+     */
+    Stream newStream(Function<Page, PageId> successor) {
+        if (maxDepth < MIN_DEPTH) {
+            return null;
+        }
+        return new Stream(successor);
+    }
+
+    /**
+     * The read-ahead state of one scan. Only the scanning thread calls
+     * {@link #accessed(Page)}; the background walk shares the rest of the
+     * state under the stream's monitor.
+     */
+    public class Stream {
+
+        private final Function<Page, PageId> successor;
+
+        // the page a sequential scan will read next
+        private PageId expected;
+        private int depth = MIN_DEPTH;
+
+        // pages loaded ahead of the scan and not reached yet, in order
+        private final Set<PageId> issued = new LinkedHashSet<>();
+        // the next page the background walk loads; null when the scan is
+        // not sequential or the walk has reached the end
+        private PageId frontier;
+        private boolean walking;
+
+        private Stream(Function<Page, PageId> successor) {
+            this.successor = successor;
+        }
+
+        /**
+         * Report that the scan moved to the given page, and schedule more
+         * read-ahead if the scan is sequential.
+         */
+        public void accessed(Page page) {
+            PageId pid = page.getId();
+            PageId next = successor.apply(page);
+            synchronized (this) {
+                boolean sequential = pid.equals(expected);
+                expected = next;
+                if (!sequential) {
+                    issued.clear();
+                    frontier = null;
+                    return;
+                }
+                if (issued.remove(pid)) {
+                    if (pool.prefetchConsumed(pid)) {
+                        depth = Math.min(depth * 2, maxDepth);
+                    } else {
+                        // evicted before we got here: we are reading too far ahead
+                        depth = Math.max(depth / 2, MIN_DEPTH);
+                    }
+                    pool.getStats().recordReadAheadDepth(depth);
+                } else {
+                    // first sequential step, or the scan overtook the walk
+                    issued.clear();
+                    frontier = next;
+                }
+                if (walking || frontier == null || issued.size() >= depth / 2) {
+                    return;
+                }
+                walking = true;
+            }
+            try {
+                executor().execute(this::walk);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    walking = false;
+                }
+            }
+        }
+
+        /**
+         * Load pages from the frontier on until depth pages are ahead of the
+         * scan or the end is reached.
+         */
+        private void walk() {
+            try {
+                while (true) {
+                    PageId pid;
+                    synchronized (this) {
+                        if (frontier == null || issued.size() >= depth) {
+                            return;
+                        }
+                        pid = frontier;
+                    }
+                    Page page = pool.prefetchPage(pid);
+                    if (page == null) {
+                        // the pool is full of dirty pages, or the page changed
+                        // while it was read; try again on the next access
+                        return;
+                    }
+                    PageId next = successor.apply(page);
+                    synchronized (this) {
+                        // skip the page if the scan moved on while we loaded it
+                        if (pid.equals(frontier)) {
+                            issued.add(pid);
+                            frontier = next;
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                // read-ahead is only a hint; the scan will read the page itself
+            } finally {
+                synchronized (this) {
+                    walking = false;
+                }
+            }
+        }
+
+        /**
+         * @return the current read-ahead depth of this stream
+         */
+        public synchronized int getDepth() {
+            return depth;
+        }
+    }
+}
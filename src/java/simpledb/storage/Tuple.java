@@ -2,11 +2,12 @@ package simpledb.storage;
 
 import simpledb.common.Type;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
@@ -17,13 +18,21 @@ public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    ArrayList<Field> fields;
+    // fields set on or decoded for this tuple; null entries are decoded
+    // from data on first access, or take a default value if there is no data
+    Field[] fields;
 
     TupleDesc tupleDesc;
 
     // why we need this one?
     RecordId recordId;
 
+    // serialized tuple this one was read from (e.g. a page), or null
+    private transient ByteBuffer data;
+
+    // offset of the first byte of the tuple in data
+    private transient int offset;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -34,17 +43,23 @@ public class Tuple implements Serializable {
     public Tuple(TupleDesc td) {
         // some code goes here
         tupleDesc = td;
-        fields = new ArrayList<>();
-        List<Type> types = td.fieldDescriptions.stream()
-                .map(e -> e.fieldType)
-                .collect(Collectors.toList());
-        for (Type t : types) {
-            if (t.name().equals("INT_TYPE")) {
-                fields.add(new IntField(0));
-            } else {
-                fields.add(new StringField("", t.getLen()));
-            }
-        }
+        fields = new Field[td.numFields()];
+    }
+
+    /**
+     * Create a tuple whose fields are read from a serialized tuple in data,
+     * starting at offset, when they are first asked for. Fields that are
+     * never looked at are never decoded. data must not change while the
+     * tuple is in use.
+     *
+     * @param td     the schema of this tuple and of the serialized tuple
+     * @param data   the buffer holding the serialized tuple
+     * @param offset the offset of the tuple in data
+     */
+    Tuple(TupleDesc td, ByteBuffer data, int offset) {
+        this(td);
+        this.data = data;
+        this.offset = offset;
     }
 
     /**
@@ -85,10 +100,10 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        if (i < 0 || i >= fields.size()) {
+        if (i < 0 || i >= fields.length) {
             return;
         } else {
-            fields.set(i, f);
+            fields[i] = f;
         }
     }
 
@@ -100,11 +115,22 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        if (i < 0 || i >= fields.size()) {
+        if (i < 0 || i >= fields.length) {
             return null;
-        } else {
-            return fields.get(i);
         }
+        Field f = fields[i];
+        if (f == null) {
+            Type t = tupleDesc.getFieldType(i);
+            if (data != null) {
+                f = t.parse(data, offset + tupleDesc.getOffset(i));
+            } else if (t == Type.INT_TYPE) {
+                f = new IntField(0);
+            } else {
+                f = new StringField("", t.getLen());
+            }
+            fields[i] = f;
+        }
+        return f;
     }
 
     /**
@@ -117,8 +143,14 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
-        List<String> contents = fields.stream().map(e -> e.toString()).collect(Collectors.toList());
-        return String.join(" ", contents);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(getField(i));
+        }
+        return sb.toString();
     }
 
     /**
@@ -128,10 +160,13 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        if (fields == null || fields.size() == 0) {
+        if (fields == null || fields.length == 0) {
             return null;
         } else {
-            return fields.iterator();
+            for (int i = 0; i < fields.length; i++) {
+                getField(i);
+            }
+            return Arrays.asList(fields).iterator();
         }
     }
 
@@ -141,6 +176,24 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td)
     {
         // some code goes here
+        if (data != null) {
+            // the offsets of the new TupleDesc may not match the buffer
+            for (int i = 0; i < fields.length; i++) {
+                getField(i);
+            }
+            data = null;
+        }
         tupleDesc = td;
     }
+
+    /**
+     * Decode any remaining fields before serializing, since the buffer they
+     * would be read from is not serialized.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            getField(i);
+        }
+        out.defaultWriteObject();
+    }
 }
@@ -5,9 +5,7 @@ import simpledb.common.Type;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.stream.Collectors;
 
 /**
  * TupleDesc describes the schema of a tuple.
@@ -16,6 +14,10 @@ public class TupleDesc implements Serializable {
 
     ArrayList<TDItem> fieldDescriptions;
 
+    // byte offset of each field in a serialized tuple, followed by the tuple
+    // size; computed on first use
+    private transient int[] offsets;
+
     /**
      * A help class to facilitate organizing the information of each field
      */
@@ -45,6 +47,7 @@ public class TupleDesc implements Serializable {
 
     public void setFields(int i, TDItem t) {
         fieldDescriptions.set(i, t);
+        offsets = null;
     }
 
     public TDItem getFields(int i) {
@@ -160,11 +163,32 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        List<Integer> lengthArray = fieldDescriptions
-                .stream()
-                .map(e -> e.fieldType.getLen())
-                .collect(Collectors.toList());
-        return lengthArray.stream().mapToInt(Integer::intValue).sum();
+        int[] o = offsets();
+        return o[o.length - 1];
+    }
+
+    /**
+     * @return the byte offset of the ith field within a serialized tuple of
+     * this TupleDesc, so a field can be read without reading the ones before it.
+     * @throws NoSuchElementException if i is not a valid field reference.
+     */
+    public int getOffset(int i) throws NoSuchElementException {
+        if (i < 0 || i >= fieldDescriptions.size()) {
+            throw new NoSuchElementException();
+        }
+        return offsets()[i];
+    }
+
+    private int[] offsets() {
+        int[] o = offsets;
+        if (o == null) {
+            o = new int[fieldDescriptions.size() + 1];
+            for (int i = 0; i < fieldDescriptions.size(); i++) {
+                o[i + 1] = o[i] + fieldDescriptions.get(i).fieldType.getLen();
+            }
+            offsets = o;
+        }
+        return o;
     }
 
     /**
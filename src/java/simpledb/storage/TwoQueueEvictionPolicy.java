@@ -0,0 +1,99 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Full 2Q eviction (Johnson and Shasha). New pages enter a FIFO queue, A1in.
+ * Pages evicted from A1in leave their id behind in a ghost queue, A1out, and
+ * only a page that is read again while its id is still in A1out is promoted
+ * to the main LRU queue, Am. Pages touched once by a scan therefore never
+ * displace the hot pages in Am.
+ * <p>
+ * A1in is sized to a quarter of the buffer pool and A1out remembers half a
+ * buffer pool worth of page ids, as recommended in the paper.
+ *
+ * @see EvictionPolicy
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    // access-ordered, so iteration starts with the least recently used page
+    private final LinkedHashMap<PageId, Boolean> am;
+
+    /**
+     * @param numPages the capacity of the buffer pool
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        this.maxIn = Math.max(1, numPages / 4);
+        this.maxOut = Math.max(1, numPages / 2);
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public String getName() {
+        return "2q";
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else if (!am.containsKey(pid)) {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored; they are usually correlated
+        // references from the same scan
+        am.get(pid);
+    }
+
+    public synchronized void pageEvicted(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > maxOut) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized void pageDiscarded(PageId pid) {
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > maxIn || am.isEmpty()) {
+            victim = first(a1in, evictable);
+        }
+        if (victim == null) {
+            victim = first(am.keySet(), evictable);
+        }
+        if (victim == null) {
+            victim = first(a1in, evictable);
+        }
+        return victim;
+    }
+
+    private static PageId first(Iterable<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
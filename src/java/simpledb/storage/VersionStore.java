@@ -0,0 +1,263 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The prior versions of heap page slots that read-only transactions need to
+ * see a snapshot of the database (multi-version concurrency control).
+ * <p>
+ * Before a writer changes a slot of a HeapPage, it records what the slot
+ * held (the bytes of its tuple, or nothing for an empty slot) at the head of
+ * that slot's version chain, tagged with the writer.  Only the first change
+ * a transaction makes to a slot is recorded.  When the writer commits, it
+ * draws the next commit timestamp and stamps its versions with it: from that
+ * time on the new contents are current, and the recorded ones are what the
+ * slot held before.  When it aborts, its versions are unlinked, as rollback
+ * restores the page.
+ * <p>
+ * A read-only transaction takes the last commit timestamp as its snapshot
+ * when it starts.  It reads a copy of the current page in which each slot
+ * with a version that was superseded after the snapshot, or not committed
+ * yet, is set back to the oldest such version: the contents the slot had at
+ * the snapshot.  Versions superseded no later than the oldest active
+ * snapshot are not needed by anyone and are unlinked; with no active
+ * snapshots, a commit unlinks its versions right away.
+ * <p>
+ * Versions are kept in memory only; they do not survive a restart, and need
+ * not, as no snapshot does either.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** The commit timestamp of a version whose writer has not committed yet. */
+    private static final long PENDING = Long.MAX_VALUE;
+
+    /** The contents of a slot before a writer changed it. */
+    private static final class Version {
+        final PageId pid;
+        final int slot;
+        // the serialized tuple, or null for an empty slot
+        final byte[] before;
+        final TransactionId writer;
+        // the commit timestamp of the writer
+        long supersededAt = PENDING;
+
+        Version(PageId pid, int slot, byte[] before, TransactionId writer) {
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+            this.writer = writer;
+        }
+    }
+
+    // the snapshot of each read-only transaction; read without the lock on
+    // every page access
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private long clock;
+    // the number of active snapshots at each timestamp
+    private final TreeMap<Long, Integer> active = new TreeMap<>();
+    // version chains, newest first, by page and slot
+    private final Map<PageId, Map<Integer, Deque<Version>>> chains = new HashMap<>();
+    private final Map<TransactionId, List<Version>> uncommitted = new HashMap<>();
+    // the versions of each commit that active snapshots may need, oldest first
+    private final Deque<List<Version>> committed = new ArrayDeque<>();
+    private int size;
+
+    /**
+     * Start a snapshot for a read-only transaction.
+     *
+     * @return the commit timestamp of the snapshot
+     */
+    synchronized long begin(TransactionId tid) {
+        Long old = snapshots.put(tid, clock);
+        if (old != null) {
+            release(old);
+        }
+        active.merge(clock, 1, Integer::sum);
+        return clock;
+    }
+
+    /**
+     * @return the snapshot of a read-only transaction, or null if tid does not
+     *   read from a snapshot
+     */
+    Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * End the snapshot of a read-only transaction, if it has one.
+     */
+    synchronized void end(TransactionId tid) {
+        Long ts = snapshots.remove(tid);
+        if (ts != null) {
+            release(ts);
+            prune();
+        }
+    }
+
+    private void release(long ts) {
+        active.computeIfPresent(ts, (t, n) -> n == 1 ? null : n - 1);
+    }
+
+    /**
+     * Record the contents of a slot before a transaction changes it.
+     *
+     * @param before the serialized tuple in the slot, or null if it is empty
+     */
+    synchronized void record(TransactionId tid, PageId pid, int slot, byte[] before) {
+        Deque<Version> chain = chains.computeIfAbsent(pid, p -> new HashMap<>())
+                .computeIfAbsent(slot, s -> new ArrayDeque<>(2));
+        Version head = chain.peekFirst();
+        if (head != null && head.supersededAt == PENDING && head.writer.equals(tid)) {
+            // the contents before the transaction's first change are kept
+            return;
+        }
+        Version v = new Version(pid, slot, before, tid);
+        chain.addFirst(v);
+        uncommitted.computeIfAbsent(tid, t -> new ArrayList<>()).add(v);
+        size++;
+    }
+
+    /**
+     * Make the changes of a transaction visible to snapshots taken from now on.
+     */
+    synchronized void commit(TransactionId tid) {
+        List<Version> versions = uncommitted.remove(tid);
+        if (versions == null) {
+            return;
+        }
+        long ts = ++clock;
+        if (active.isEmpty()) {
+            // later snapshots see the new contents
+            unlinkAll(versions);
+            return;
+        }
+        for (Version v : versions) {
+            v.supersededAt = ts;
+        }
+        committed.addLast(versions);
+    }
+
+    /**
+     * Forget the versions of a transaction that was rolled back.
+     */
+    synchronized void abort(TransactionId tid) {
+        List<Version> versions = uncommitted.remove(tid);
+        if (versions != null) {
+            unlinkAll(versions);
+        }
+    }
+
+    /**
+     * Unlink the committed versions that no active snapshot can see.
+     */
+    private void prune() {
+        long oldest = active.isEmpty() ? PENDING : active.firstKey();
+        while (!committed.isEmpty() && committed.peekFirst().get(0).supersededAt <= oldest) {
+            unlinkAll(committed.pollFirst());
+        }
+    }
+
+    private void unlinkAll(List<Version> versions) {
+        for (Version v : versions) {
+            Map<Integer, Deque<Version>> slots = chains.get(v.pid);
+            Deque<Version> chain = slots.get(v.slot);
+            chain.remove(v);
+            if (chain.isEmpty()) {
+                slots.remove(v.slot);
+                if (slots.isEmpty()) {
+                    chains.remove(v.pid);
+                }
+            }
+            size--;
+        }
+    }
+
+    /**
+     * Set the slots of a private copy of a page back to their contents as of
+     * a snapshot.
+     */
+    synchronized void rollBack(HeapPage copy, long snapshot) {
+        Map<Integer, Deque<Version>> slots = chains.get(copy.getId());
+        if (slots == null) {
+            return;
+        }
+        for (Map.Entry<Integer, Deque<Version>> e : slots.entrySet()) {
+            Version visible = null;
+            for (Version v : e.getValue()) {
+                if (v.supersededAt <= snapshot) {
+                    // this and older versions were replaced before the snapshot
+                    break;
+                }
+                visible = v;
+            }
+            if (visible != null) {
+                copy.restoreSlot(e.getKey(), visible.before);
+            }
+        }
+    }
+
+    /**
+     * @return the transaction that changed each slot of a page and has not
+     *   committed yet
+     */
+    synchronized Map<Integer, TransactionId> pendingWriters(PageId pid) {
+        Map<Integer, Deque<Version>> slots = chains.get(pid);
+        if (slots == null) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, TransactionId> writers = new HashMap<>();
+        for (Map.Entry<Integer, Deque<Version>> e : slots.entrySet()) {
+            Version head = e.getValue().peekFirst();
+            if (head.supersededAt == PENDING) {
+                writers.put(e.getKey(), head.writer);
+            }
+        }
+        return writers;
+    }
+
+    /**
+     * Set the slots of a page that a transaction changed, and no one changed
+     * since, back to what they held before its first change.
+     *
+     * @return false if they held that already
+     */
+    synchronized boolean undo(TransactionId tid, HeapPage page) {
+        Map<Integer, Deque<Version>> slots = chains.get(page.getId());
+        if (slots == null) {
+            return false;
+        }
+        boolean changed = false;
+        for (Map.Entry<Integer, Deque<Version>> e : slots.entrySet()) {
+            Version head = e.getValue().peekFirst();
+            if (head.supersededAt == PENDING && head.writer.equals(tid)
+                    && !Arrays.equals(page.slotData(e.getKey()), head.before)) {
+                page.restoreSlot(e.getKey(), head.before);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the number of versions kept
+     */
+    synchronized int size() {
+        return size;
+    }
+}
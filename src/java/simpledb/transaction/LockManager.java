@@ -0,0 +1,758 @@
+package simpledb.transaction;
+
+import simpledb.common.DeadlockException;
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hierarchical lock manager for strict two-phase locking, with locks on
+ * tables, pages and tuples ({@link RecordId}s).
+ * <p>
+ * A lock is held in one of the modes IS, IX, S, SIX or X (see {@link Mode}).
+ * Before a transaction locks a page, it takes the matching intention lock
+ * (IS for reading, IX for writing) on the page's table, and before it locks
+ * a tuple, intention locks on the table and on the page.  So a page lock in
+ * S or X mode covers all tuples of the page, and conflicts with the
+ * intention locks of transactions that lock single tuples on it, while
+ * transactions that lock different tuples of a page only share compatible
+ * intention locks and proceed in parallel.  A transaction asking for a mode
+ * on something it already holds a lock on gets the combination of both
+ * modes, e.g. SIX for S and IX; a transaction that is the only holder can
+ * always upgrade.  Locks are held until the transaction completes and calls
+ * {@link #releaseAll(TransactionId)}.
+ * <p>
+ * A transaction that holds more than a threshold of tuple locks on one page
+ * escalates them: it locks the page in S mode, or in X mode if any of its
+ * tuple locks there is exclusive, and releases the tuple locks, which the
+ * page lock covers from then on.  The threshold can be set with the system
+ * property simpledb.transaction.LockManager.escalationThreshold (default
+ * 64).
+ * <p>
+ * Locks are keyed on (tableId, pageNo), like the buffer pool's page table,
+ * so a B+ tree page that is reused as a different page category is still
+ * the same lock. The lock table is split into stripes with a monitor each,
+ * so requests for locks in different stripes never contend. Each
+ * transaction keeps the set of locks it holds, so releasing its locks
+ * takes time proportional to the number of locks it holds, and asking again
+ * for a lock it holds does not touch the lock table.
+ * <p>
+ * A request that cannot be granted waits. While it waits, the lock manager
+ * keeps an edge in a waits-for graph from the transaction to every
+ * transaction holding a conflicting lock, and looks for a cycle through the
+ * new edges each time a transaction blocks. A cycle is a deadlock: the
+ * youngest transaction on it (the one with the largest
+ * {@link TransactionId#getId()}) is aborted right away, so it loses the least
+ * work. Its pending request throws TransactionAbortedException, caused by a
+ * {@link DeadlockException}.
+ * <p>
+ * Threads that wait for something other transactions hold outside the lock
+ * table, such as the latches of a B+ tree, add their edges to the graph too
+ * (see {@link #waitOutside}), so a deadlock between a latch and a lock is
+ * found like any other.  Such a waiter has not started the work it waits
+ * for, so it is the victim of a cycle before any waiter for a lock.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    public static final String ESCALATION_PROPERTY = "simpledb.transaction.LockManager.escalationThreshold";
+
+    private static final int NUM_STRIPES = 64;
+
+    /** Lock modes, from the weakest to the strongest. */
+    public enum Mode {
+        /** intention to lock parts in S mode */
+        IS,
+        /** intention to lock parts in X mode */
+        IX,
+        /** shared */
+        S,
+        /** shared, with the intention to lock parts in X mode */
+        SIX,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+                //  IS     IX     S      SIX    X
+                {true, true, true, true, false},     // IS
+                {true, true, false, false, false},   // IX
+                {true, false, true, false, false},   // S
+                {true, false, false, false, false},  // SIX
+                {false, false, false, false, false}, // X
+        };
+
+        /**
+         * @return true if other transactions may hold the two modes at once
+         */
+        public boolean isCompatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * @return the weakest mode that grants both this and the other mode
+         */
+        public Mode join(Mode other) {
+            if (this == other) {
+                return this;
+            }
+            if (this == X || other == X) {
+                return X;
+            }
+            if (this == IS) {
+                return other;
+            }
+            if (other == IS) {
+                return this;
+            }
+            // two of IX, S and SIX
+            return SIX;
+        }
+
+        /**
+         * @return true if holding this mode grants the other one
+         */
+        public boolean covers(Mode other) {
+            return join(other) == this;
+        }
+
+        static Mode of(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? X : S;
+        }
+
+        static Mode intentionOf(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? IX : IS;
+        }
+    }
+
+    /**
+     * Something that can be locked: a table (page and slot -1), a page (slot
+     * -1) or a tuple.
+     */
+    private static final class Resource {
+        final int table;
+        final int page;
+        final int slot;
+        // the Integer table id, PageId or RecordId; not part of the key
+        final Object id;
+
+        private Resource(int table, int page, int slot, Object id) {
+            this.table = table;
+            this.page = page;
+            this.slot = slot;
+            this.id = id;
+        }
+
+        static Resource of(int tableId) {
+            return new Resource(tableId, -1, -1, tableId);
+        }
+
+        static Resource of(PageId pid) {
+            return new Resource(pid.getTableId(), pid.getPageNumber(), -1, pid);
+        }
+
+        static Resource of(RecordId rid) {
+            PageId pid = rid.getPageId();
+            return new Resource(pid.getTableId(), pid.getPageNumber(), rid.getTupleNumber(), rid);
+        }
+
+        boolean isPage() {
+            return page >= 0 && slot < 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Resource)) {
+                return false;
+            }
+            Resource r = (Resource) o;
+            return table == r.table && page == r.page && slot == r.slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return (table * 31 + page) * 31 + slot;
+        }
+    }
+
+    /** The state of one lock; guarded by the monitor of its stripe. */
+    private static final class Lock {
+        final Map<TransactionId, Mode> holders = new HashMap<>(4);
+    }
+
+    /** One part of the lock table, used as the monitor for its locks. */
+    private static final class Stripe {
+        final Map<Resource, Lock> locks = new HashMap<>();
+    }
+
+    /** A blocked request: the waiting thread and who it waits for. */
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        Set<TransactionId> blockers;
+        // waiting outside the lock table, see waitOutside()
+        boolean outside;
+    }
+
+    /** The locks a transaction holds. */
+    private static final class Held {
+        // the mode of every lock
+        final Map<Resource, Mode> modes = new ConcurrentHashMap<>();
+        // the tuple locks on each page
+        final Map<Resource, Set<Resource>> rows = new ConcurrentHashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+    // the waits-for graph and the victims chosen from it, guarded by the
+    // monitor of waiters; always taken after a stripe monitor, never before
+    private final Map<TransactionId, Waiter> waiters = new HashMap<>();
+    private final Set<TransactionId> victims = new HashSet<>();
+    private long deadlocks;
+    private long escalations;
+
+    private final int escalationThreshold;
+
+    private final ConcurrentHashMap<TransactionId, Held> lockSets = new ConcurrentHashMap<>();
+
+    public LockManager() {
+        this(Integer.getInteger(ESCALATION_PROPERTY, 64));
+    }
+
+    /**
+     * @param escalationThreshold the number of tuple locks a transaction may
+     *                            hold on one page before they are escalated
+     *                            to a page lock
+     */
+    public LockManager(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(Resource r) {
+        long h = r.hashCode() * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58) & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * Acquire a lock on a page, waiting while another transaction holds a
+     * conflicting lock. Returns immediately if tid already holds a lock at
+     * least as strong.
+     *
+     * @param tid  the transaction requesting the lock
+     * @param pid  the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive lock
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *                                     a deadlock while waiting, or the
+     *                                     waiting thread was interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        lock(tid, Resource.of(pid.getTableId()), Mode.intentionOf(perm), true);
+        lock(tid, Resource.of(pid), Mode.of(perm), true);
+    }
+
+    /**
+     * Acquire a lock on a page, and the intention lock on its table, if no
+     * other transaction holds a conflicting lock on either, without waiting.
+     * Intention locks granted before a conflict was found are kept.
+     *
+     * @return true if tid holds the lock now
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        return lock(tid, Resource.of(pid.getTableId()), Mode.intentionOf(perm), false)
+                && lock(tid, Resource.of(pid), Mode.of(perm), false);
+    }
+
+    /**
+     * Acquire the intention locks on a page and its table that are needed to
+     * lock tuples of the page.
+     *
+     * @param perm READ_ONLY to read tuples, READ_WRITE to change them
+     */
+    public void acquireIntention(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        Mode mode = Mode.intentionOf(perm);
+        lock(tid, Resource.of(pid.getTableId()), mode, true);
+        lock(tid, Resource.of(pid), mode, true);
+    }
+
+    /**
+     * Acquire a lock on a whole table, e.g. for a statement that reads or
+     * changes all of it.
+     */
+    public void acquireTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        lock(tid, Resource.of(tableId), Mode.of(perm), true);
+    }
+
+    /**
+     * Acquire a lock on a tuple, and the intention locks on its page and
+     * table, waiting while another transaction holds a conflicting lock.
+     * Nothing is locked on the tuple if tid holds a page lock that covers
+     * it.  May escalate the tuple locks of tid on the page to a page lock.
+     *
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive lock
+     */
+    public void acquireRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        lockRecord(tid, rid, perm, true);
+    }
+
+    /**
+     * Acquire an exclusive lock on a tuple, and the intention locks on its
+     * page and table, if no other transaction holds a conflicting lock on any
+     * of them, without waiting.  Intention locks granted before a conflict
+     * was found are kept.
+     *
+     * @return true if tid holds the lock now
+     */
+    public boolean tryAcquireRecord(TransactionId tid, RecordId rid)
+            throws TransactionAbortedException {
+        return lockRecord(tid, rid, Permissions.READ_WRITE, false);
+    }
+
+    private boolean lockRecord(TransactionId tid, RecordId rid, Permissions perm, boolean wait)
+            throws TransactionAbortedException {
+        Resource page = Resource.of(rid.getPageId());
+        Mode mode = Mode.of(perm);
+        if (covered(tid, page, mode)) {
+            return true;
+        }
+        Mode intention = Mode.intentionOf(perm);
+        if (!lock(tid, Resource.of(page.table), intention, wait)
+                || !lock(tid, page, intention, wait)) {
+            return false;
+        }
+        if (covered(tid, page, mode)) {
+            // escalated meanwhile
+            return true;
+        }
+        Resource row = Resource.of(rid);
+        if (!lock(tid, row, mode, wait)) {
+            return false;
+        }
+        Held held = lockSets.get(tid);
+        Set<Resource> rows = held.rows.computeIfAbsent(page, p -> ConcurrentHashMap.newKeySet());
+        rows.add(row);
+        if (rows.size() > escalationThreshold) {
+            escalate(tid, held, page, rows);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if tid holds a lock on r that grants mode
+     */
+    private boolean covered(TransactionId tid, Resource r, Mode mode) {
+        Held held = lockSets.get(tid);
+        Mode m = held == null ? null : held.modes.get(r);
+        return m != null && m.covers(mode);
+    }
+
+    /**
+     * Replace the tuple locks of tid on a page by a page lock.
+     */
+    private void escalate(TransactionId tid, Held held, Resource page, Set<Resource> rows)
+            throws TransactionAbortedException {
+        Mode mode = Mode.S;
+        for (Resource row : rows) {
+            if (held.modes.get(row) == Mode.X) {
+                mode = Mode.X;
+                break;
+            }
+        }
+        lock(tid, page, mode, true);
+        held.rows.remove(page);
+        for (Resource row : rows) {
+            held.modes.remove(row);
+            unlock(tid, row);
+        }
+        synchronized (waiters) {
+            escalations++;
+        }
+    }
+
+    /**
+     * Grant a lock on r in the given mode to tid, combined with the mode it
+     * holds already, waiting if wait is set and another holder conflicts.
+     *
+     * @return false if the lock could not be granted without waiting
+     */
+    private boolean lock(TransactionId tid, Resource r, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        if (covered(tid, r, mode)) {
+            return true;
+        }
+        Stripe stripe = stripe(r);
+        synchronized (stripe) {
+            try {
+                // look the lock up again after every wait: it is dropped from
+                // the table when its last holder releases it
+                Lock lock;
+                while (!tryGrant(lock = stripe.locks.computeIfAbsent(r, k -> new Lock()), tid, mode)) {
+                    if (!wait) {
+                        if (lock.holders.isEmpty()) {
+                            stripe.locks.remove(r);
+                        }
+                        return false;
+                    }
+                    // the holders may have changed while we slept
+                    if (waitFor(tid, blockers(lock, tid, mode), false)) {
+                        throw deadlockAbort();
+                    }
+                    try {
+                        stripe.wait();
+                    } catch (InterruptedException e) {
+                        if (isVictim(tid)) {
+                            throw deadlockAbort();
+                        }
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    }
+                }
+                // recorded under the monitor, so a thread stopped right after
+                // the grant still has the lock released with the rest of its locks
+                lockSets.computeIfAbsent(tid, t -> new Held()).modes.put(r, lock.holders.get(tid));
+                return true;
+            } finally {
+                if (wait) {
+                    doneWaiting(tid);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the transactions whose locks keep tid from being granted mode
+     */
+    private static Set<TransactionId> blockers(Lock lock, TransactionId tid, Mode mode) {
+        Mode held = lock.holders.get(tid);
+        Mode want = held == null ? mode : held.join(mode);
+        Set<TransactionId> blockers = new HashSet<>(4);
+        for (Map.Entry<TransactionId, Mode> h : lock.holders.entrySet()) {
+            if (!h.getKey().equals(tid) && !want.isCompatibleWith(h.getValue())) {
+                blockers.add(h.getKey());
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * Record that tid waits for something outside the lock table, such as a
+     * latch, that the holders have, and resolve a deadlock if that closes a
+     * cycle in the waits-for graph.  The waiting thread calls this again
+     * with the current holders whenever it wakes up, and
+     * {@link #stopWaiting} once it stops waiting.
+     *
+     * @return true if every holder is waiting itself, and those waits lead
+     *   to a wait for a lock, so the wait may last as long as that one does
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *                                     a deadlock
+     */
+    public boolean waitOutside(TransactionId tid, Set<TransactionId> holders)
+            throws TransactionAbortedException {
+        if (isVictim(tid)) {
+            throw deadlockAbort();
+        }
+        if (waitFor(tid, holders, true)) {
+            throw deadlockAbort();
+        }
+        synchronized (waiters) {
+            // the edges of other outside waiters are as old as their last
+            // wake-up, so a cycle of such waits only may be one that is
+            // already gone; it is left to the caller to time out
+            Set<TransactionId> seen = new HashSet<>(holders);
+            Deque<TransactionId> todo = new ArrayDeque<>(holders);
+            boolean lockWait = false;
+            while (!todo.isEmpty()) {
+                Waiter w = waiters.get(todo.pop());
+                if (w == null) {
+                    return false;
+                }
+                if (!w.outside) {
+                    lockWait = true;
+                    continue;
+                }
+                for (TransactionId b : w.blockers) {
+                    if (seen.add(b)) {
+                        todo.push(b);
+                    }
+                }
+            }
+            return lockWait;
+        }
+    }
+
+    /**
+     * Remove the waits-for edges {@link #waitOutside} recorded for tid.
+     */
+    public void stopWaiting(TransactionId tid) {
+        doneWaiting(tid);
+    }
+
+    /**
+     * Record that tid waits for blockers, and resolve a deadlock if that
+     * closes a cycle in the waits-for graph. Every cycle goes through the
+     * edges of the transaction that blocked last, so the search only starts
+     * from tid.
+     * <p>
+     * A cycle of waits outside the lock table only is left alone: their
+     * owners order them, so it is made of edges that are out of date.
+     *
+     * @param outside true if tid waits outside the lock table
+     * @return true if tid itself must abort
+     */
+    private boolean waitFor(TransactionId tid, Set<TransactionId> blockers, boolean outside) {
+        synchronized (waiters) {
+            Waiter w = waiters.computeIfAbsent(tid, t -> new Waiter());
+            w.blockers = blockers;
+            w.outside = outside;
+            Set<TransactionId> cycle = findCycle(tid);
+            if (cycle == null) {
+                return false;
+            }
+            TransactionId youngest = tid;
+            TransactionId victim = null;
+            for (TransactionId t : cycle) {
+                if (t.getId() > youngest.getId()) {
+                    youngest = t;
+                }
+                if (waiters.get(t).outside && (victim == null || t.getId() > victim.getId())) {
+                    victim = t;
+                }
+            }
+            if (victim == null) {
+                victim = youngest;
+            } else if (allOutside(cycle)) {
+                return false;
+            }
+            deadlocks++;
+            if (victim.equals(tid)) {
+                return true;
+            }
+            // every transaction on a cycle is waiting, so the victim is
+            // blocked in acquire(); wake it up to abort
+            victims.add(victim);
+            waiters.get(victim).thread.interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the transactions on a path from tid back to itself in the
+     *   waits-for graph, or null if there is no such path
+     */
+    private Set<TransactionId> findCycle(TransactionId tid) {
+        Map<TransactionId, TransactionId> parent = new HashMap<>();
+        Deque<TransactionId> stack = new ArrayDeque<>();
+        stack.push(tid);
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            Waiter w = waiters.get(t);
+            if (w == null || victims.contains(t)) {
+                // running, or about to abort and release its locks
+                continue;
+            }
+            for (TransactionId next : w.blockers) {
+                if (next.equals(tid)) {
+                    Set<TransactionId> cycle = new HashSet<>();
+                    for (TransactionId c = t; c != null; c = parent.get(c)) {
+                        cycle.add(c);
+                    }
+                    return cycle;
+                }
+                if (!parent.containsKey(next)) {
+                    parent.put(next, t);
+                    stack.push(next);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Must be called with the monitor of waiters held.
+     */
+    private boolean allOutside(Set<TransactionId> cycle) {
+        for (TransactionId t : cycle) {
+            if (!waiters.get(t).outside) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isVictim(TransactionId tid) {
+        synchronized (waiters) {
+            return victims.contains(tid);
+        }
+    }
+
+    /**
+     * Remove the waits-for edges of tid once its request was granted or given up.
+     */
+    private void doneWaiting(TransactionId tid) {
+        synchronized (waiters) {
+            Waiter w = waiters.get(tid);
+            if (w != null && w.thread == Thread.currentThread()) {
+                waiters.remove(tid);
+            }
+            if (victims.remove(tid)) {
+                // clear the interrupt in case the lock was granted before it arrived
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static TransactionAbortedException deadlockAbort() {
+        TransactionAbortedException e = new TransactionAbortedException();
+        e.initCause(new DeadlockException());
+        return e;
+    }
+
+    /**
+     * @return the number of deadlocks resolved so far
+     */
+    public long getDeadlocks() {
+        synchronized (waiters) {
+            return deadlocks;
+        }
+    }
+
+    /**
+     * @return the number of times tuple locks were escalated to a page lock
+     */
+    public long getEscalations() {
+        synchronized (waiters) {
+            return escalations;
+        }
+    }
+
+    /**
+     * Grant the lock to tid if that does not conflict with other holders.
+     * Must be called with the monitor of the lock's stripe held.
+     */
+    private static boolean tryGrant(Lock lock, TransactionId tid, Mode mode) {
+        Mode held = lock.holders.get(tid);
+        Mode want = held == null ? mode : held.join(mode);
+        if (want == held) {
+            return true;
+        }
+        for (Map.Entry<TransactionId, Mode> h : lock.holders.entrySet()) {
+            if (!h.getKey().equals(tid) && !want.isCompatibleWith(h.getValue())) {
+                return false;
+            }
+        }
+        lock.holders.put(tid, want);
+        return true;
+    }
+
+    /**
+     * @return true if tid holds a lock in any mode on the page
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        return lockMode(tid, pid) != null;
+    }
+
+    /**
+     * @return true if tid holds a lock on the tuple, or a page lock covering it
+     */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        Held held = lockSets.get(tid);
+        if (held == null) {
+            return false;
+        }
+        Mode page = held.modes.get(Resource.of(rid.getPageId()));
+        return held.modes.containsKey(Resource.of(rid))
+                || (page != null && page.covers(Mode.S));
+    }
+
+    /**
+     * @return the mode of the lock tid holds on the page, or null if it holds none
+     */
+    public Mode lockMode(TransactionId tid, PageId pid) {
+        Held held = lockSets.get(tid);
+        return held == null ? null : held.modes.get(Resource.of(pid));
+    }
+
+    /**
+     * Release the lock tid holds on a page, and its tuple locks on the page,
+     * if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Resource page = Resource.of(pid);
+        Held held = lockSets.get(tid);
+        if (held != null) {
+            held.modes.remove(page);
+            Set<Resource> rows = held.rows.remove(page);
+            if (rows != null) {
+                for (Resource row : rows) {
+                    held.modes.remove(row);
+                    unlock(tid, row);
+                }
+            }
+        }
+        unlock(tid, page);
+    }
+
+    /**
+     * Release all locks held by tid.
+     */
+    public void releaseAll(TransactionId tid) {
+        Held held = lockSets.remove(tid);
+        if (held == null) {
+            return;
+        }
+        for (Resource r : held.modes.keySet()) {
+            unlock(tid, r);
+        }
+    }
+
+    private void unlock(TransactionId tid, Resource r) {
+        Stripe stripe = stripe(r);
+        synchronized (stripe) {
+            Lock lock = stripe.locks.get(r);
+            if (lock == null) {
+                return;
+            }
+            lock.holders.remove(tid);
+            if (lock.holders.isEmpty()) {
+                stripe.locks.remove(r);
+            }
+            stripe.notifyAll();
+        }
+    }
+
+    /**
+     * @return the pages tid currently holds a lock on, in any mode; these
+     *   include every page it changed a tuple of
+     */
+    public Collection<PageId> lockedPages(TransactionId tid) {
+        Held held = lockSets.get(tid);
+        if (held == null) {
+            return Collections.emptyList();
+        }
+        List<PageId> pages = new ArrayList<>();
+        for (Resource r : held.modes.keySet()) {
+            if (r.isPage()) {
+                pages.add((PageId) r.id);
+            }
+        }
+        return pages;
+    }
+}
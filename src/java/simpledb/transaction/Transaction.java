@@ -7,19 +7,42 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * <p>
+ * A read-only transaction reads a consistent snapshot of the heap files, as
+ * of when it started, without taking locks (see
+ * {@link simpledb.storage.BufferPool#beginSnapshot}).  It writes no log
+ * records and may not change any page.
  */
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true for a transaction that only reads, from a snapshot
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+    }
+
+    /** @return true if this transaction reads from a snapshot and writes nothing */
+    public boolean isReadOnly() {
+        return readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -43,8 +66,24 @@ public class Transaction {
 
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
+        // an interrupted thread would close the channels of the log and the
+        // tables, which all threads share, at its first write
+        boolean interrupted = Thread.interrupted();
+        try {
+            complete(abort);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-        if (started) {
+    private void complete(boolean abort) throws IOException {
+        if (started && readOnly) {
+            // nothing was logged or changed; end the snapshot
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
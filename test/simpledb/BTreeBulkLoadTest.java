@@ -0,0 +1,153 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Building a B+ tree bottom-up from an unsorted table.
+ */
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 20000;
+
+	private List<List<Integer>> tuples;
+	private HeapFile table;
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<>();
+		table = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		tid = new TransactionId();
+	}
+
+	/**
+	 * Check the keys come out of the tree in order, and that every leaf but
+	 * a root leaf is at least half full and at most as full as asked.
+	 */
+	private void checkTree(double fillFactor) throws Exception {
+		List<Integer> keys = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			keys.add(t.get(0));
+		}
+		keys.sort(Comparator.naturalOrder());
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(Integer key : keys) {
+			assertTrue(it.hasNext());
+			assertEquals(key.intValue(), ((IntField) it.next().getField(0)).getValue());
+		}
+		assertFalse(it.hasNext());
+		it.close();
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		int leaves = 0;
+		while(pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			assertTrue(leaf.getNumTuples() >= leaf.getMaxTuples() / 2);
+			assertTrue(leaf.getNumTuples() <= (int) (fillFactor * leaf.getMaxTuples()));
+			pid = leaf.getRightSiblingId();
+			leaves++;
+		}
+		// the leaves come first in the file, followed by the pages above them
+		assertTrue(bf.numPages() > leaves);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	@Test
+	public void loadsTableInKeyOrder() throws Exception {
+		assertEquals(ROWS, bf.bulkLoad(tid, table.iterator(tid), 1.0));
+		checkTree(1.0);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * With runs of two pages the sort spills many runs and merges them.
+	 */
+	@Test
+	public void mergesSortedRuns() throws Exception {
+		assertEquals(ROWS, new BTreeBulkLoader(bf, 0.75, 2).load(table.iterator(tid)));
+		checkTree(0.75);
+
+		// and the tree can be searched
+		for(int i = 0; i < 100; i++) {
+			int key = tuples.get(i * (ROWS / 100)).get(0);
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+			it.open();
+			assertTrue(it.hasNext());
+			assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+			it.close();
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Pages loaded less than full have room for inserts without splitting.
+	 */
+	@Test
+	public void insertsAfterLoad() throws Exception {
+		bf.bulkLoad(tid, table.iterator(tid), 0.75);
+		Database.getBufferPool().transactionComplete(tid);
+
+		TransactionId writer = new TransactionId();
+		Tuple t = BTreeUtility.getBTreeTuple(new int[] {BTreeUtility.MAX_RAND_VALUE / 2, -1});
+		Database.getBufferPool().insertTuple(writer, bf.getId(), t);
+		DbFileIterator it = bf.indexIterator(writer, new IndexPredicate(Op.EQUALS, t.getField(0)));
+		it.open();
+		boolean found = false;
+		while(it.hasNext()) {
+			found |= ((IntField) it.next().getField(1)).getValue() == -1;
+		}
+		it.close();
+		assertTrue(found);
+		Database.getBufferPool().transactionComplete(writer);
+	}
+
+	@Test(expected = DbException.class)
+	public void refusesTreeWithTuples() throws Exception {
+		BTreeFile full = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+		full.bulkLoad(tid, table.iterator(tid), 1.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesLowFillFactor() throws Exception {
+		bf.bulkLoad(tid, table.iterator(tid), 0.25);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -10,6 +10,8 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
@@ -321,6 +323,76 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * A page of a tree keyed on strings, with a long prefix shared by all keys
+	 */
+	private BTreeInternalPage fillStringPage(BTreePageId spid) throws Exception {
+		Database.getCatalog().addTable(new SkeletonFile(spid.getTableId(),
+				new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE})), SystemTestUtil.getUUID());
+		BTreeInternalPage page = new BTreeInternalPage(spid, BTreeInternalPage.createEmptyPageData(), 0);
+		int i = 0;
+		while (page.getNumEmptySlots() > 0) {
+			page.insertEntry(new BTreeEntry(new StringField(String.format("http://example.com/items/%06d", i), Type.STRING_LEN),
+					new BTreePageId(spid.getTableId(), i + 1, BTreePageId.LEAF),
+					new BTreePageId(spid.getTableId(), i + 2, BTreePageId.LEAF)));
+			i++;
+		}
+		return page;
+	}
+
+	/**
+	 * String keys with a shared prefix take a few bytes each, so a page holds
+	 * many more of them than of the longest keys.
+	 */
+	@Test public void stringKeysArePrefixCompressed() throws Exception {
+		BTreePageId spid = new BTreePageId(-2, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = fillStringPage(spid);
+		assertTrue(page.getNumEntries() > 10 * page.getMaxEntries());
+
+		try {
+			page.insertEntry(new BTreeEntry(new StringField("zzz", Type.STRING_LEN),
+					new BTreePageId(-2, page.getNumEntries() + 1, BTreePageId.LEAF),
+					new BTreePageId(-2, 100000, BTreePageId.LEAF)));
+			throw new Exception("page should be full; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+
+		// the page reads back the same
+		BTreeInternalPage copy = new BTreeInternalPage(spid, page.getPageData(), 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		Iterator<BTreeEntry> it2 = copy.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			BTreeEntry e2 = it2.next();
+			assertEquals(e.getKey(), e2.getKey());
+			assertEquals(e.getLeftChild(), e2.getLeftChild());
+			assertEquals(e.getRightChild(), e2.getRightChild());
+		}
+		assertFalse(it2.hasNext());
+		assertTrue(Arrays.equals(page.getPageData(), copy.getPageData()));
+	}
+
+	/**
+	 * Deleting from a full page of string keys leaves room for the longest key.
+	 */
+	@Test public void stringKeysDeleteMakesRoom() throws Exception {
+		BTreePageId spid = new BTreePageId(-3, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = fillStringPage(spid);
+		int n = page.getNumEntries();
+		BTreeEntry last = page.reverseIterator().next();
+		page.deleteKeyAndRightChild(last);
+		assertEquals(n - 1, page.getNumEntries());
+		assertTrue(page.getNumEmptySlots() > 0);
+
+		char[] longest = new char[Type.STRING_LEN];
+		Arrays.fill(longest, 'z');
+		page.insertEntry(new BTreeEntry(new StringField(new String(longest), Type.STRING_LEN),
+				last.getLeftChild(), last.getRightChild()));
+		BTreeInternalPage copy = new BTreeInternalPage(spid, page.getPageData(), 0);
+		assertEquals(new String(longest), ((StringField) copy.reverseIterator().next().getKey()).getValue());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
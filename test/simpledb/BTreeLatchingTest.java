@@ -0,0 +1,152 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Descents through a B+ tree latch the internal nodes instead of locking
+ * them, so they do not get in the way of transactions that change them.
+ */
+public class BTreeLatchingTest extends SimpleDbTestBase {
+
+	private BTreeFile bf;
+	private BTreePageId rootPtrId;
+
+	@Before
+	public void setUp() throws Exception {
+		// a root with about 30 leaf pages below it
+		bf = BTreeUtility.createRandomBTreeFile(2, 15000, null, null, 0);
+		rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+	}
+
+	private BTreeInternalPage root() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(null, rootPtrId, Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		return (BTreeInternalPage) Database.getBufferPool().getPage(null, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * A point lookup locks the leaf page it reads, and nothing above it.
+	 */
+	@Test
+	public void lookupLocksOnlyTheLeaf() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeEntry e = root().iterator().next();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, e.getKey()));
+		it.open();
+		assertTrue(it.hasNext());
+		Tuple t = it.next();
+		it.close();
+
+		PageId leaf = t.getRecordId().getPageId();
+		assertTrue(Database.getBufferPool().holdsLock(tid, leaf));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		assertFalse(Database.getBufferPool().holdsLock(tid, root().getId()));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A transaction holding an exclusive lock on the root does not keep
+	 * others from descending past it to their leaves.
+	 */
+	@Test(timeout = 10000)
+	public void descentIgnoresLocksOnInternalNodes() throws Exception {
+		TransactionId writer = new TransactionId();
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(writer,
+				root().getId(), Permissions.READ_WRITE);
+		Iterator<BTreeEntry> entries = root.iterator();
+		entries.next();
+		BTreeEntry e = entries.next();
+
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = bf.indexIterator(reader, new IndexPredicate(Op.GREATER_THAN_OR_EQ, e.getKey()));
+		it.open();
+		assertTrue(it.hasNext());
+		assertTrue(((IntField) it.next().getField(bf.keyField())).getValue() >= ((IntField) e.getKey()).getValue());
+		it.close();
+
+		Database.getBufferPool().transactionComplete(reader);
+		Database.getBufferPool().transactionComplete(writer);
+	}
+
+	/**
+	 * Lookups in a tree that nobody changes never latch.
+	 */
+	@Test
+	public void quietLookupsStayOptimistic() throws Exception {
+		TransactionId tid = new TransactionId();
+		Iterator<BTreeEntry> entries = root().iterator();
+		while(entries.hasNext()) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, entries.next().getKey()));
+			it.open();
+			assertTrue(it.hasNext());
+			it.close();
+		}
+		assertEquals(0, bf.getOptimisticFallbacks());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A lookup whose leaf is locked by a writer falls back to the latched
+	 * descent, waits for the lock without holding latches, and finds the
+	 * leaf once the writer is done.
+	 */
+	@Test(timeout = 10000)
+	public void lockedLeafFallsBack() throws Exception {
+		Iterator<BTreeEntry> entries = root().iterator();
+		BTreeEntry e = entries.next();
+		BTreeEntry next = entries.next();
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().getPage(writer, e.getLeftChild(), Permissions.READ_WRITE);
+
+		TransactionId reader = new TransactionId();
+		Thread lookup = new Thread(() -> {
+			try {
+				DbFileIterator it = bf.indexIterator(reader, new IndexPredicate(Op.LESS_THAN, e.getKey()));
+				it.open();
+				it.close();
+			} catch (Exception ex) {
+				throw new RuntimeException(ex);
+			}
+		});
+		lookup.start();
+		Thread.sleep(100);
+		assertEquals(1, bf.getOptimisticFallbacks());
+		// nobody is latching: another lookup elsewhere goes through
+		TransactionId other = new TransactionId();
+		DbFileIterator it = bf.indexIterator(other, new IndexPredicate(Op.EQUALS, next.getKey()));
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+
+		Database.getBufferPool().transactionComplete(writer);
+		lookup.join();
+		assertTrue(Database.getBufferPool().holdsLock(reader, e.getLeftChild()));
+		Database.getBufferPool().transactionComplete(reader);
+		Database.getBufferPool().transactionComplete(other);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchingTest.class);
+	}
+}
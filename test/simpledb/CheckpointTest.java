@@ -0,0 +1,149 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fuzzy checkpoints, the background flusher and log truncation.
+ */
+public class CheckpointTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = new File("simple1.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lsn").delete();
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, 0}));
+    }
+
+    private int count(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int n = 0;
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v) {
+                n++;
+            }
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * A checkpoint does not wait for the buffer pool lock.
+     */
+    @Test public void checkpointDoesNotLockBufferPool() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        Thread checkpoint = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        synchronized (Database.getBufferPool()) {
+            checkpoint.start();
+            checkpoint.join(5000);
+            assertFalse(checkpoint.isAlive());
+        }
+        t.commit();
+    }
+
+    /**
+     * The pages dirty at a checkpoint are written out in the background.
+     */
+    @Test public void flusherWritesDirtyPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        int emptyOnDisk = ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getBufferPool().awaitBackgroundFlush(5000));
+        assertEquals(emptyOnDisk - 1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+        t.commit();
+        assertEquals(1, count(1));
+    }
+
+    /**
+     * Recovery from a fuzzy checkpoint keeps a winner that spans it and
+     * undoes a loser whose changes were written out.
+     */
+    @Test public void recoverFromFuzzyCheckpoint() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getBufferPool().awaitBackgroundFlush(5000));
+        insert(t1, 2);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 3);
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getBufferPool().awaitBackgroundFlush(5000));
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(1, Database.getLogFile().getUndoneRecords());
+        assertEquals(1, count(1));
+        assertEquals(1, count(2));
+        assertEquals(0, count(3));
+    }
+
+    /**
+     * Without active transactions, a checkpoint trims the log up to itself.
+     */
+    @Test public void truncateToCheckpoint() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insert(t, i);
+            t.commit();
+        }
+        long before = Database.getLogFile().getLogSize();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().getLogSize() < before / 10);
+        assertEquals(1, count(7));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
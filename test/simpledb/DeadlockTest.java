@@ -7,13 +7,19 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -219,6 +225,55 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A waiter interrupted from outside aborts; the abort rolls back what it
+   * wrote without closing the table's file for everyone else.
+   */
+  @Test public void testInterruptedWaiter() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    Tuple tup = Utility.getHeapTuple(7, 2);
+    bp.insertTuple(t.getId(), empty.getId(), tup);
+    // logged and written, so the abort writes to the log and the file
+    bp.flushPages(t.getId());
+    PageId other = tup.getRecordId().getPageId().equals(p0) ? p1 : p0;
+    bp.getPage(tid1, other, Permissions.READ_WRITE);
+
+    Throwable[] error = new Throwable[1];
+    boolean[] stillInterrupted = new boolean[1];
+    Thread waiter = new Thread(() -> {
+      try {
+        bp.getPage(t.getId(), other, Permissions.READ_WRITE);
+      } catch (TransactionAbortedException e) {
+        try {
+          t.transactionComplete(true);
+          stillInterrupted[0] = Thread.currentThread().isInterrupted();
+        } catch (Throwable e2) {
+          error[0] = e2;
+        }
+      } catch (Throwable e) {
+        error[0] = e;
+      }
+    });
+    waiter.start();
+    Thread.sleep(POLL_INTERVAL);
+    waiter.interrupt();
+    waiter.join();
+
+    assertNull(error[0]);
+    assertTrue(stillInterrupted[0]);
+    bp.transactionComplete(tid1);
+    // the insert was rolled back on disk
+    int n = 0;
+    for (int pgNo = 0; pgNo < empty.numPages(); pgNo++) {
+      HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgNo));
+      for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+        n++;
+      }
+    }
+    assertEquals(1025, n);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,111 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockEvictionPolicy;
+import simpledb.storage.EvictionPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LruKEvictionPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.TwoQueueEvictionPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy(3);
+        policy.pageAdmitted(page(0));
+        policy.pageAdmitted(page(1));
+        policy.pageAdmitted(page(2));
+
+        // first sweep clears all reference bits, so page 0 goes first
+        assertEquals(page(0), policy.chooseVictim(pid -> true));
+        policy.pageEvicted(page(0));
+
+        policy.pageAdmitted(page(3));
+        policy.pageAccessed(page(1));
+        assertEquals(page(2), policy.chooseVictim(pid -> true));
+    }
+
+    /**
+     * LRU-2 evicts pages seen only once before pages seen twice.
+     */
+    @Test public void lruKPrefersSingleReference() {
+        EvictionPolicy policy = new LruKEvictionPolicy(2);
+        policy.pageAdmitted(page(0));
+        policy.pageAccessed(page(0));
+        policy.pageAdmitted(page(1));
+        policy.pageAdmitted(page(2));
+
+        assertEquals(page(1), policy.chooseVictim(pid -> true));
+        assertEquals(page(2), policy.chooseVictim(pid -> !pid.equals(page(1))));
+    }
+
+    /**
+     * A scan through 2Q never displaces a page in the main queue.
+     */
+    @Test public void twoQueueScanResistance() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(8);
+
+        // page 0 is read, evicted, then read again: it is promoted to Am
+        policy.pageAdmitted(page(0));
+        assertEquals(page(0), policy.chooseVictim(pid -> true));
+        policy.pageEvicted(page(0));
+        policy.pageAdmitted(page(0));
+
+        // fill the rest of the pool, then keep scanning
+        for (int i = 1; i < 8; i++) {
+            policy.pageAdmitted(page(i));
+        }
+        for (int i = 8; i < 100; i++) {
+            policy.pageAdmitted(page(i));
+            PageId victim = policy.chooseVictim(pid -> true);
+            assertNotEquals(page(0), victim);
+            policy.pageEvicted(victim);
+        }
+    }
+
+    /**
+     * Policies honor the evictable predicate and return null when nothing
+     * can be evicted.
+     */
+    @Test public void noEvictablePage() {
+        EvictionPolicy[] policies = {
+                new ClockEvictionPolicy(2), new LruKEvictionPolicy(2), new TwoQueueEvictionPolicy(2) };
+        for (EvictionPolicy policy : policies) {
+            policy.pageAdmitted(page(0));
+            policy.pageAdmitted(page(1));
+            assertNull(policy.getName(), policy.chooseVictim(pid -> false));
+            assertEquals(policy.getName(), page(1), policy.chooseVictim(pid -> pid.equals(page(1))));
+            policy.pageDiscarded(page(1));
+            assertNull(policy.getName(), policy.chooseVictim(pid -> pid.equals(page(1))));
+        }
+    }
+
+    /**
+     * EvictionPolicy.forName() understands the configured names.
+     */
+    @Test public void forName() {
+        assertEquals("clock", EvictionPolicy.forName(null, 4).getName());
+        assertEquals("lru-2", EvictionPolicy.forName("lru-k", 4).getName());
+        assertEquals("2q", EvictionPolicy.forName("2Q", 4).getName());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    // single int tuples: 992 slots on a 4096 byte page
+    private static final int SLOTS = 992;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void createFile() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(1, 5 * SLOTS, null, new ArrayList<>());
+        tid = new TransactionId();
+    }
+
+    @After public void deleteSideFile() {
+        new File(hf.getFile().getPath() + ".fsm").delete();
+        new File(hf.getFile().getPath() + ".lsn").delete();
+    }
+
+    private Tuple tuple(int v) {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(v));
+        return t;
+    }
+
+    /**
+     * Inserting into a file of full pages goes straight to a new page,
+     * without reading the full pages into the buffer pool.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        Database.getBufferPool().getStats().reset();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(1));
+        assertEquals(5, hf.numPages() - 1);
+        assertEquals(1, Database.getBufferPool().getStats().getMisses());
+    }
+
+    /**
+     * Freed slots are reused, lowest page first, and bulk inserts fill pages in order.
+     */
+    @Test public void reusesFreedSlotsInOrder() throws Exception {
+        List<Tuple> inserted = new ArrayList<>();
+        for (int i = 0; i < SLOTS + 10; i++) {
+            Tuple t = tuple(i);
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            inserted.add(t);
+        }
+        assertEquals(5, inserted.get(0).getRecordId().getPageId().getPageNumber());
+        assertEquals(5, inserted.get(SLOTS - 1).getRecordId().getPageId().getPageNumber());
+        assertEquals(6, inserted.get(SLOTS).getRecordId().getPageId().getPageNumber());
+
+        Database.getBufferPool().deleteTuple(tid, inserted.get(3));
+        Tuple t = tuple(-1);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(5, t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t = tuple(-2));
+        assertEquals(6, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * The map is saved next to the heap file and used when the file is opened again.
+     */
+    @Test public void persisted() throws Exception {
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(1));
+        Database.getBufferPool().flushAllPages();
+        assertTrue(new File(hf.getFile().getPath() + ".fsm").exists());
+
+        Database.reset();
+        HeapFile reopened = Utility.openHeapFile(1, hf.getFile());
+        Tuple t = tuple(2);
+        Database.getBufferPool().insertTuple(tid, reopened.getId(), t);
+        assertEquals(5, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, Database.getBufferPool().getStats().getMisses());
+    }
+
+    /**
+     * The side files of a heap file that was deleted are dropped when a new
+     * file of the same name is opened.
+     */
+    @Test public void sideFilesOfEarlierFileDropped() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(1));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        hf.sync();
+        File fsm = new File(hf.getFile().getPath() + ".fsm");
+        File lsn = new File(hf.getFile().getPath() + ".lsn");
+        assertTrue(fsm.exists());
+        assertTrue(lsn.exists());
+
+        Database.reset();
+        assertTrue(hf.getFile().delete());
+        new HeapFile(hf.getFile(), hf.getTupleDesc());
+        assertFalse(fsm.exists());
+        assertFalse(lsn.exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    // BEGIN and COMMIT records: type, tid, start offset
+    private static final int RECORD_SIZE = 4 + 8 + 8;
+
+    private File f;
+    private LogFile log;
+
+    @Before public void createLog() throws Exception {
+        f = File.createTempFile("grouplog", null);
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    @After public void deleteLog() {
+        File[] files = f.getParentFile().listFiles((dir, name) -> name.startsWith(f.getName()));
+        if (files != null) {
+            for (File g : files) {
+                g.delete();
+            }
+        }
+    }
+
+    /**
+     * A single commit forces the log once and is on disk when logCommit returns.
+     */
+    @Test public void singleCommit() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        assertEquals(1, log.getCommitCount());
+        assertEquals(1, log.getForceCount());
+        assertEquals(2 * RECORD_SIZE, log.getLogSize());
+    }
+
+    /**
+     * Concurrent committers share forces, and every commit record is written.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final int n = 16;
+        log.setGroupCommit(20000, n);
+        CyclicBarrier start = new CyclicBarrier(n);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    start.await();
+                    log.logCommit(tid);
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(errors.isEmpty());
+        assertEquals(n, log.getCommitCount());
+        assertTrue(log.getForceCount() < n);
+        assertTrue(log.getCommitsPerForce() > 1);
+        assertEquals(2 * n * RECORD_SIZE, log.getLogSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
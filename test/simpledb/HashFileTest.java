@@ -0,0 +1,326 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.HashFile;
+import simpledb.index.HashHeaderPage;
+import simpledb.index.HashPageId;
+import simpledb.index.HashScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Inserts, lookups, rollback and recovery on a linear hash file.
+ */
+public class HashFileTest extends SimpleDbTestBase {
+
+	// small pages, so that buckets overflow and split after a few tuples
+	private static final int PAGE_SIZE = 256;
+	// enough to hold every page a test transaction dirties
+	private static final int POOL_PAGES = 1000;
+
+	private File file;
+	private HashFile hf;
+
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(PAGE_SIZE);
+		reset();
+		file = new File("simplehash.db");
+		file.delete();
+		new File(file.getPath() + ".lsn").delete();
+		open();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		new File(file.getPath() + ".lsn").delete();
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Start with an empty buffer pool that only writes pages when asked to.
+	 */
+	private void reset() {
+		Database.reset();
+		Database.resetBufferPool(POOL_PAGES).setCleanerDirtyRatio(1);
+	}
+
+	private void open() {
+		hf = new HashFile(file.getAbsoluteFile(), 0, Utility.getTupleDesc(2, "h"));
+		Database.getCatalog().addTable(hf, "hash");
+	}
+
+	/**
+	 * Restart with an empty buffer pool and run recovery.
+	 */
+	private void crash() throws Exception {
+		reset();
+		open();
+		Database.getLogFile().recover();
+	}
+
+	private void insert(TransactionId tid, int key, int value) throws Exception {
+		Tuple t = new Tuple(hf.getTupleDesc());
+		t.setField(0, new IntField(key));
+		t.setField(1, new IntField(value));
+		Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+	}
+
+	private List<Tuple> lookup(TransactionId tid, Op op, int key) throws Exception {
+		List<Tuple> result = new ArrayList<>();
+		DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(op, new IntField(key)));
+		it.open();
+		while(it.hasNext()) {
+			result.add(it.next());
+		}
+		it.close();
+		return result;
+	}
+
+	private int count(Op op, int key) throws Exception {
+		Transaction t = new Transaction();
+		t.start();
+		int n = lookup(t.getId(), op, key).size();
+		t.commit();
+		return n;
+	}
+
+	@Test
+	public void insertSplitsBucketsAndFindsKeys() throws Exception {
+		Transaction t = new Transaction();
+		t.start();
+		for(int i = 0; i < 2000; i++) {
+			insert(t.getId(), i % 300, i);
+		}
+		// many more tuples of one key than a page holds: its chain never splits apart
+		for(int i = 0; i < 100; i++) {
+			insert(t.getId(), 1000, i);
+		}
+		t.commit();
+		Database.getBufferPool().flushAllPages();
+
+		assertTrue(hf.numPages() > 1 + 4 * HashHeaderPage.INITIAL_BUCKETS);
+		for(int key = 0; key < 300; key += 7) {
+			assertEquals(key < 200 ? 7 : 6, count(Op.EQUALS, key));
+		}
+		assertEquals(100, count(Op.EQUALS, 1000));
+		assertEquals(0, count(Op.EQUALS, 500));
+		// other predicates scan the whole file
+		assertEquals(99 * 6 + 100, count(Op.GREATER_THAN, 200));
+
+		t = new Transaction();
+		t.start();
+		for(Tuple tup : lookup(t.getId(), Op.EQUALS, 42)) {
+			assertEquals(42, ((IntField) tup.getField(1)).getValue() % 300);
+			assertNotNull(tup.getRecordId());
+		}
+		int all = 0;
+		DbFileIterator it = hf.iterator(t.getId());
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			all++;
+		}
+		it.close();
+		t.commit();
+		assertEquals(2100, all);
+	}
+
+	@Test
+	public void deleteAndAbort() throws Exception {
+		Transaction t = new Transaction();
+		t.start();
+		for(int i = 0; i < 600; i++) {
+			insert(t.getId(), i % 50, i);
+		}
+		t.commit();
+
+		// deletes and inserts that split buckets, all rolled back
+		t = new Transaction();
+		t.start();
+		for(Tuple tup : lookup(t.getId(), Op.EQUALS, 7)) {
+			Database.getBufferPool().deleteTuple(t.getId(), tup);
+		}
+		assertEquals(0, lookup(t.getId(), Op.EQUALS, 7).size());
+		for(int i = 0; i < 600; i++) {
+			insert(t.getId(), 7, i);
+		}
+		Database.getBufferPool().flushAllPages();
+		t.abort();
+		assertEquals(12, count(Op.EQUALS, 7));
+		assertEquals(12, count(Op.EQUALS, 8));
+
+		t = new Transaction();
+		t.start();
+		for(Tuple tup : lookup(t.getId(), Op.EQUALS, 7)) {
+			Database.getBufferPool().deleteTuple(t.getId(), tup);
+		}
+		t.commit();
+		assertEquals(0, count(Op.EQUALS, 7));
+		assertEquals(12, count(Op.EQUALS, 8));
+	}
+
+	@Test
+	public void committedSurvivesCrash() throws Exception {
+		Transaction t1 = new Transaction();
+		t1.start();
+		for(int i = 0; i < 800; i++) {
+			insert(t1.getId(), i % 100, i);
+		}
+		t1.commit();
+
+		// a loser that split buckets and had its pages stolen
+		Transaction t2 = new Transaction();
+		t2.start();
+		for(int i = 0; i < 800; i++) {
+			insert(t2.getId(), 100 + i % 100, i);
+		}
+		Database.getBufferPool().flushAllPages();
+		crash();
+
+		for(int key = 0; key < 200; key += 9) {
+			assertEquals(key < 100 ? 8 : 0, count(Op.EQUALS, key));
+		}
+
+		// the table keeps working after recovery
+		Transaction t3 = new Transaction();
+		t3.start();
+		for(int i = 0; i < 800; i++) {
+			insert(t3.getId(), 100 + i % 100, i);
+		}
+		t3.commit();
+		crash();
+		assertEquals(8, count(Op.EQUALS, 3));
+		assertEquals(8, count(Op.EQUALS, 103));
+	}
+
+	@Test
+	public void insertKeepsNoHeaderLock() throws Exception {
+		Transaction t = new Transaction();
+		t.start();
+		insert(t.getId(), 1, 1);
+		// the bucket had room, so other inserters may still split buckets
+		assertFalse(Database.getBufferPool().holdsLock(t.getId(), HashPageId.headerId(hf.getId())));
+		t.commit();
+		assertEquals(1, count(Op.EQUALS, 1));
+	}
+
+	@Test
+	public void concurrentOverflowingInserts() throws Exception {
+		// each inserter overflows buckets and splits them many times
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+		for(int n = 0; n < 4; n++) {
+			final int base = n * 1000;
+			threads.add(new Thread(() -> {
+				try {
+					while(true) {
+						Transaction t = new Transaction();
+						t.start();
+						try {
+							for(int i = 0; i < 300; i++) {
+								insert(t.getId(), base + i % 100, i);
+							}
+							t.commit();
+							break;
+						} catch(TransactionAbortedException e) {
+							// deadlocked on bucket pages with another inserter
+							t.transactionComplete(true);
+						}
+					}
+				} catch(Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for(Thread th : threads) {
+			th.start();
+		}
+		for(Thread th : threads) {
+			th.join(60000);
+			assertFalse(th.isAlive());
+		}
+		assertEquals(Collections.emptyList(), errors);
+		for(int n = 0; n < 4; n++) {
+			assertEquals(3, count(Op.EQUALS, n * 1000 + 42));
+		}
+	}
+
+	@Test
+	public void plannerReadsBucket() throws Exception {
+		Transaction t = new Transaction();
+		t.start();
+		for(int i = 0; i < 600; i++) {
+			insert(t.getId(), i % 50, i);
+		}
+		t.commit();
+
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("hash", new TableStats(hf.getId(), 1000));
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.h0", Op.EQUALS, "7");
+		lp.addProjectField("t.h1", null);
+		TransactionId tid = new TransactionId();
+		PrintStream out = System.out;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(printed));
+		OpIterator plan;
+		try {
+			plan = lp.physicalPlan(tid, stats, false);
+		} finally {
+			System.setOut(out);
+		}
+		// the scan is only reported when explaining the plan
+		assertEquals("", printed.toString());
+		OpIterator leaf = plan;
+		while(leaf instanceof Operator) {
+			leaf = ((Operator) leaf).getChildren()[0];
+		}
+		assertTrue(leaf instanceof HashScan);
+		plan.open();
+		int n = 0;
+		while(plan.hasNext()) {
+			assertEquals(7, ((IntField) plan.next().getField(0)).getValue() % 50);
+			n++;
+		}
+		plan.close();
+		assertEquals(12, n);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
@@ -13,6 +13,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -123,6 +124,20 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getPageData(): tuples that were never accessed
+     * are written back unchanged, and so are those that were.
+     */
+    @Test public void getPageDataRoundTrip() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+
+        Iterator<Tuple> it = page.iterator();
+        it.next().getField(1);
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+        assertArrayEquals(EXAMPLE_DATA, page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,205 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Reading the fields a query refers to from the pages of a B+ tree only.
+ */
+public class IndexOnlyScanTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 3000;
+	private static final int MAX_VALUE = 1000;
+
+	private List<List<Integer>> tuples;
+	private HeapFile table;
+	private SecondaryIndex index;
+	private Map<String, TableStats> stats;
+
+	private static File tempFile() throws Exception {
+		File f = File.createTempFile("covering", ".dat");
+		f.deleteOnExit();
+		return f;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		// tuples wider than index entries, so the index has fewer pages
+		tuples = new ArrayList<>();
+		table = SystemTestUtil.createRandomHeapFile(5, ROWS, MAX_VALUE, null, tuples, "c");
+		File f = tempFile();
+		f.delete();
+		TransactionId tid = new TransactionId();
+		index = SecondaryIndex.create(tid, f, table.getId(), 0);
+		Database.getBufferPool().transactionComplete(tid);
+		stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(table.getId()), new TableStats(table.getId(), 1000));
+	}
+
+	private static OpIterator leaf(OpIterator plan) {
+		while(plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	private static List<Tuple> run(OpIterator plan) throws Exception {
+		List<Tuple> result = new ArrayList<>();
+		plan.open();
+		while(plan.hasNext()) {
+			result.add(plan.next());
+		}
+		plan.close();
+		return result;
+	}
+
+	@Test
+	public void aggregatesReadIndexOnly() throws Exception {
+		int max = Integer.MIN_VALUE;
+		int below = 0;
+		for(List<Integer> t : tuples) {
+			max = Math.max(max, t.get(0));
+			below += t.get(0) < MAX_VALUE / 3 ? 1 : 0;
+		}
+		TransactionId tid = new TransactionId();
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addAggregate("MAX", "t.c0", null);
+		lp.addProjectField("t.c0", "MAX");
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(leaf(plan) instanceof IndexOnlyScan);
+		assertEquals(1, leaf(plan).getTupleDesc().numFields());
+		List<Tuple> result = run(plan);
+		assertEquals(1, result.size());
+		assertEquals(max, ((IntField) result.get(0).getField(0)).getValue());
+
+		lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c0", Op.LESS_THAN, Integer.toString(MAX_VALUE / 3));
+		lp.addAggregate("COUNT", "t.c0", null);
+		lp.addProjectField("t.c0", "COUNT");
+		plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(leaf(plan) instanceof IndexOnlyScan);
+		result = run(plan);
+		assertEquals(below, ((IntField) result.get(0).getField(0)).getValue());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void uncoveredFieldReadsTable() throws Exception {
+		TransactionId tid = new TransactionId();
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c0", Op.EQUALS, Integer.toString(tuples.get(0).get(0)));
+		lp.addProjectField("t.c1", null);
+		assertTrue(leaf(lp.physicalPlan(tid, stats, false)) instanceof SecondaryIndexScan);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void plansQuietlyWithoutExplain() throws Exception {
+		TransactionId tid = new TransactionId();
+		LogicalPlan onlyIndex = new LogicalPlan();
+		onlyIndex.addScan(table.getId(), "t");
+		onlyIndex.addAggregate("MAX", "t.c0", null);
+		onlyIndex.addProjectField("t.c0", "MAX");
+		LogicalPlan throughIndex = new LogicalPlan();
+		throughIndex.addScan(table.getId(), "t");
+		throughIndex.addFilter("t.c0", Op.EQUALS, Integer.toString(tuples.get(0).get(0)));
+		throughIndex.addProjectField("t.c1", null);
+
+		PrintStream out = System.out;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(printed));
+		try {
+			assertTrue(leaf(onlyIndex.physicalPlan(tid, stats, false)) instanceof IndexOnlyScan);
+			assertTrue(leaf(throughIndex.physicalPlan(tid, stats, false)) instanceof SecondaryIndexScan);
+		} finally {
+			System.setOut(out);
+		}
+		assertEquals("", printed.toString());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void btreeTableReadsReferencedFields() throws Exception {
+		File f = tempFile();
+		BTreeFile bf = BTreeUtility.openBTreeFile(5, "c", f, 0);
+		TransactionId tid = new TransactionId();
+		bf.bulkLoad(tid, table.iterator(tid), 1.0);
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		int key = MAX_VALUE / 2;
+		OpIterator scan = new IndexOnlyScan(tid, bf.getId(), new int[] {3, 0}, "b",
+				new IndexPredicate(Op.GREATER_THAN, new IntField(key)));
+		assertEquals("b.c3", scan.getTupleDesc().getFieldName(0));
+		List<Tuple> result = run(scan);
+		int expected = 0;
+		for(List<Integer> t : tuples) {
+			expected += t.get(0) > key ? 1 : 0;
+		}
+		assertEquals(expected, result.size());
+		int last = key;
+		for(Tuple t : result) {
+			int value = ((IntField) t.getField(1)).getValue();
+			assertTrue(value > key && value >= last);
+			last = value;
+			assertNotNull(t.getRecordId());
+		}
+
+		String name = Database.getCatalog().getTableName(bf.getId());
+		stats.put(name, new TableStats(bf.getId(), 1000));
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "b");
+		lp.addFilter("b.c2", Op.GREATER_THAN, "0");
+		lp.addProjectField("b.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(leaf(plan) instanceof IndexOnlyScan);
+		assertEquals(2, leaf(plan).getTupleDesc().numFields());
+		expected = 0;
+		for(List<Integer> t : tuples) {
+			expected += t.get(2) > 0 ? 1 : 0;
+		}
+		assertEquals(expected, run(plan).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexOnlyScanTest.class);
+	}
+}
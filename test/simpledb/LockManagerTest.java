@@ -0,0 +1,259 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.DeadlockException;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager lm;
+    private TransactionId t1, t2;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * Shared locks are compatible; the only sharer can upgrade.
+     */
+    @Test public void sharedAndUpgrade() throws Exception {
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, p0));
+        assertTrue(lm.holdsLock(t2, p0));
+
+        lm.release(t2, p0);
+        assertFalse(lm.holdsLock(t2, p0));
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t1, p0));
+    }
+
+    /**
+     * The younger transaction aborts at once when it closes a cycle.
+     */
+    @Test public void youngerClosesCycle() throws Exception {
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t2, p1, Permissions.READ_WRITE);
+        Thread older = grab(t1, p1);
+        Thread.sleep(20);
+        try {
+            lm.acquire(t2, p0, Permissions.READ_ONLY);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            assertTrue(e.getCause() instanceof DeadlockException);
+        }
+        lm.releaseAll(t2);
+        older.join();
+        assertTrue(lm.holdsLock(t1, p1));
+        assertEquals(1, lm.getDeadlocks());
+    }
+
+    /**
+     * When the older transaction closes a cycle, the younger one is woken up
+     * and aborted, and the older one gets its lock once that releases.
+     */
+    @Test public void olderClosesCycle() throws Exception {
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+        // both want to upgrade
+        Thread younger = grab(t2, p0);
+        Thread.sleep(20);
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        younger.join();
+        assertTrue(lm.holdsLock(t1, p0));
+        assertFalse(lm.holdsLock(t2, p0));
+        assertEquals(1, lm.getDeadlocks());
+    }
+
+    /**
+     * Request an exclusive lock on another thread; if the transaction is
+     * aborted, release its locks like Transaction.transactionComplete would.
+     */
+    private Thread grab(TransactionId tid, PageId pid) {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, pid, Permissions.READ_WRITE);
+            } catch (TransactionAbortedException e) {
+                lm.releaseAll(tid);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /**
+     * A transaction waiting outside the lock table, e.g. for a latch, is the
+     * victim of a cycle through it even if it is the older one.
+     */
+    @Test public void outsideWaiterIsVictim() throws Exception {
+        lm.acquire(t1, p1, Permissions.READ_WRITE);
+        // t2 holds what t1 waits for outside the lock table
+        Thread younger = grab(t2, p1);
+        Thread.sleep(20);
+        try {
+            lm.waitOutside(t1, Collections.singleton(t2));
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            assertTrue(e.getCause() instanceof DeadlockException);
+        } finally {
+            lm.stopWaiting(t1);
+        }
+        lm.releaseAll(t1);
+        younger.join();
+        assertTrue(lm.holdsLock(t2, p1));
+        assertEquals(1, lm.getDeadlocks());
+    }
+
+    /**
+     * Waits outside the lock table only are ordered by their owners, so a
+     * cycle of them is out of date: nobody is aborted, and neither wait is
+     * told it may last, so a real one times out.
+     */
+    @Test public void outsideOnlyCycle() throws Exception {
+        assertFalse(lm.waitOutside(t1, Collections.singleton(t2)));
+        assertFalse(lm.waitOutside(t2, Collections.singleton(t1)));
+        assertFalse(lm.waitOutside(t1, Collections.singleton(t2)));
+        lm.stopWaiting(t1);
+        lm.stopWaiting(t2);
+        assertEquals(0, lm.getDeadlocks());
+    }
+
+    /**
+     * An outside wait is told when everyone it waits for is blocked too.
+     */
+    @Test public void outsideWaitOnBlockedHolder() throws Exception {
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        Thread blocked = grab(t2, p0);
+        Thread.sleep(20);
+        TransactionId t3 = new TransactionId();
+        assertTrue(lm.waitOutside(t3, Collections.singleton(t2)));
+        assertFalse(lm.waitOutside(t3, Collections.singleton(t1)));
+        // also through another outside wait
+        TransactionId t4 = new TransactionId();
+        assertTrue(lm.waitOutside(t3, Collections.singleton(t2)));
+        assertTrue(lm.waitOutside(t4, Collections.singleton(t3)));
+        lm.stopWaiting(t4);
+        lm.stopWaiting(t3);
+        lm.releaseAll(t1);
+        blocked.join();
+        assertTrue(lm.holdsLock(t2, p0));
+    }
+
+    /**
+     * releaseAll releases every lock of a transaction and wakes up waiters.
+     */
+    @Test public void releaseAllWakesWaiters() throws Exception {
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t1, p1, Permissions.READ_ONLY);
+        assertEquals(2, lm.lockedPages(t1).size());
+
+        Thread waiter = new Thread(() -> {
+            try {
+                lm.acquire(t2, p0, Permissions.READ_WRITE);
+            } catch (TransactionAbortedException e) {
+                // holdsLock below fails
+            }
+        });
+        waiter.start();
+        Thread.sleep(20);
+        lm.releaseAll(t1);
+        waiter.join();
+
+        assertTrue(lm.lockedPages(t1).isEmpty());
+        assertFalse(lm.holdsLock(t1, p1));
+        assertTrue(lm.holdsLock(t2, p0));
+    }
+
+    /**
+     * The compatibility of the hierarchical lock modes.
+     */
+    @Test public void modeCompatibility() {
+        LockManager.Mode IS = LockManager.Mode.IS, IX = LockManager.Mode.IX,
+                S = LockManager.Mode.S, SIX = LockManager.Mode.SIX, X = LockManager.Mode.X;
+        assertTrue(IX.isCompatibleWith(IX));
+        assertTrue(IS.isCompatibleWith(SIX));
+        assertTrue(S.isCompatibleWith(IS));
+        assertFalse(S.isCompatibleWith(IX));
+        assertFalse(SIX.isCompatibleWith(IX));
+        assertFalse(X.isCompatibleWith(IS));
+        assertEquals(SIX, S.join(IX));
+        assertTrue(X.covers(SIX));
+        assertFalse(S.covers(IX));
+    }
+
+    /**
+     * Two transactions lock different tuples of a page exclusively at the
+     * same time; the same tuple conflicts, and so does a page lock.
+     */
+    @Test public void tuplesOfOnePage() throws Exception {
+        RecordId r0 = new RecordId(p0, 0), r1 = new RecordId(p0, 1);
+        lm.acquireRecord(t1, r0, Permissions.READ_WRITE);
+        lm.acquireRecord(t2, r1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t1, r0));
+        assertTrue(lm.holdsLock(t2, r1));
+        assertEquals(LockManager.Mode.IX, lm.lockMode(t1, p0));
+
+        assertFalse(lm.tryAcquireRecord(t2, r0));
+        assertFalse(lm.holdsLock(t2, r0));
+
+        lm.releaseAll(t2);
+        Thread reader = new Thread(() -> {
+            try {
+                lm.acquire(t2, p0, Permissions.READ_ONLY);
+            } catch (TransactionAbortedException e) {
+                lm.releaseAll(t2);
+            }
+        });
+        reader.start();
+        Thread.sleep(20);
+        // the shared page lock waits for the exclusive tuple lock of t1
+        assertFalse(lm.holdsLock(t2, p0));
+        lm.releaseAll(t1);
+        reader.join();
+        assertTrue(lm.holdsLock(t2, p0));
+    }
+
+    /**
+     * Past the threshold, the tuple locks of a transaction on a page become
+     * one page lock.
+     */
+    @Test public void escalation() throws Exception {
+        lm = new LockManager(3);
+        for (int slot = 0; slot < 3; slot++) {
+            lm.acquireRecord(t1, new RecordId(p0, slot), Permissions.READ_ONLY);
+        }
+        assertEquals(0, lm.getEscalations());
+        lm.acquireRecord(t1, new RecordId(p0, 3), Permissions.READ_WRITE);
+        assertEquals(1, lm.getEscalations());
+        assertEquals(LockManager.Mode.X, lm.lockMode(t1, p0));
+        assertTrue(lm.holdsLock(t1, new RecordId(p0, 100)));
+        assertFalse(lm.tryAcquireRecord(t2, new RecordId(p0, 100)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
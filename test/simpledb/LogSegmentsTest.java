@@ -0,0 +1,173 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * A log in small segment files: records spanning segments, truncation by
+ * dropping and reusing segments, and archiving.
+ */
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File file;
+    private File archive;
+    private HeapFile hf;
+
+    private static void deleteLog() {
+        File[] logs = new File(".").listFiles((dir, name) -> name.startsWith("log."));
+        if (logs != null) {
+            for (File f : logs) {
+                f.delete();
+            }
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        deleteLog();
+        System.setProperty(LogFile.SEGMENT_SIZE_PROPERTY, String.valueOf(SEGMENT_SIZE));
+        Database.reset();
+        file = new File("simple1.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(LogFile.SEGMENT_SIZE_PROPERTY);
+        System.clearProperty(LogFile.ARCHIVE_DIR_PROPERTY);
+        Database.getLogFile().shutdown();
+        deleteLog();
+        file.delete();
+        new File(file.getPath() + ".lsn").delete();
+        if (archive != null) {
+            File[] archived = archive.listFiles();
+            if (archived != null) {
+                for (File f : archived) {
+                    f.delete();
+                }
+            }
+            archive.delete();
+        }
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, 0}));
+    }
+
+    private void commitInserts(int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insert(t, i);
+            t.commit();
+        }
+    }
+
+    private int count(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int n = 0;
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v) {
+                n++;
+            }
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * Truncation drops whole segments and reuses them, so the number of
+     * segment files stays bounded.
+     */
+    @Test public void truncationReusesSegments() throws Exception {
+        for (int round = 0; round < 5; round++) {
+            commitInserts(round * 20, round * 20 + 20);
+            assertTrue(Database.getLogFile().getLogSize() > SEGMENT_SIZE);
+            Database.getLogFile().logCheckpoint();
+            assertTrue(Database.getLogFile().getLogSize() < SEGMENT_SIZE);
+            // the segment in use, one the checkpoint may spill into, and the spares
+            assertTrue(Database.getLogFile().getSegmentFiles() <= 4);
+        }
+        assertEquals(1, count(42));
+    }
+
+    /**
+     * Recovery reads records across segment boundaries, and ignores the
+     * records that reused segments hold from before.
+     */
+    @Test public void recoverAcrossReusedSegments() throws Exception {
+        for (int round = 0; round < 3; round++) {
+            commitInserts(round * 20, round * 20 + 20);
+            Database.getLogFile().logCheckpoint();
+        }
+        commitInserts(100, 130);
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, 200);
+        insert(loser, 201);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        // both inserts went to the same page, logged by one record
+        assertEquals(1, Database.getLogFile().getUndoneRecords());
+        for (int v : new int[]{0, 59, 100, 129}) {
+            assertEquals(1, count(v));
+        }
+        assertEquals(0, count(200));
+        assertEquals(0, count(201));
+    }
+
+    /**
+     * Closed segments are copied to the archive directory before they are
+     * dropped.
+     */
+    @Test public void archiverCopiesClosedSegments() throws Exception {
+        archive = new File("log.archive");
+        System.setProperty(LogFile.ARCHIVE_DIR_PROPERTY, archive.getPath());
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+
+        commitInserts(0, 60);
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().awaitArchived(5000));
+        File first = new File(archive, "log.000000000000");
+        assertTrue(first.exists());
+        assertEquals(SEGMENT_SIZE, first.length());
+        try (DataInputStream in = new DataInputStream(new FileInputStream(first))) {
+            assertEquals(4, in.readInt()); // BEGIN_RECORD
+        }
+        File[] archived = archive.listFiles();
+        assertNotNull(archived);
+        assertTrue(archived.length > 1);
+        assertEquals(1, count(59));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class MemoryMappedHeapFileTest extends SimpleDbTestBase {
+
+    private final List<List<Integer>> tuples = new ArrayList<>();
+    private HeapFile hf;
+
+    @Before public void createFile() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(3, 2000, 1 << 16, null, tuples);
+        hf = new HeapFile(f, Utility.getTupleDesc(3), true);
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+    }
+
+    /**
+     * A scan of a memory-mapped file returns the same tuples as were encoded.
+     */
+    @Test public void scan() throws Exception {
+        assertTrue(hf.isMemoryMapped());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * The before image of a page read through the mapping is the data that
+     * was on disk when it was dirtied, even after the page is written back.
+     */
+    @Test public void beforeImageSurvivesWrite() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] onDisk = ((HeapPage) hf.readPage(pid)).getPageData();
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        TransactionId tid = new TransactionId();
+        page.markDirty(true, tid);
+        hf.writePage(page);
+
+        assertArrayEquals(onDisk, page.getBeforeImage().getPageData());
+        HeapPage reread = (HeapPage) hf.readPage(pid);
+        assertTrue(Arrays.equals(page.getPageData(), reread.getPageData()));
+    }
+
+    /**
+     * A tuple read through the mapping keeps its values when the page is
+     * rewritten on disk afterwards.
+     */
+    @Test public void tupleSurvivesRewrite() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        Tuple t = page.iterator().next();
+        int slot = t.getRecordId().getTupleNumber();
+        int value = ((IntField) page.getTuple(slot).getField(0)).getValue();
+        Tuple held = page.getTuple(slot);
+
+        HeapPage other = (HeapPage) hf.readPage(pid);
+        Tuple changed = new Tuple(hf.getTupleDesc());
+        changed.setField(0, new IntField(value + 1));
+        changed.setField(1, t.getField(1));
+        changed.setField(2, t.getField(2));
+        other.deleteTuple(other.getTuple(slot));
+        other.insertTuple(changed);
+        assertEquals(slot, changed.getRecordId().getTupleNumber());
+        hf.writePage(other);
+
+        assertEquals(value + 1, ((IntField) ((HeapPage) hf.readPage(pid)).getTuple(slot).getField(0)).getValue());
+        assertEquals(value, ((IntField) held.getField(0)).getValue());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MemoryMappedHeapFileTest.class);
+    }
+}
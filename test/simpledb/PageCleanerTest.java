@@ -0,0 +1,169 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * The background page cleaner of the BufferPool.
+ */
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 6;
+
+    private File file;
+    private HeapFile hf;
+    private int numTuples;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = new File("simple1.db");
+        file.delete();
+        int perPage = BufferPool.getPageSize() * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < PAGES * perPage; i++) {
+            List<Integer> t = new ArrayList<>();
+            t.add(i);
+            t.add(0);
+            tuples.add(t);
+        }
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        numTuples = tuples.size();
+        hf = Utility.openHeapFile(2, file);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lsn").delete();
+    }
+
+    /**
+     * Delete the first tuple of each of the given pages.
+     */
+    private void deleteFromPages(Transaction t, Set<Integer> pgNos, boolean awaitCleaner) throws Exception {
+        List<Tuple> victims = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            int pgNo = tup.getRecordId().getPageId().getPageNumber();
+            if (pgNos.contains(pgNo) && seen.add(pgNo)) {
+                victims.add(tup);
+            }
+        }
+        it.close();
+        for (Tuple tup : victims) {
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+            if (awaitCleaner) {
+                assertTrue(Database.getBufferPool().awaitBackgroundFlush(5000));
+            }
+        }
+    }
+
+    private int count() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int n = 0;
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    private static Set<Integer> pages(int... pgNos) {
+        Set<Integer> s = new HashSet<>();
+        for (int p : pgNos) {
+            s.add(p);
+        }
+        return s;
+    }
+
+    /**
+     * Adjacent dirty pages are written with one write and one log force.
+     */
+    @Test public void adjacentPagesShareOneWrite() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.setCleanerDirtyRatio(1);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, pages(0, 1, 2, 4, 5), false);
+
+        long forces = Database.getLogFile().getForceCount();
+        bp.getStats().reset();
+        bp.flushAllPagesInBackground();
+        assertTrue(bp.awaitBackgroundFlush(5000));
+        assertEquals(5, bp.getStats().getPagesCleaned());
+        assertEquals(2, bp.getStats().getCleanerWrites());
+        assertEquals(2, Database.getLogFile().getForceCount() - forces);
+        for (int pgNo : new int[]{0, 1, 2, 4, 5}) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+            assertEquals(1, p.getNumEmptySlots());
+        }
+        assertEquals(0, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 3))).getNumEmptySlots());
+        t.commit();
+        assertEquals(numTuples - 5, count());
+    }
+
+    /**
+     * A transaction can dirty more pages than fit in the pool, because the
+     * cleaner keeps clean victims around; aborting it still restores the
+     * pages the cleaner wrote.
+     */
+    @Test public void cleanerKeepsEvictionGoing() throws Exception {
+        Database.resetBufferPool(4);
+        BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, pages(0, 1, 2, 3, 4, 5), true);
+        assertTrue(bp.getStats().getPagesCleaned() > 0);
+        t.abort();
+        assertEquals(numTuples, count());
+    }
+
+    /**
+     * Recovery undoes the changes of a transaction whose pages the cleaner
+     * wrote before the crash.
+     */
+    @Test public void recoverCleanedLoser() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, pages(0, 1, 2, 3, 4, 5), false);
+        Database.getBufferPool().flushAllPagesInBackground();
+        assertTrue(Database.getBufferPool().awaitBackgroundFlush(5000));
+        assertEquals(1, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 3))).getNumEmptySlots());
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(numTuples, count());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
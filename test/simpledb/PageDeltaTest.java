@@ -0,0 +1,97 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeEntry;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    @Before public void addTable() {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Check that the delta between two versions of a page turns one into the
+     * other both ways, also after serialization, and that it is small.
+     */
+    private void checkDelta(Page before, Page after) throws Exception {
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        PageDelta delta = PageDelta.diff(after.getLayout(), b, a);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.serialize(new DataOutputStream(bytes));
+        assertTrue(bytes.size() < BufferPool.getPageSize() / 10);
+        delta = PageDelta.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        byte[] page = b.clone();
+        delta.redo(after.getLayout(), page);
+        assertArrayEquals(a, page);
+        // redo is idempotent
+        delta.redo(after.getLayout(), page);
+        assertArrayEquals(a, page);
+        delta.undo(after.getLayout(), page);
+        assertArrayEquals(b, page);
+        delta.inverse().redo(after.getLayout(), page = a.clone());
+        assertArrayEquals(b, page);
+    }
+
+    @Test public void heapPage() throws Exception {
+        HeapPageId pid = new HeapPageId(-1, -1);
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        after.deleteTuple(after.iterator().next());
+        after.insertTuple(Utility.getHeapTuple(new int[]{7, 8}));
+        after.insertTuple(Utility.getHeapTuple(new int[]{9, 10}));
+        checkDelta(before, after);
+        assertTrue(PageDelta.diff(before.getLayout(), before.getPageData(), before.getPageData()).isEmpty());
+    }
+
+    @Test public void leafPage() throws Exception {
+        BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.LEAF);
+        BTreeLeafPage before = new BTreeLeafPage(pid, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        BTreeLeafPage after = new BTreeLeafPage(pid, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        Iterator<Tuple> it = after.iterator();
+        after.deleteTuple(it.next());
+        after.deleteTuple(it.next());
+        after.setRightSiblingId(new BTreePageId(-1, 5, BTreePageId.LEAF));
+        checkDelta(before, after);
+    }
+
+    @Test public void internalPage() throws Exception {
+        BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.INTERNAL);
+        BTreeInternalPage before = new BTreeInternalPage(pid, BTreeInternalPageTest.EXAMPLE_DATA, 0);
+        BTreeInternalPage after = new BTreeInternalPage(pid, BTreeInternalPageTest.EXAMPLE_DATA, 0);
+        BTreeEntry e = after.iterator().next();
+        after.deleteKeyAndRightChild(e);
+        after.setParentId(new BTreePageId(-1, 3, BTreePageId.INTERNAL));
+        checkDelta(before, after);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
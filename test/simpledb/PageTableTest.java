@@ -0,0 +1,111 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.index.BTreePageId;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.PageTable;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PageTableTest extends SimpleDbTestBase {
+
+    /** Page stub that only carries its id. */
+    static class StubPage implements Page {
+        private final PageId pid;
+
+        StubPage(PageId pid) {
+            this.pid = pid;
+        }
+
+        public PageId getId() { return pid; }
+        public TransactionId isDirty() { return null; }
+        public void markDirty(boolean dirty, TransactionId tid) { }
+        public byte[] getPageData() { return new byte[0]; }
+        public Page getBeforeImage() { return this; }
+        public void setBeforeImage() { }
+        public long getLsn() { return 0; }
+        public void setLsn(long lsn) { }
+    }
+
+    private PageTable table;
+
+    @Before public void createTable() {
+        table = new PageTable();
+    }
+
+    /**
+     * Pages whose ids have the same hashCode are still kept apart.
+     */
+    @Test public void collidingHashCodes() {
+        // 31 * 0 + 31 == 31 * 1 + 0
+        HeapPageId a = new HeapPageId(0, 31);
+        HeapPageId b = new HeapPageId(1, 0);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        Page pa = new StubPage(a);
+        Page pb = new StubPage(b);
+        table.put(pa);
+        table.put(pb);
+        assertEquals(2, table.size());
+        assertSame(pa, table.get(a));
+        assertSame(pb, table.get(b));
+    }
+
+    /**
+     * Lookups by PageId only return pages with an equal id.
+     */
+    @Test public void categoryMismatch() {
+        BTreePageId leaf = new BTreePageId(7, 3, BTreePageId.LEAF);
+        BTreePageId internal = new BTreePageId(7, 3, BTreePageId.INTERNAL);
+        Page p = new StubPage(leaf);
+        table.put(p);
+        assertSame(p, table.get(leaf));
+        assertNull(table.get(internal));
+        assertTrue(table.contains(internal));
+        assertSame(p, table.remove(internal));
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * Random puts and removes agree with a HashMap.
+     */
+    @Test public void randomOperations() {
+        Random rand = new Random(830);
+        Map<PageId, Page> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            PageId pid = new HeapPageId(rand.nextInt(4) * 0x10000, rand.nextInt(500));
+            if (rand.nextInt(3) == 0) {
+                assertSame(expected.remove(pid), table.remove(pid));
+            } else {
+                Page p = new StubPage(pid);
+                assertSame(expected.put(pid, p), table.put(p));
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        assertEquals(expected.size(), table.pages().size());
+        for (Map.Entry<PageId, Page> e : expected.entrySet()) {
+            assertSame(e.getValue(), table.get(e.getKey()));
+        }
+        table.clear();
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTableTest.class);
+    }
+}
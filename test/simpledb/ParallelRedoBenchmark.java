@@ -0,0 +1,41 @@
+package simpledb;
+
+import simpledb.storage.LogFile;
+
+/**
+ * Times redo spread over worker threads against redo on one thread, with the
+ * workload of {@link ParallelRedoTest}: the log of the crash is recovered
+ * again and again, with every page write lost each time.  Run it with
+ * <tt>ant benchmark</tt>; the number of transactions, rounds and redo threads
+ * can be set with the system properties
+ * simpledb.ParallelRedoBenchmark.transactions (default 2000),
+ * simpledb.ParallelRedoBenchmark.rounds (default 5) and
+ * simpledb.ParallelRedoBenchmark.threads (default: one per core, at least 4).
+ */
+public class ParallelRedoBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int transactions = Integer.getInteger("simpledb.ParallelRedoBenchmark.transactions", 2000);
+        int rounds = Integer.getInteger("simpledb.ParallelRedoBenchmark.rounds", 5);
+        int threads = Integer.getInteger("simpledb.ParallelRedoBenchmark.threads",
+                Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+        ParallelRedoTest workload = new ParallelRedoTest(transactions);
+        workload.setUp();
+        try {
+            workload.runWorkload();
+            // the first round warms up the JIT and the file cache
+            for (int i = 0; i <= rounds; i++) {
+                LogFile serial = workload.crash(1);
+                LogFile parallel = workload.crash(threads);
+                if (i > 0) {
+                    System.out.printf("redo of %d records: %.1f ms on 1 thread, %.1f ms on %d threads%n",
+                            serial.getRedoneRecords(), serial.getRedoNanos() / 1e6,
+                            parallel.getRedoNanos() / 1e6, threads);
+                }
+            }
+        } finally {
+            workload.tearDown();
+        }
+    }
+}
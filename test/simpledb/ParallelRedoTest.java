@@ -0,0 +1,191 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Redo spread over worker threads, checked against redo on one thread with
+ * the scenarios of the LogTest system test scaled up: many tables,
+ * committed inserts, an abort of flushed changes and a loser at the crash.
+ * Every page write is lost before recovery, so redo has to repeat all of
+ * history.  {@link ParallelRedoBenchmark} times the same workload.
+ */
+public class ParallelRedoTest extends SimpleDbTestBase {
+
+    private static final int TABLES = 8;
+    private static final int ROWS = 4;
+
+    private final int transactions;
+
+    private final File[] files = new File[TABLES];
+    private final HeapFile[] tables = new HeapFile[TABLES];
+    // the log right before the crash, by file name
+    private final Map<String, byte[]> log = new HashMap<>();
+
+    public ParallelRedoTest() {
+        this(200);
+    }
+
+    ParallelRedoTest(int transactions) {
+        this.transactions = transactions;
+    }
+
+    private static File[] logFiles() {
+        File[] logs = new File(".").listFiles((dir, name) -> name.startsWith("log."));
+        return logs == null ? new File[0] : logs;
+    }
+
+    @Before public void setUp() throws Exception {
+        for (File f : logFiles()) {
+            f.delete();
+        }
+        Database.reset();
+        for (int i = 0; i < TABLES; i++) {
+            files[i] = new File("simple" + i + ".db");
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+    }
+
+    @After public void tearDown() {
+        for (File f : logFiles()) {
+            f.delete();
+        }
+        for (File f : files) {
+            f.delete();
+            new File(f.getPath() + ".fsm").delete();
+            new File(f.getPath() + ".lsn").delete();
+        }
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        for (HeapFile hf : tables) {
+            for (int r = 0; r < ROWS; r++) {
+                Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, r}));
+            }
+        }
+    }
+
+    /**
+     * Run the workload and keep a copy of the log as it is at the crash.
+     */
+    void runWorkload() throws Exception {
+        for (int i = 0; i < transactions; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insert(t, i);
+            t.commit();
+            if (i == transactions / 2) {
+                Transaction aborted = new Transaction();
+                aborted.start();
+                insert(aborted, -1);
+                Database.getBufferPool().flushAllPages();
+                aborted.abort();
+            }
+        }
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, -2);
+        Database.getBufferPool().flushAllPages();
+        for (File f : logFiles()) {
+            log.put(f.getName(), Files.readAllBytes(f.toPath()));
+        }
+    }
+
+    /**
+     * Restart from the log of the crash, with every page write lost, and
+     * recover with the given number of redo threads.
+     *
+     * @return the log file that recovered
+     */
+    LogFile crash(int redoThreads) throws IOException {
+        for (File f : logFiles()) {
+            f.delete();
+        }
+        for (Map.Entry<String, byte[]> e : log.entrySet()) {
+            Files.write(new File(e.getKey()).toPath(), e.getValue());
+        }
+        byte[] empty = HeapPage.createEmptyPageData();
+        for (File f : files) {
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                for (long off = 0; off < raf.length(); off += empty.length) {
+                    raf.seek(off);
+                    raf.write(empty);
+                }
+            }
+            new File(f.getPath() + ".lsn").delete();
+        }
+        Database.reset();
+        for (int i = 0; i < TABLES; i++) {
+            tables[i] = Utility.openHeapFile(2, files[i]);
+        }
+        LogFile lf = Database.getLogFile();
+        lf.setRedoThreads(redoThreads);
+        lf.recover();
+        return lf;
+    }
+
+    /**
+     * @return for each transaction value, the number of tuples with it,
+     *   over all tables; index 0 counts the aborted and loser values
+     */
+    private int[] contents() throws Exception {
+        int[] counts = new int[transactions + 1];
+        Transaction t = new Transaction();
+        t.start();
+        for (HeapFile hf : tables) {
+            DbFileIterator it = hf.iterator(t.getId());
+            it.open();
+            while (it.hasNext()) {
+                int v = ((IntField) it.next().getField(0)).getValue();
+                counts[v < 0 ? 0 : v + 1]++;
+            }
+            it.close();
+        }
+        t.commit();
+        return counts;
+    }
+
+    @Test public void parallelRedoMatchesSerial() throws Exception {
+        runWorkload();
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+        LogFile serial = crash(1);
+        int redone = serial.getRedoneRecords();
+        int[] expected = contents();
+        assertEquals(0, expected[0]);
+        for (int i = 1; i <= transactions; i++) {
+            assertEquals(TABLES * ROWS, expected[i]);
+        }
+
+        LogFile parallel = crash(threads);
+        assertEquals(redone, parallel.getRedoneRecords());
+        assertEquals(serial.getUndoneRecords(), parallel.getUndoneRecords());
+        assertArrayEquals(expected, contents());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelRedoTest.class);
+    }
+}
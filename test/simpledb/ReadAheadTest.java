@@ -0,0 +1,111 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private final List<List<Integer>> tuples = new ArrayList<>();
+    private HeapFile hf;
+    private BufferPool pool;
+    private TransactionId tid;
+
+    @Before public void createFile() throws Exception {
+        // about 20 pages of single int tuples
+        hf = SystemTestUtil.createRandomHeapFile(1, 20000, null, tuples);
+        pool = Database.resetBufferPool(40);
+        pool.setReadAhead(true);
+        tid = new TransactionId();
+    }
+
+    private Page get(int pgNo) throws Exception {
+        return pool.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    private PageId next(Page page) {
+        int n = page.getId().getPageNumber() + 1;
+        return n < hf.numPages() ? new HeapPageId(hf.getId(), n) : null;
+    }
+
+    private void awaitPrefetches(long n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getStats().getPrefetches() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(pool.getStats().getPrefetches() >= n);
+    }
+
+    /**
+     * Two sequential accesses start read-ahead of the next pages, and
+     * reaching a prefetched page doubles the depth.
+     */
+    @Test public void sequentialAccessPrefetches() throws Exception {
+        ReadAhead.Stream s = pool.readAheadStream(this::next);
+        assertNotNull(s);
+
+        s.accessed(get(0));
+        assertEquals(0, pool.getStats().getPrefetches());
+        s.accessed(get(1));
+        awaitPrefetches(ReadAhead.MIN_DEPTH);
+
+        long misses = pool.getStats().getMisses();
+        s.accessed(get(2));
+        assertEquals(misses, pool.getStats().getMisses());
+        assertEquals(1, pool.getStats().getPrefetchHits());
+        assertEquals(2 * ReadAhead.MIN_DEPTH, s.getDepth());
+        assertEquals(2 * ReadAhead.MIN_DEPTH, pool.getStats().getReadAheadDepth());
+    }
+
+    /**
+     * Random access does not trigger read-ahead.
+     */
+    @Test public void randomAccessDoesNotPrefetch() throws Exception {
+        ReadAhead.Stream s = pool.readAheadStream(this::next);
+        for (int pgNo : new int[]{5, 0, 12, 3, 9}) {
+            s.accessed(get(pgNo));
+        }
+        Thread.sleep(50);
+        assertEquals(0, pool.getStats().getPrefetches());
+    }
+
+    /**
+     * A full scan with read-ahead still returns every tuple once.
+     */
+    @Test public void scan() throws Exception {
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertEquals(0, pool.getStats().getPrefetchesWasted());
+    }
+
+    /**
+     * Read-ahead is opt-in: a pool starts without it.
+     */
+    @Test public void offByDefault() throws Exception {
+        BufferPool fresh = Database.resetBufferPool(40);
+        assertNull(fresh.readAheadStream(this::next));
+        fresh.setReadAhead(true);
+        assertNotNull(fresh.readAheadStream(this::next));
+        fresh.setReadAhead(false);
+        assertNull(fresh.readAheadStream(this::next));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
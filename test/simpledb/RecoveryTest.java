@@ -0,0 +1,280 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rollback and crash recovery from the physiological log, with tuples
+ * inserted through the buffer pool.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = new File("simple1.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lsn").delete();
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, 0}));
+    }
+
+    /**
+     * Restart with an empty buffer pool and run recovery.
+     */
+    private void crash() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * @return the number of tuples with the given first field
+     */
+    private int count(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int n = 0;
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v) {
+                n++;
+            }
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    @Test public void committedSurvivesCrash() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        insert(t, 2);
+        t.commit();
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(1, count(2));
+    }
+
+    @Test public void stolenPageIsUndone() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+
+        // recovery logged the loser as aborted, so recovering again after
+        // more work does not undo it twice
+        Transaction t3 = new Transaction();
+        t3.start();
+        insert(t3, 3);
+        t3.commit();
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+        assertEquals(1, count(3));
+    }
+
+    @Test public void abortRollsBackFlushedChanges() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        Database.getBufferPool().flushAllPages();
+        insert(t1, 2);
+        Database.getBufferPool().flushAllPages();
+        t1.abort();
+        assertEquals(0, count(1));
+        assertEquals(0, count(2));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 3);
+        t2.commit();
+        crash();
+        assertEquals(0, count(1));
+        assertEquals(1, count(3));
+    }
+
+    /**
+     * An abort straight through the buffer pool also undoes the changes that
+     * were written out before it, on pages of any file.
+     */
+    @Test public void bufferPoolAbortUndoesStolenIndexPage() throws Exception {
+        File bfile = new File("simple2.db");
+        bfile.delete();
+        try {
+            BTreeFile bf = BTreeUtility.openBTreeFile(2, bfile, 0);
+            TransactionId tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{1, 0}));
+            Database.getBufferPool().transactionComplete(tid, true);
+
+            tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{2, 0}));
+            Database.getBufferPool().flushAllPages();
+            Database.getBufferPool().transactionComplete(tid, false);
+
+            tid = new TransactionId();
+            DbFileIterator it = bf.iterator(tid);
+            it.open();
+            List<Integer> keys = new ArrayList<>();
+            while (it.hasNext()) {
+                keys.add(((IntField) it.next().getField(0)).getValue());
+            }
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+            assertEquals(Collections.singletonList(1), keys);
+        } finally {
+            bfile.delete();
+            new File(bfile.getPath() + ".lsn").delete();
+        }
+    }
+
+    /**
+     * Pages written and synced after their records carry the LSN of those
+     * records, so recovery does not redo them.
+     */
+    @Test public void redoSkipsCurrentPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        t.commit();
+        hf.sync();
+        crash();
+        assertEquals(0, Database.getLogFile().getRedoneRecords());
+        assertTrue(Database.getLogFile().getRedoSkippedRecords() > 0);
+        assertEquals(1, count(1));
+    }
+
+    /**
+     * The LSN of a page only reaches the disk when the file is synced, so a
+     * page written since is redone, which changes nothing.
+     */
+    @Test public void redoRepeatsUnsyncedPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        t.commit();
+        crash();
+        assertEquals(1, Database.getLogFile().getRedoneRecords());
+        assertEquals(1, count(1));
+    }
+
+    /**
+     * A checkpoint syncs the files, so the LSNs of the pages of a B+ tree,
+     * its root pointer page included, are on disk after it.
+     */
+    @Test public void checkpointSyncsIndexPageLsns() throws Exception {
+        File bfile = new File("simple2.db");
+        bfile.delete();
+        try {
+            BTreeFile bf = BTreeUtility.openBTreeFile(2, bfile, 0);
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(), Utility.getHeapTuple(new int[]{1, 0}));
+            t.commit();
+            Database.getLogFile().logCheckpoint();
+
+            Database.reset();
+            bf = BTreeUtility.openBTreeFile(2, bfile, 0);
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+            assertTrue(rootPtr.getLsn() > 0);
+            assertTrue(bf.readPage(rootPtr.getRootId()).getLsn() > 0);
+        } finally {
+            bfile.delete();
+            new File(bfile.getPath() + ".lsn").delete();
+        }
+    }
+
+    /**
+     * A page write that was logged but did not make it to disk is redone.
+     */
+    @Test public void redoRestoresLostWrite() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+        hf.sync();
+        Page old = hf.readPage(new HeapPageId(hf.getId(), 0));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        t2.commit();
+        // as if the last write of the page were lost, LSN and all
+        hf.writePage(old);
+        crash();
+        assertEquals(1, Database.getLogFile().getRedoneRecords());
+        assertEquals(1, count(1));
+        assertEquals(1, count(2));
+    }
+
+    /**
+     * A transaction that was active at a checkpoint is undone by following
+     * its records back past the checkpoint.
+     */
+    @Test public void undoAcrossCheckpoint() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        insert(t2, 3);
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(2, Database.getLogFile().getUndoneRecords());
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+        assertEquals(0, count(3));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,233 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transactions changing different tuples of the same heap page at the same
+ * time, each under its own tuple lock.  A change that waited for a page lock
+ * would never return, so every test has a timeout.
+ */
+public class RowLockingTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = new File("simple1.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3; i++) {
+            insert(t, i);
+        }
+        t.commit();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lsn").delete();
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, 0}));
+    }
+
+    /**
+     * Run an insert on another thread, as a transaction of its own would.
+     */
+    private void insertOnOtherThread(Transaction t, int v) throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                insert(t, v);
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        other.start();
+        other.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private Tuple find(Transaction t, int v) throws Exception {
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple tup = it.next();
+                if (((IntField) tup.getField(0)).getValue() == v) {
+                    return tup;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        fail("no tuple " + v);
+        return null;
+    }
+
+    /**
+     * @return the first fields of the committed tuples, sorted
+     */
+    private List<Integer> contents() throws Exception {
+        List<Integer> values = new ArrayList<>();
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        t.commit();
+        Collections.sort(values);
+        return values;
+    }
+
+    private static List<Integer> list(Integer... values) {
+        List<Integer> l = new ArrayList<>();
+        Collections.addAll(l, values);
+        return l;
+    }
+
+    @Test(timeout = 10000) public void insertersShareAPage() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 10);
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertOnOtherThread(t2, 20);
+
+        HeapPageId page0 = new HeapPageId(hf.getId(), 0);
+        assertTrue(Database.getBufferPool().holdsLock(t1.getId(), page0));
+        assertTrue(Database.getBufferPool().holdsLock(t2.getId(), page0));
+        t1.commit();
+        t2.commit();
+        assertEquals(list(0, 1, 2, 10, 20), contents());
+        assertEquals(1, hf.numPages());
+    }
+
+    @Test(timeout = 10000) public void deletersShareAPage() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().deleteTuple(t1.getId(), find(t1, 0));
+        // t1 read the page under a shared lock; let the others write it
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        Transaction t3 = new Transaction();
+        t3.start();
+        Tuple one = find(t2, 1);
+        Tuple two = find(t3, 2);
+        t2.commit();
+        t3.commit();
+
+        Transaction d1 = new Transaction();
+        d1.start();
+        Database.getBufferPool().deleteTuple(d1.getId(), one);
+        Transaction d2 = new Transaction();
+        d2.start();
+        Database.getBufferPool().deleteTuple(d2.getId(), two);
+        assertTrue(Database.getBufferPool().holdsLock(d1.getId(), one.getRecordId()));
+        assertFalse(Database.getBufferPool().holdsLock(d2.getId(), one.getRecordId()));
+        d2.abort();
+        d1.commit();
+        assertEquals(list(2), contents());
+    }
+
+    @Test(timeout = 10000) public void abortKeepsOtherWriters() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 10);
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertOnOtherThread(t2, 20);
+        // both changes reach the disk before the abort
+        Database.getBufferPool().flushAllPages();
+        insert(t1, 11);
+
+        t1.abort();
+        t2.commit();
+        assertEquals(list(0, 1, 2, 20), contents());
+    }
+
+    @Test(timeout = 10000) public void commitDoesNotPublishOthers() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 10);
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertOnOtherThread(t2, 20);
+        // writes the page with the change of t2 on it
+        t2.commit();
+        Database.getBufferPool().transactionComplete(t1.getId(), false);
+        assertEquals(list(0, 1, 2, 20), contents());
+    }
+
+    @Test(timeout = 10000) public void scanWaitsForWriter() throws Exception {
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 10);
+
+        AtomicReference<List<Integer>> seen = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                seen.set(contents());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+        assertNull(seen.get());
+        w.commit();
+        reader.join();
+        assertEquals(list(0, 1, 2, 10), seen.get());
+    }
+
+    @Test(timeout = 10000) public void loserUndoneAfterCrash() throws Exception {
+        Transaction winner = new Transaction();
+        winner.start();
+        insert(winner, 10);
+        Transaction loser = new Transaction();
+        loser.start();
+        insertOnOtherThread(loser, 20);
+        // FORCE writes the page, with the loser's tuple on it
+        winner.commit();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(list(0, 1, 2, 10), contents());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
@@ -0,0 +1,282 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * B+ tree indexes on a field of a heap table.
+ */
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 2000;
+	private static final int MAX_VALUE = 500;
+
+	private List<List<Integer>> tuples;
+	private HeapFile table;
+	private SecondaryIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<>();
+		table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		TransactionId tid = new TransactionId();
+		index = SecondaryIndex.create(tid, f, table.getId(), 0);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private int expected(Op op, int key) {
+		int n = 0;
+		for(List<Integer> t : tuples) {
+			n += new IntField(t.get(0)).compare(op, new IntField(key)) ? 1 : 0;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the tuples of the table whose indexed field matches, checking
+	 * they come in key order
+	 */
+	private List<Tuple> lookup(TransactionId tid, Op op, int key) throws Exception {
+		List<Tuple> found = new ArrayList<>();
+		OpIterator it = new SecondaryIndexScan(tid, index, "t", new IndexPredicate(op, new IntField(key)));
+		it.open();
+		int last = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			int value = ((IntField) t.getField(0)).getValue();
+			assertTrue(new IntField(value).compare(op, new IntField(key)));
+			assertTrue(value >= last);
+			last = value;
+			found.add(t);
+		}
+		it.close();
+		return found;
+	}
+
+	@Test
+	public void lookupsMatchTable() throws Exception {
+		TransactionId tid = new TransactionId();
+		assertSame(index, Database.getCatalog().getIndex(table.getId(), 0));
+		assertNull(Database.getCatalog().getIndex(table.getId(), 1));
+		for(int i = 0; i < 20; i++) {
+			int key = tuples.get(i * (ROWS / 20)).get(0);
+			assertEquals(expected(Op.EQUALS, key), lookup(tid, Op.EQUALS, key).size());
+		}
+		assertEquals(expected(Op.LESS_THAN, MAX_VALUE / 4), lookup(tid, Op.LESS_THAN, MAX_VALUE / 4).size());
+		assertEquals(expected(Op.GREATER_THAN_OR_EQ, MAX_VALUE / 2),
+				lookup(tid, Op.GREATER_THAN_OR_EQ, MAX_VALUE / 2).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void maintainedOnInsertAndDelete() throws Exception {
+		TransactionId tid = new TransactionId();
+		int key = MAX_VALUE + 1;
+		for(int i = 0; i < 10; i++) {
+			Tuple t = new Tuple(table.getTupleDesc());
+			t.setField(0, new IntField(key));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		}
+		List<Tuple> found = lookup(tid, Op.EQUALS, key);
+		assertEquals(10, found.size());
+
+		for(int i = 0; i < 5; i++) {
+			Database.getBufferPool().deleteTuple(tid, found.get(i));
+		}
+		assertEquals(5, lookup(tid, Op.EQUALS, key).size());
+
+		// one of several tuples with the same key
+		int old = tuples.get(0).get(0);
+		List<Tuple> same = lookup(tid, Op.EQUALS, old);
+		Database.getBufferPool().deleteTuple(tid, same.get(same.size() - 1));
+		assertEquals(same.size() - 1, lookup(tid, Op.EQUALS, old).size());
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		assertEquals(5, lookup(tid, Op.EQUALS, key).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void maintainedPastOneLeaf() throws Exception {
+		// enough tuples with one key to split index leaves several times
+		int key = MAX_VALUE + 1;
+		int rows = 2000;
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < rows; i++) {
+			Tuple t = new Tuple(table.getTupleDesc());
+			t.setField(0, new IntField(i % 3 == 0 ? key : MAX_VALUE + 2 + i));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		assertTrue(index.getFile().numPages() > 2);
+
+		tid = new TransactionId();
+		List<Tuple> found = lookup(tid, Op.EQUALS, key);
+		assertEquals((rows + 2) / 3, found.size());
+		assertEquals(rows, lookup(tid, Op.GREATER_THAN, MAX_VALUE).size());
+		for(Tuple t : found) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		assertEquals(0, lookup(tid, Op.EQUALS, key).size());
+		assertEquals(rows - found.size(), lookup(tid, Op.GREATER_THAN, MAX_VALUE).size());
+		assertEquals(expected(Op.LESS_THAN_OR_EQ, MAX_VALUE), lookup(tid, Op.LESS_THAN_OR_EQ, MAX_VALUE).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test(expected = DbException.class)
+	public void refusesNonHeapTable() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		SecondaryIndex.create(new TransactionId(), f, index.getId(), 0);
+	}
+
+	private static OpIterator leaf(OpIterator plan) {
+		while(plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	@Test
+	public void plannerPicksIndex() throws Exception {
+		String name = Database.getCatalog().getTableName(table.getId());
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(name, new TableStats(table.getId(), 1000));
+		int key = tuples.get(0).get(0);
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", Op.GREATER_THAN_OR_EQ, "0");
+		lp.addFilter("t.c0", Op.EQUALS, Integer.toString(key));
+		lp.addProjectField("t.c1", null);
+		TransactionId tid = new TransactionId();
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(leaf(plan) instanceof SecondaryIndexScan);
+		plan.open();
+		int n = 0;
+		while(plan.hasNext()) {
+			plan.next();
+			n++;
+		}
+		plan.close();
+		assertEquals(expected(Op.EQUALS, key), n);
+
+		// a filter on a field without an index scans the table
+		lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, Integer.toString(key));
+		lp.addProjectField("t.c1", null);
+		assertTrue(leaf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void plannerScansForNonSelectiveRange() throws Exception {
+		String name = Database.getCatalog().getTableName(table.getId());
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(name, new TableStats(table.getId(), 1000));
+
+		// matches every tuple: looking each up through the index costs more than the scan
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c0", Op.GREATER_THAN_OR_EQ, "0");
+		lp.addProjectField("t.c1", null);
+		TransactionId tid = new TransactionId();
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(leaf(plan) instanceof SeqScan);
+		plan.open();
+		int n = 0;
+		while(plan.hasNext()) {
+			plan.next();
+			n++;
+		}
+		plan.close();
+		assertEquals(ROWS, n);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A snapshot can only read heap pages: the planner scans the table
+	 * instead of using its index, and reading the index fails.
+	 */
+	@Test
+	public void snapshotSkipsIndex() throws Exception {
+		String name = Database.getCatalog().getTableName(table.getId());
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(name, new TableStats(table.getId(), 1000));
+		int key = tuples.get(0).get(0);
+
+		Transaction r = new Transaction(true);
+		r.start();
+		try {
+			LogicalPlan lp = new LogicalPlan();
+			lp.addScan(table.getId(), "t");
+			lp.addFilter("t.c0", Op.EQUALS, Integer.toString(key));
+			lp.addProjectField("t.c1", null);
+			OpIterator plan = lp.physicalPlan(r.getId(), stats, false);
+			assertTrue(leaf(plan) instanceof SeqScan);
+			plan.open();
+			int n = 0;
+			while(plan.hasNext()) {
+				plan.next();
+				n++;
+			}
+			plan.close();
+			assertEquals(expected(Op.EQUALS, key), n);
+
+			try {
+				lookup(r.getId(), Op.EQUALS, key);
+				fail("expected the index read to be refused");
+			} catch(DbException e) {
+				// expected
+			}
+		} finally {
+			r.commit();
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
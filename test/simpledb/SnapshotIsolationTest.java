@@ -0,0 +1,175 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Read-only transactions reading snapshots of a heap file while writers
+ * change it.  A read that took a lock held by a writer would never return,
+ * so every test has a timeout.
+ */
+public class SnapshotIsolationTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = new File("simple1.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3; i++) {
+            insert(t, i);
+        }
+        t.commit();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lsn").delete();
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, 0}));
+    }
+
+    private void delete(Transaction t, int v) throws Exception {
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (((IntField) tup.getField(0)).getValue() == v) {
+                it.close();
+                Database.getBufferPool().deleteTuple(t.getId(), tup);
+                return;
+            }
+        }
+        fail("no tuple " + v);
+    }
+
+    /**
+     * @return the first fields of the tuples the transaction sees, sorted
+     */
+    private List<Integer> scan(Transaction t) throws Exception {
+        List<Integer> values = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    private static List<Integer> list(Integer... values) {
+        List<Integer> l = new ArrayList<>();
+        Collections.addAll(l, values);
+        return l;
+    }
+
+    @Test(timeout = 10000) public void readerIgnoresUncommittedWriter() throws Exception {
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 10);
+        delete(w, 0);
+
+        Transaction r = new Transaction(true);
+        r.start();
+        assertEquals(list(0, 1, 2), scan(r));
+        assertFalse(Database.getBufferPool().holdsLock(r.getId(), new HeapPageId(hf.getId(), 0)));
+
+        w.commit();
+        // still the snapshot from before the commit
+        assertEquals(list(0, 1, 2), scan(r));
+        r.commit();
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(list(1, 2, 10), scan(later));
+        later.commit();
+    }
+
+    @Test(timeout = 10000) public void writerIgnoresActiveReader() throws Exception {
+        Transaction r = new Transaction(true);
+        r.start();
+        assertEquals(list(0, 1, 2), scan(r));
+
+        // would wait for a shared lock of r's if r had taken one
+        Transaction w = new Transaction();
+        w.start();
+        delete(w, 1);
+        insert(w, 11);
+        w.commit();
+
+        Transaction w2 = new Transaction();
+        w2.start();
+        delete(w2, 11);
+        insert(w2, 12);
+        w2.commit();
+
+        assertEquals(list(0, 1, 2), scan(r));
+        r.commit();
+        assertEquals(0, Database.getBufferPool().getRetainedVersions());
+    }
+
+    @Test(timeout = 10000) public void abortedChangesNeverVisible() throws Exception {
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 20);
+        delete(w, 2);
+        Database.getBufferPool().flushAllPages();
+
+        Transaction r = new Transaction(true);
+        r.start();
+        w.abort();
+        assertEquals(list(0, 1, 2), scan(r));
+        r.commit();
+        assertEquals(0, Database.getBufferPool().getRetainedVersions());
+    }
+
+    @Test(timeout = 10000) public void versionsDroppedWithoutSnapshots() throws Exception {
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 30);
+        assertEquals(1, Database.getBufferPool().getRetainedVersions());
+        w.commit();
+        assertEquals(0, Database.getBufferPool().getRetainedVersions());
+    }
+
+    @Test(expected = DbException.class) public void readOnlyCannotWrite() throws Exception {
+        Transaction r = new Transaction(true);
+        r.start();
+        try {
+            insert(r, 40);
+        } finally {
+            r.commit();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}